@@ -1,17 +1,33 @@
 package bookwormpi.sensiblestorage;
 
+import bookwormpi.sensiblestorage.client.container.ContainerHighlighter;
+import bookwormpi.sensiblestorage.client.container.ContainerInvalidator;
+import bookwormpi.sensiblestorage.client.gui.GhostIconAtlas;
 import bookwormpi.sensiblestorage.client.keybind.KeyBindings;
 import bookwormpi.sensiblestorage.client.memory.EnhancedSBStyleMemoryManager;
+import bookwormpi.sensiblestorage.client.memory.PersistentMemoryManager;
+import bookwormpi.sensiblestorage.client.memory.storage.ShardPager;
 import bookwormpi.sensiblestorage.memory.ClientMemoryManager;
 import net.fabricmc.api.ClientModInitializer;
 import net.fabricmc.fabric.api.client.command.v2.ClientCommandRegistrationCallback;
 import net.fabricmc.fabric.api.client.command.v2.FabricClientCommandSource;
+import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientBlockEntityEvents;
+import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientChunkEvents;
 import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientLifecycleEvents;
+import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientTickEvents;
+import net.fabricmc.fabric.api.client.networking.v1.ClientPlayConnectionEvents;
+import net.fabricmc.fabric.api.resource.ResourceManagerHelper;
+import net.fabricmc.fabric.api.resource.SimpleSynchronousResourceReloadListener;
 
 import com.mojang.brigadier.CommandDispatcher;
 import com.mojang.brigadier.context.CommandContext;
 
+import net.minecraft.inventory.Inventory;
+import net.minecraft.resource.ResourceManager;
+import net.minecraft.resource.ResourceType;
 import net.minecraft.text.Text;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.Identifier;
 
 public class SensibleStorageClient implements ClientModInitializer {
 	@Override
@@ -22,19 +38,75 @@ public class SensibleStorageClient implements ClientModInitializer {
 		// Register debug commands
 		registerCommands();
 		
-		// Load memory data when client starts
-		ClientLifecycleEvents.CLIENT_STARTED.register(client -> {
+		// Outline the containers found for the held item
+		ContainerHighlighter.register();
+		
+		// Open the joined world's memory stores in the background
+		ClientPlayConnectionEvents.JOIN.register((handler, sender, client) -> {
+			PersistentMemoryManager.openWorld();
 			ClientMemoryManager.getInstance().loadMemoryData();
 		});
 		
-		// Save memory data when client stops
+		// Flush write-behind saves once edits go quiet
+		ClientTickEvents.END_CLIENT_TICK.register(client -> {
+			PersistentMemoryManager.tick();
+			ClientMemoryManager.getInstance().tick();
+			ContainerInvalidator.tick(client);
+			ContainerHighlighter.tick();
+		});
+		
+		// Page container memories in and out with the chunks around the player
+		ClientChunkEvents.CHUNK_LOAD.register((world, chunk) -> {
+			ShardPager.chunkLoaded(world.getRegistryKey().getValue().toString(), chunk.getPos().x, chunk.getPos().z);
+			ContainerInvalidator.chunkLoaded(world, chunk.getPos());
+		});
+		
+		ClientChunkEvents.CHUNK_UNLOAD.register((world, chunk) -> {
+			ShardPager.chunkUnloaded(world.getRegistryKey().getValue().toString(), chunk.getPos().x, chunk.getPos().z);
+		});
+		
+		// Drop the memories of containers that are broken, checked in batches on later ticks
+		ClientBlockEntityEvents.BLOCK_ENTITY_UNLOAD.register((blockEntity, world) -> {
+			if (blockEntity instanceof Inventory) {
+				ContainerInvalidator.blockEntityUnloaded(world, blockEntity.getPos());
+			}
+		});
+		
+		// Flush pending saves (bounded wait) and release the world's stores on disconnect
+		ClientPlayConnectionEvents.DISCONNECT.register((handler, client) -> {
+			PersistentMemoryManager.closeWorld();
+			ClientMemoryManager.getInstance().unloadMemoryData();
+			ShardPager.clear();
+			ContainerInvalidator.clear();
+			ContainerHighlighter.clear();
+		});
+		
+		// Flush pending saves (bounded wait) when the client stops
 		ClientLifecycleEvents.CLIENT_STOPPING.register(client -> {
-			ClientMemoryManager.getInstance().saveMemoryData();
+			flushMemoryData();
+		});
+		
+		// Baked ghost icons come from item textures, which a resource reload can replace
+		ResourceManagerHelper.get(ResourceType.CLIENT_RESOURCES).registerReloadListener(new SimpleSynchronousResourceReloadListener() {
+			@Override
+			public Identifier getFabricId() {
+				return Identifier.of(SensibleStorage.MOD_ID, "ghost_icons");
+			}
+			
+			@Override
+			public void reload(ResourceManager manager) {
+				GhostIconAtlas.clear();
+			}
 		});
 		
 		SensibleStorage.LOGGER.info("Sensible Storage client initialized!");
 	}
 	
+	private static void flushMemoryData() {
+		PersistentMemoryManager.flush();
+		ClientMemoryManager.getInstance().saveMemoryData();
+	}
+	
 	private void registerCommands() {
 		ClientCommandRegistrationCallback.EVENT.register((dispatcher, registryAccess) -> {
 			registerMemoryCommands(dispatcher);
@@ -43,22 +115,45 @@ public class SensibleStorageClient implements ClientModInitializer {
 	
 	private void registerMemoryCommands(CommandDispatcher<FabricClientCommandSource> dispatcher) {
 		dispatcher.register(net.fabricmc.fabric.api.client.command.v2.ClientCommandManager.literal("sensiblestorage")
+			.then(net.fabricmc.fabric.api.client.command.v2.ClientCommandManager.literal("find")
+				.executes(this::executeFind))
 			.then(net.fabricmc.fabric.api.client.command.v2.ClientCommandManager.literal("memory")
 				.then(net.fabricmc.fabric.api.client.command.v2.ClientCommandManager.literal("stats")
 					.executes(this::executeMemoryStats))
 				.then(net.fabricmc.fabric.api.client.command.v2.ClientCommandManager.literal("save")
-					.executes(this::executeMemorySave))));
+					.executes(this::executeMemorySave))
+				.then(net.fabricmc.fabric.api.client.command.v2.ClientCommandManager.literal("gc")
+					.executes(context -> executeMemorySweep(context, false))
+					.then(net.fabricmc.fabric.api.client.command.v2.ClientCommandManager.literal("dry-run")
+						.executes(context -> executeMemorySweep(context, true))))));
 	}
 	
 	private int executeMemoryStats(CommandContext<FabricClientCommandSource> context) {
 		String stats = EnhancedSBStyleMemoryManager.getStats();
 		context.getSource().sendFeedback(Text.literal("Memory Stats: " + stats));
+		context.getSource().sendFeedback(Text.literal("Slot Memory Stats: " + ClientMemoryManager.getInstance().getStats()));
 		return 1;
 	}
 	
 	private int executeMemorySave(CommandContext<FabricClientCommandSource> context) {
 		EnhancedSBStyleMemoryManager.saveAll();
+		ClientMemoryManager.getInstance().saveMemoryData();
 		context.getSource().sendFeedback(Text.literal("Memory data saved"));
 		return 1;
 	}
+	
+	private int executeFind(CommandContext<FabricClientCommandSource> context) {
+		context.getSource().sendFeedback(ContainerHighlighter.findForHeldItem(context.getSource().getClient()));
+		for (BlockPos pos : ContainerHighlighter.highlighted()) {
+			context.getSource().sendFeedback(Text.literal(String.format("  %d, %d, %d", pos.getX(), pos.getY(), pos.getZ())));
+		}
+		return 1;
+	}
+	
+	private int executeMemorySweep(CommandContext<FabricClientCommandSource> context, boolean dryRun) {
+		// Regions are read in the background; the report follows once the sweep is done
+		EnhancedSBStyleMemoryManager.sweep(dryRun)
+			.thenAccept(result -> context.getSource().sendFeedback(Text.literal("Memory GC: " + result)));
+		return 1;
+	}
 }
\ No newline at end of file
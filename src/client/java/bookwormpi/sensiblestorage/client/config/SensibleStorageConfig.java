@@ -0,0 +1,136 @@
+package bookwormpi.sensiblestorage.client.config;
+
+import bookwormpi.sensiblestorage.SensibleStorage;
+import bookwormpi.sensiblestorage.client.memory.storage.StorageBackend;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import net.fabricmc.loader.api.FabricLoader;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Client configuration for Sensible Storage, stored as config/sensiblestorage.json
+ * Missing fields keep their defaults, so older config files stay valid
+ */
+public class SensibleStorageConfig {
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+    private static final Path CONFIG_FILE = FabricLoader.getInstance().getConfigDir().resolve("sensiblestorage.json");
+    
+    private static SensibleStorageConfig INSTANCE;
+    
+    /**
+     * Quiet period after the last edit before dirty memory is flushed to disk
+     */
+    public long saveQuietPeriodMs = 15000;
+    
+    /**
+     * Upper bound on how long a continuous burst of edits can delay a flush
+     */
+    public long saveMaxDelayMs = 120000;
+    
+    /**
+     * How long shutdown and disconnect wait for pending writes to finish
+     */
+    public long shutdownFlushTimeoutMs = 5000;
+    
+    /**
+     * Journal size at which template edits are checkpointed into the region shards
+     */
+    public long journalCheckpointBytes = 256 * 1024;
+    
+    /**
+     * Most decoded container memories kept in memory; colder ones are dropped and read back from
+     * disk one at a time when needed (binary region shards), and the oldest session memories are forgotten
+     */
+    public int memoryCacheMaxContainers = 10000;
+    
+    /**
+     * Container memories not used for this many days are removed by the daily sweep; 0 keeps them forever
+     * Memories without any template are always removed
+     */
+    public int memoryExpiryDays = 0;
+    
+    /**
+     * On-disk format for memory shards: "binary" (compact, default) or "json" (human-readable)
+     * Existing shards are converted the next time a world is joined
+     */
+    public String storageFormat = "binary";
+    
+    /**
+     * Where memories are kept: "sharded" (region shards paged with chunks, default), "legacy-json"
+     * (one JSON file per world, read and written whole) or "memory" (nothing saved)
+     * Switching between the sharded and legacy-json backends carries existing memories over
+     */
+    public String storageBackend = "sharded";
+    
+    /**
+     * Deflate-compress memory files as they are written; compressed and plain files are both read
+     * Existing files switch form the next time they are saved
+     */
+    public boolean compressStorage = false;
+    
+    /**
+     * Draw the ghost items of a container screen as one layer after its slots, items first and
+     * overlays after, from a draw list kept until templates or slot contents change; flat item
+     * icons are baked once into an atlas with the overlay applied. False draws each ghost as its slot is drawn
+     */
+    public boolean batchGhostLayer = true;
+    
+    /**
+     * With batchGhostLayer, also composite the layer's baked icons and memorize highlights into one
+     * texture drawn as a single quad, redone only when templates, slot emptiness or the GUI scale
+     * change; ghosts that cannot be baked (glint, animated, 3D models) are still drawn live
+     */
+    public boolean cacheGhostLayer = false;
+    
+    /**
+     * Route shift-clicks from the inventory into a container around slots whose template the item
+     * does not match; such a shift-click is sent as ordinary slot clicks instead of one quick move
+     */
+    public boolean routeShiftClicks = false;
+    
+    public boolean useJsonStorage() {
+        return "json".equalsIgnoreCase(storageFormat);
+    }
+    
+    public StorageBackend backend() {
+        return StorageBackend.fromConfig(storageBackend);
+    }
+    
+    public static SensibleStorageConfig get() {
+        if (INSTANCE == null) {
+            INSTANCE = load();
+        }
+        return INSTANCE;
+    }
+    
+    /**
+     * Load the config file, writing defaults back so new options show up for users
+     */
+    private static SensibleStorageConfig load() {
+        SensibleStorageConfig config = null;
+        
+        try {
+            if (Files.exists(CONFIG_FILE)) {
+                config = GSON.fromJson(Files.readString(CONFIG_FILE), SensibleStorageConfig.class);
+            }
+        } catch (Exception e) {
+            SensibleStorage.LOGGER.warn("Failed to read {}, using defaults", CONFIG_FILE, e);
+        }
+        
+        if (config == null) {
+            config = new SensibleStorageConfig();
+        }
+        
+        try {
+            Files.createDirectories(CONFIG_FILE.getParent());
+            Files.writeString(CONFIG_FILE, GSON.toJson(config));
+        } catch (IOException e) {
+            SensibleStorage.LOGGER.warn("Failed to write {}", CONFIG_FILE, e);
+        }
+        
+        return config;
+    }
+}
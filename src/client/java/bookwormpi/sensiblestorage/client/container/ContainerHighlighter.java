@@ -0,0 +1,113 @@
+package bookwormpi.sensiblestorage.client.container;
+
+import bookwormpi.sensiblestorage.client.memory.EnhancedSBStyleMemoryManager;
+import bookwormpi.sensiblestorage.client.memory.ItemIndex;
+import net.fabricmc.fabric.api.client.rendering.v1.WorldRenderContext;
+import net.fabricmc.fabric.api.client.rendering.v1.WorldRenderEvents;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.network.ClientPlayerEntity;
+import net.minecraft.client.render.debug.DebugRenderer;
+import net.minecraft.item.ItemStack;
+import net.minecraft.text.Text;
+import net.minecraft.util.math.BlockPos;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the nearest remembered containers that accept the held item and outlines them in the world
+ *
+ * The lookup goes through the item index, so it costs the same with a hundred containers as with
+ * a hundred thousand; the boxes stay up for a few seconds, in the dimension they were found in.
+ */
+public final class ContainerHighlighter {
+    private static final int MAX_RESULTS = 8;
+    private static final int HIGHLIGHT_TICKS = 200;
+    
+    private static List<BlockPos> highlighted = List.of();
+    private static String highlightedDimension;
+    private static int ticksLeft;
+    
+    private ContainerHighlighter() {
+    }
+    
+    public static void register() {
+        WorldRenderEvents.AFTER_ENTITIES.register(ContainerHighlighter::render);
+    }
+    
+    /**
+     * Highlight the containers accepting the main hand item
+     *
+     * @return a one-line summary for chat or the action bar
+     */
+    public static Text findForHeldItem(MinecraftClient client) {
+        ClientPlayerEntity player = client.player;
+        if (player == null || client.world == null) {
+            return Text.literal("Not in a world");
+        }
+        
+        ItemStack held = player.getMainHandStack();
+        if (held.isEmpty()) {
+            return Text.literal("Hold the item to find containers for");
+        }
+        
+        String dimension = client.world.getRegistryKey().getValue().toString();
+        long start = System.nanoTime();
+        List<ItemIndex.Match> matches = EnhancedSBStyleMemoryManager.findContainersFor(held, dimension,
+            player.getBlockPos(), MAX_RESULTS);
+        long micros = (System.nanoTime() - start) / 1000;
+        
+        List<BlockPos> positions = new ArrayList<>(matches.size());
+        for (ItemIndex.Match match : matches) {
+            positions.add(match.pos());
+        }
+        highlighted = positions;
+        highlightedDimension = dimension;
+        ticksLeft = positions.isEmpty() ? 0 : HIGHLIGHT_TICKS;
+        
+        if (matches.isEmpty()) {
+            return Text.literal("No remembered container accepts ").append(held.getName());
+        }
+        return Text.literal(String.format("%d container%s for ", matches.size(), matches.size() == 1 ? "" : "s"))
+            .append(held.getName())
+            .append(String.format(", nearest %.0f blocks away (%d µs)", Math.sqrt(matches.get(0).distanceSq()), micros));
+    }
+    
+    /**
+     * Positions highlighted by the last lookup, nearest first
+     */
+    public static List<BlockPos> highlighted() {
+        return highlighted;
+    }
+    
+    /**
+     * Count down the highlight, called every client tick
+     */
+    public static void tick() {
+        if (ticksLeft > 0 && --ticksLeft == 0) {
+            highlighted = List.of();
+        }
+    }
+    
+    /**
+     * Forget the highlight (disconnect)
+     */
+    public static void clear() {
+        highlighted = List.of();
+        highlightedDimension = null;
+        ticksLeft = 0;
+    }
+    
+    private static void render(WorldRenderContext context) {
+        if (highlighted.isEmpty() || context.matrixStack() == null || context.consumers() == null) return;
+        if (!context.world().getRegistryKey().getValue().toString().equals(highlightedDimension)) return;
+        
+        // Fade out over the last second
+        float fade = Math.min(1.0f, ticksLeft / 20.0f);
+        for (int i = 0; i < highlighted.size(); i++) {
+            float alpha = (i == 0 ? 0.5f : 0.3f) * fade;
+            DebugRenderer.drawBox(context.matrixStack(), context.consumers(), highlighted.get(i), 0.002f,
+                0.2f, 1.0f, 0.4f, alpha);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package bookwormpi.sensiblestorage.client.container;
+
+import bookwormpi.sensiblestorage.client.memory.ContainerKey;
+import bookwormpi.sensiblestorage.client.memory.PersistentMemoryManager;
+import bookwormpi.sensiblestorage.memory.ClientMemoryManager;
+import bookwormpi.sensiblestorage.memory.DimensionIndex;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.world.ClientWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.World;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Drops the memories of containers that no longer exist in the world
+ *
+ * Block entity unloads and chunk loads only queue a position or chunk; the queues are worked
+ * off a bounded batch per client tick, once the world's stores have loaded. A remembered
+ * position whose chunk is loaded but holds no block entity had its container broken (or
+ * replaced while the player was away), so its memories are evicted without any full scan.
+ * Checks whose memories are still being read from disk are queued again for a later tick.
+ */
+public final class ContainerInvalidator {
+    private static final int POSITIONS_PER_TICK = 256;
+    private static final int CHUNKS_PER_TICK = 8;
+    
+    // Dimensions are shared DimensionIndex indices, so queuing never builds an ID string
+    private record PendingPosition(int dimension, BlockPos pos) {}
+    
+    private record PendingChunk(int dimension, ChunkPos pos) {}
+    
+    private static final Set<PendingPosition> pendingPositions = new LinkedHashSet<>();
+    private static final Set<PendingChunk> pendingChunks = new LinkedHashSet<>();
+    
+    private ContainerInvalidator() {
+    }
+    
+    /**
+     * A container block entity is going away, either because it was broken or because its chunk unloads
+     * Checked on a later tick, when the two cases can be told apart by whether the chunk is still loaded
+     */
+    public static void blockEntityUnloaded(World world, BlockPos pos) {
+        pendingPositions.add(new PendingPosition(DimensionIndex.of(world), pos.toImmutable()));
+    }
+    
+    /**
+     * A chunk arrived: its remembered containers may have been broken while it was out of range
+     */
+    public static void chunkLoaded(World world, ChunkPos pos) {
+        pendingChunks.add(new PendingChunk(DimensionIndex.of(world), pos));
+    }
+    
+    /**
+     * Work off a batch of queued checks, called every client tick
+     */
+    public static void tick(MinecraftClient client) {
+        ClientWorld world = client.world;
+        if (world == null) {
+            clear();
+            return;
+        }
+        if (!PersistentMemoryManager.isReady() || !ClientMemoryManager.getInstance().isReady()) return;
+        
+        int dimension = DimensionIndex.of(world);
+        String dimensionId = DimensionIndex.id(dimension);
+        List<PendingChunk> deferredChunks = new ArrayList<>();
+        Iterator<PendingChunk> chunks = pendingChunks.iterator();
+        for (int i = 0; i < CHUNKS_PER_TICK && chunks.hasNext(); i++) {
+            PendingChunk chunk = chunks.next();
+            chunks.remove();
+            if (chunk.dimension() == dimension && !checkChunk(world, dimensionId, chunk.pos())) {
+                deferredChunks.add(chunk);
+            }
+        }
+        pendingChunks.addAll(deferredChunks);
+        
+        List<PendingPosition> deferredPositions = new ArrayList<>();
+        Iterator<PendingPosition> positions = pendingPositions.iterator();
+        for (int i = 0; i < POSITIONS_PER_TICK && positions.hasNext(); i++) {
+            PendingPosition position = positions.next();
+            positions.remove();
+            if (position.dimension() == dimension && !checkPosition(world, dimensionId, position.pos())) {
+                deferredPositions.add(position);
+            }
+        }
+        pendingPositions.addAll(deferredPositions);
+    }
+    
+    /**
+     * Forget queued checks, e.g. when leaving a world
+     */
+    public static void clear() {
+        pendingPositions.clear();
+        pendingChunks.clear();
+    }
+    
+    /**
+     * @return false if the chunk's memories are still being read, so it is checked again later
+     */
+    private static boolean checkChunk(ClientWorld world, String dimension, ChunkPos chunk) {
+        if (!world.getChunkManager().isChunkLoaded(chunk.x, chunk.z)) return true;
+        if (!PersistentMemoryManager.isChunkReady(dimension, chunk.x, chunk.z)) return false;
+        
+        boolean done = true;
+        for (ContainerKey containerId : PersistentMemoryManager.containerIdsInChunk(dimension, chunk.x, chunk.z)) {
+            if (isGone(world, containerId.pos()) && !PersistentMemoryManager.parkContainer(containerId)) {
+                done = false;
+            }
+        }
+        for (BlockPos pos : ClientMemoryManager.getInstance().positionsInChunk(dimension, chunk.x, chunk.z)) {
+            if (isGone(world, pos)) {
+                ClientMemoryManager.getInstance().clearContainerMemory(world, pos);
+            }
+        }
+        return done;
+    }
+    
+    /**
+     * @return false if the position's memories are still being read, so it is checked again later
+     */
+    private static boolean checkPosition(ClientWorld world, String dimension, BlockPos pos) {
+        if (!isGone(world, pos)) return true;
+        if (!PersistentMemoryManager.isChunkReady(dimension, pos.getX() >> 4, pos.getZ() >> 4)) return false;
+        
+        boolean done = true;
+        for (ContainerKey containerId : PersistentMemoryManager.containerIdsAt(dimension, pos)) {
+            if (!PersistentMemoryManager.parkContainer(containerId)) {
+                done = false;
+            }
+        }
+        ClientMemoryManager.getInstance().clearContainerMemory(world, pos);
+        return done;
+    }
+    
+    /**
+     * Whether a loaded position has lost its block entity; unloaded chunks tell nothing
+     */
+    private static boolean isGone(ClientWorld world, BlockPos pos) {
+        return world.getChunkManager().isChunkLoaded(pos.getX() >> 4, pos.getZ() >> 4) && world.getBlockEntity(pos) == null;
+    }
+}
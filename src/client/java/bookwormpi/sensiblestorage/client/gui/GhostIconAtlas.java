@@ -0,0 +1,222 @@
+package bookwormpi.sensiblestorage.client.gui;
+
+import bookwormpi.sensiblestorage.SensibleStorage;
+import com.google.common.collect.MapMaker;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.gui.DrawContext;
+import net.minecraft.client.render.RenderLayer;
+import net.minecraft.client.texture.NativeImage;
+import net.minecraft.client.texture.NativeImageBackedTexture;
+import net.minecraft.item.ItemStack;
+import net.minecraft.registry.Registries;
+import net.minecraft.resource.Resource;
+import net.minecraft.resource.ResourceManager;
+import net.minecraft.util.Identifier;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Texture atlas of baked ghost icons: each template's flat item texture with the ghost
+ * overlay already blended in, so a ghost is one textured quad instead of an item model
+ * render plus a fill
+ *
+ * Icons are baked on the CPU from the item's own resources, which only works for flat
+ * single-layer, single-frame item models without tints, glint or component changes, so no
+ * baked icon ever freezes an animation; everything else
+ * reports no cell and is drawn with {@code drawItem} as before. Cells are keyed by interned
+ * template and reused least-recently-used once the atlas is full. The atlas is cleared on
+ * resource reload, since a resource pack can change any texture. Render thread only.
+ */
+public final class GhostIconAtlas {
+    private static final Identifier TEXTURE_ID = Identifier.of(SensibleStorage.MOD_ID, "ghost_icons");
+    private static final int ICON_SIZE = 16;
+    private static final int ATLAS_SIZE = 256;
+    private static final int CELLS_PER_ROW = ATLAS_SIZE / ICON_SIZE;
+    private static final int MAX_CELLS = CELLS_PER_ROW * CELLS_PER_ROW;
+    
+    // Interned templates are compared by identity, which is what ItemStack's equals does
+    private static final Map<ItemStack, Integer> cells = new LinkedHashMap<>(16, 0.75f, true);
+    // Weak identity set, so templates no container uses any more can still be collected
+    private static final Set<ItemStack> unbakeable = Collections.newSetFromMap(new MapMaker().weakKeys().makeMap());
+    
+    private static NativeImageBackedTexture texture;
+    private static boolean dirty;
+    private static int generation;
+    
+    private GhostIconAtlas() {
+    }
+    
+    /**
+     * Changes whenever a cell is reassigned or the atlas is cleared, so cached cells must be looked up again
+     */
+    public static int generation() {
+        return generation;
+    }
+    
+    /**
+     * Atlas cell holding the baked icon of an interned template, baking it on first use; -1 to fall back to drawItem
+     */
+    public static int cellOf(ItemStack template) {
+        Integer cell = cells.get(template);
+        if (cell != null) return cell;
+        if (unbakeable.contains(template)) return -1;
+        
+        NativeImage icon = bake(template);
+        if (icon == null) {
+            unbakeable.add(template);
+            return -1;
+        }
+        
+        try (icon) {
+            int slot = cells.size();
+            if (slot >= MAX_CELLS) {
+                // Reuse the least recently drawn icon's cell
+                Map.Entry<ItemStack, Integer> eldest = cells.entrySet().iterator().next();
+                slot = eldest.getValue();
+                cells.remove(eldest.getKey());
+                generation++;
+            }
+            
+            NativeImage atlas = texture().getImage();
+            int originX = (slot % CELLS_PER_ROW) * ICON_SIZE;
+            int originY = (slot / CELLS_PER_ROW) * ICON_SIZE;
+            for (int y = 0; y < ICON_SIZE; y++) {
+                for (int x = 0; x < ICON_SIZE; x++) {
+                    atlas.setColorArgb(originX + x, originY + y, withGhostOverlay(icon.getColorArgb(x, y)));
+                }
+            }
+            cells.put(template, slot);
+            dirty = true;
+            return slot;
+        }
+    }
+    
+    /**
+     * Draw a baked icon; the cell must come from {@link #cellOf} in the same generation
+     */
+    public static void draw(DrawContext context, int cell, int x, int y) {
+        if (dirty) {
+            texture.upload();
+            dirty = false;
+        }
+        context.drawTexture(RenderLayer::getGuiTextured, TEXTURE_ID, x, y,
+            (cell % CELLS_PER_ROW) * ICON_SIZE, (cell / CELLS_PER_ROW) * ICON_SIZE,
+            ICON_SIZE, ICON_SIZE, ATLAS_SIZE, ATLAS_SIZE);
+    }
+    
+    /**
+     * Copy a baked icon into another image, each texel scaled up to a square of scale pixels
+     * The cell must come from {@link #cellOf} in the same generation
+     */
+    static void copyIcon(int cell, NativeImage target, int x, int y, int scale) {
+        NativeImage atlas = texture().getImage();
+        int originX = (cell % CELLS_PER_ROW) * ICON_SIZE;
+        int originY = (cell / CELLS_PER_ROW) * ICON_SIZE;
+        for (int v = 0; v < ICON_SIZE * scale; v++) {
+            for (int u = 0; u < ICON_SIZE * scale; u++) {
+                target.setColorArgb(x + u, y + v, atlas.getColorArgb(originX + u / scale, originY + v / scale));
+            }
+        }
+    }
+    
+    /**
+     * Forget every baked icon (resource reload)
+     */
+    public static void clear() {
+        cells.clear();
+        unbakeable.clear();
+        generation++;
+    }
+    
+    private static NativeImageBackedTexture texture() {
+        if (texture == null) {
+            texture = new NativeImageBackedTexture(() -> "Sensible Storage ghost icons", new NativeImage(ATLAS_SIZE, ATLAS_SIZE, true));
+            MinecraftClient.getInstance().getTextureManager().registerTexture(TEXTURE_ID, texture);
+        }
+        return texture;
+    }
+    
+    /**
+     * The ghost overlay (50% white over the whole slot) composited onto one icon pixel,
+     * so drawing the result over the slot looks the same as drawing the item and then the overlay
+     */
+    private static int withGhostOverlay(int argb) {
+        float overlayAlpha = (GhostRenderPlan.GHOST_OVERLAY >>> 24) / 255f;
+        float iconAlpha = (argb >>> 24) / 255f;
+        float alpha = overlayAlpha + iconAlpha * (1 - overlayAlpha);
+        
+        int color = 0;
+        for (int shift = 0; shift <= 16; shift += 8) {
+            float overlay = ((GhostRenderPlan.GHOST_OVERLAY >> shift) & 0xFF) * overlayAlpha;
+            float icon = ((argb >> shift) & 0xFF) * iconAlpha * (1 - overlayAlpha);
+            color |= Math.min(255, Math.round((overlay + icon) / alpha)) << shift;
+        }
+        return Math.round(alpha * 255) << 24 | color;
+    }
+    
+    /**
+     * Read the template's 16x16 item texture, or null when its model is anything other than
+     * one flat, untinted, unanimated layer
+     */
+    private static NativeImage bake(ItemStack template) {
+        if (!template.getComponentChanges().isEmpty() || template.hasGlint()) return null;
+        
+        ResourceManager resources = MinecraftClient.getInstance().getResourceManager();
+        Identifier itemId = Registries.ITEM.getId(template.getItem());
+        try {
+            JsonObject definition = readJson(resources, itemId.withPath(path -> "items/" + path + ".json"));
+            JsonObject model = definition != null && definition.get("model") instanceof JsonObject object ? object : null;
+            if (model == null || !isMinecraft(model.get("type"), "model") || model.has("tints")) return null;
+            
+            Identifier modelId = Identifier.tryParse(model.get("model").getAsString());
+            JsonObject modelJson = modelId != null ? readJson(resources, modelId.withPath(path -> "models/" + path + ".json")) : null;
+            if (modelJson == null || modelJson.has("elements") || modelJson.has("display")) return null;
+            if (!isMinecraft(modelJson.get("parent"), "item/generated") && !isMinecraft(modelJson.get("parent"), "item/handheld")) return null;
+            
+            JsonObject textures = modelJson.get("textures") instanceof JsonObject object ? object : null;
+            if (textures == null || textures.size() != 1 || !textures.has("layer0")) return null;
+            Identifier textureId = Identifier.tryParse(textures.get("layer0").getAsString());
+            if (textureId == null) return null;
+            
+            Optional<Resource> resource = resources.getResource(textureId.withPath(path -> "textures/" + path + ".png"));
+            if (resource.isEmpty()) return null;
+            try (InputStream in = resource.get().getInputStream()) {
+                NativeImage image = NativeImage.read(in);
+                // Higher resolution packs fall back to drawItem rather than being downscaled, and
+                // animated textures (frames stacked vertically) to drawItem so they keep animating
+                if (image.getWidth() != ICON_SIZE || image.getHeight() != ICON_SIZE) {
+                    image.close();
+                    return null;
+                }
+                return image;
+            }
+        } catch (IOException | RuntimeException e) {
+            SensibleStorage.LOGGER.debug("Drawing ghost of {} as an item model: {}", itemId, e.toString());
+            return null;
+        }
+    }
+    
+    private static JsonObject readJson(ResourceManager resources, Identifier id) throws IOException {
+        Optional<Resource> resource = resources.getResource(id);
+        if (resource.isEmpty()) return null;
+        try (Reader reader = resource.get().getReader()) {
+            return JsonParser.parseReader(reader) instanceof JsonObject object ? object : null;
+        }
+    }
+    
+    private static boolean isMinecraft(JsonElement element, String path) {
+        if (element == null || !element.isJsonPrimitive()) return false;
+        Identifier id = Identifier.tryParse(element.getAsString());
+        return id != null && id.getNamespace().equals(Identifier.DEFAULT_NAMESPACE) && id.getPath().equals(path);
+    }
+}
@@ -0,0 +1,93 @@
+package bookwormpi.sensiblestorage.client.gui;
+
+import bookwormpi.sensiblestorage.SensibleStorage;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.gui.DrawContext;
+import net.minecraft.client.render.RenderLayer;
+import net.minecraft.client.texture.NativeImage;
+import net.minecraft.client.texture.NativeImageBackedTexture;
+import net.minecraft.util.Identifier;
+
+/**
+ * Offscreen copy of the open screen's ghost layer (the cacheGhostLayer option): the baked
+ * icons and memorize highlights composited into one texture and drawn as a single quad
+ *
+ * GUI render layers always draw into the main framebuffer, so the layer is composited on the
+ * CPU from the {@link GhostIconAtlas} icons rather than rendered into a separate target. It is
+ * kept at the window's pixel resolution, so a GUI scale change recomposites it like a template
+ * or slot change does. Ghosts without a baked icon (glint, animated textures, item models) are
+ * never part of it and stay live. One screen is open at a time, so one texture is shared.
+ * Render thread only.
+ */
+final class GhostLayerCache {
+    private static final Identifier TEXTURE_ID = Identifier.of(SensibleStorage.MOD_ID, "ghost_layer");
+    
+    private static NativeImageBackedTexture texture;
+    // What the texture currently holds: whose layer, which version of it and at which GUI scale
+    private static Object owner;
+    private static int version;
+    private static int scale;
+    private static int x;
+    private static int y;
+    private static int width;
+    private static int height;
+    private static boolean dirty;
+    
+    private GhostLayerCache() {
+    }
+    
+    /**
+     * Whether the texture holds this version of a layer at this GUI scale
+     */
+    static boolean isCurrent(Object layerOwner, int layerVersion, int guiScale) {
+        return texture != null && owner == layerOwner && version == layerVersion && scale == guiScale;
+    }
+    
+    /**
+     * Start compositing a layer covering the given rectangle of GUI units
+     *
+     * @return a cleared image of the rectangle with guiScale pixels per unit, uploaded on the next draw
+     */
+    static NativeImage begin(Object layerOwner, int layerVersion, int guiScale, int left, int top, int layerWidth, int layerHeight) {
+        int pixelWidth = layerWidth * guiScale;
+        int pixelHeight = layerHeight * guiScale;
+        NativeImage image = texture != null ? texture.getImage() : null;
+        if (image == null || image.getWidth() != pixelWidth || image.getHeight() != pixelHeight) {
+            // Registering under the same id closes the previous texture
+            image = new NativeImage(pixelWidth, pixelHeight, true);
+            texture = new NativeImageBackedTexture(() -> "Sensible Storage ghost layer", image);
+            MinecraftClient.getInstance().getTextureManager().registerTexture(TEXTURE_ID, texture);
+        } else {
+            fill(image, 0, 0, pixelWidth, pixelHeight, 0);
+        }
+        
+        owner = layerOwner;
+        version = layerVersion;
+        scale = guiScale;
+        x = left;
+        y = top;
+        width = layerWidth;
+        height = layerHeight;
+        dirty = true;
+        return image;
+    }
+    
+    static void fill(NativeImage image, int left, int top, int fillWidth, int fillHeight, int argb) {
+        for (int row = top; row < top + fillHeight; row++) {
+            for (int column = left; column < left + fillWidth; column++) {
+                image.setColorArgb(column, row, argb);
+            }
+        }
+    }
+    
+    /**
+     * Draw the composited layer; {@link #begin} must have been called for it
+     */
+    static void draw(DrawContext context) {
+        if (dirty) {
+            texture.upload();
+            dirty = false;
+        }
+        context.drawTexture(RenderLayer::getGuiTextured, TEXTURE_ID, x, y, 0, 0, width, height, width, height);
+    }
+}
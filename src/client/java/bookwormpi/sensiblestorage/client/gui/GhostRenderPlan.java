@@ -0,0 +1,209 @@
+package bookwormpi.sensiblestorage.client.gui;
+
+import bookwormpi.sensiblestorage.client.config.SensibleStorageConfig;
+import bookwormpi.sensiblestorage.client.memory.MemoryContext;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.gui.DrawContext;
+import net.minecraft.client.texture.NativeImage;
+import net.minecraft.item.ItemStack;
+import net.minecraft.screen.ScreenHandler;
+import net.minecraft.screen.slot.Slot;
+
+import java.util.Arrays;
+
+/**
+ * What to draw over each container slot of an open screen: the ghost template, or the
+ * memorize-mode highlight for slots without one
+ *
+ * Built from the screen's {@link MemoryContext} and rebuilt only when its version changes,
+ * so the per-slot draw hook is a single array read. Whether a slot is empty is read live
+ * from the slot, since stacks change without going through the context.
+ *
+ * The plan also keeps the ghost layer: the slots that currently show something, rebuilt only
+ * when templates or slot emptiness change, so the whole layer can be drawn in one pass with
+ * all items first and all overlays after, instead of alternating per slot. Ghosts with a baked
+ * {@link GhostIconAtlas} icon are a single quad with the overlay already applied.
+ *
+ * With the cacheGhostLayer option, the baked icons and highlights are instead composited once
+ * into a {@link GhostLayerCache} texture and drawn as one quad. It is recomposited only when the
+ * layer, the atlas or the GUI scale changes; ghosts without a baked icon are still drawn live.
+ */
+public final class GhostRenderPlan {
+    public static final int GHOST_OVERLAY = 0x80FFFFFF; // 50% transparent white
+    public static final int MEMORIZE_HIGHLIGHT = 0x4000FF00; // Green highlight
+    
+    private final MemoryContext context;
+    // Indexed by slot id; null where the slot has no template
+    private final ItemStack[] ghosts;
+    private final boolean[] empty;
+    private final int[] layer;
+    // Atlas cell of each layer entry's ghost, -1 for ghosts drawn as items and for highlights
+    private final int[] layerCells;
+    private int layerSize;
+    // Bumped whenever the layer or its atlas cells change, so a composited copy knows it is stale
+    private int layerVersion;
+    private int atlasGeneration = -1;
+    private int lastDrawnSlot = -1;
+    private boolean highlightEmpty;
+    private int builtVersion = -1;
+    
+    public GhostRenderPlan(MemoryContext context) {
+        this.context = context;
+        this.ghosts = new ItemStack[context.containerSlots()];
+        this.empty = new boolean[ghosts.length];
+        this.layer = new int[ghosts.length];
+        this.layerCells = new int[ghosts.length];
+    }
+    
+    /**
+     * Rebuild if templates, memorize mode or slot emptiness changed; called once per frame
+     */
+    public void refresh(ScreenHandler handler) {
+        boolean changed = false;
+        int version = context.version();
+        if (version != builtVersion) {
+            for (int slot = 0; slot < ghosts.length; slot++) {
+                ItemStack template = context.template(slot);
+                ghosts[slot] = template.isEmpty() ? null : template;
+            }
+            highlightEmpty = context.isMemorizeMode();
+            builtVersion = version;
+            changed = true;
+        }
+        
+        int slotCount = Math.min(ghosts.length, handler.slots.size());
+        int lastEnabled = -1;
+        for (int slotId = 0; slotId < slotCount; slotId++) {
+            Slot slot = handler.slots.get(slotId);
+            boolean isEmpty = slot.getStack().isEmpty();
+            if (isEmpty != empty[slotId]) {
+                empty[slotId] = isEmpty;
+                changed = true;
+            }
+            if (slot.isEnabled()) lastEnabled = slotId;
+        }
+        
+        if (changed || lastEnabled != lastDrawnSlot) {
+            lastDrawnSlot = lastEnabled;
+            layerSize = 0;
+            for (int slotId = 0; slotId < slotCount; slotId++) {
+                if (empty[slotId] && (ghosts[slotId] != null || highlightEmpty)) {
+                    layer[layerSize++] = slotId;
+                }
+            }
+            atlasGeneration = -1;
+            layerVersion++;
+        }
+    }
+    
+    /**
+     * Look the layer's icons up in the atlas again after it changed
+     */
+    private void resolveCells() {
+        if (atlasGeneration == GhostIconAtlas.generation()) return;
+        
+        layerVersion++;
+        // Baking can reassign cells looked up earlier in the same pass, so a second pass settles them;
+        // only a layer with more distinct templates than atlas cells keeps evicting, and draws item models
+        for (int attempt = 0; attempt < 2; attempt++) {
+            int generation = GhostIconAtlas.generation();
+            for (int i = 0; i < layerSize; i++) {
+                ItemStack ghost = ghosts[layer[i]];
+                layerCells[i] = ghost != null ? GhostIconAtlas.cellOf(ghost) : -1;
+            }
+            if (generation == GhostIconAtlas.generation()) {
+                atlasGeneration = generation;
+                return;
+            }
+        }
+        Arrays.fill(layerCells, 0, layerSize, -1);
+        atlasGeneration = GhostIconAtlas.generation();
+    }
+    
+    /**
+     * Ghost to draw in an empty slot, or null for player inventory slots and slots without a template
+     */
+    public ItemStack ghost(int slotId) {
+        return slotId >= 0 && slotId < ghosts.length ? ghosts[slotId] : null;
+    }
+    
+    /**
+     * Whether an empty container slot without a template is highlighted as able to receive one
+     */
+    public boolean highlights(int slotId) {
+        return highlightEmpty && slotId >= 0 && slotId < ghosts.length && ghosts[slotId] == null;
+    }
+    
+    /**
+     * The last container slot the screen draws; the batched layer is drawn right after it,
+     * still inside the screen's slot transform
+     */
+    public boolean isLastDrawnSlot(int slotId) {
+        return slotId == lastDrawnSlot;
+    }
+    
+    /**
+     * Draw the whole ghost layer: baked icons and item models first, then every remaining
+     * overlay, so the icons and the overlays each share one batch
+     * With cacheGhostLayer the baked icons and highlights come from one composited quad instead
+     */
+    public void drawLayer(DrawContext drawContext, ScreenHandler handler) {
+        resolveCells();
+        boolean cached = SensibleStorageConfig.get().cacheGhostLayer && layerSize > 0;
+        if (cached) {
+            drawComposited(drawContext, handler);
+        }
+        for (int i = 0; i < layerSize; i++) {
+            int slotId = layer[i];
+            Slot slot = handler.slots.get(slotId);
+            if (layerCells[i] >= 0) {
+                if (!cached) {
+                    GhostIconAtlas.draw(drawContext, layerCells[i], slot.x, slot.y);
+                }
+            } else if (ghosts[slotId] != null) {
+                drawContext.drawItem(ghosts[slotId], slot.x, slot.y);
+            }
+        }
+        for (int i = 0; i < layerSize; i++) {
+            int slotId = layer[i];
+            if (layerCells[i] >= 0 || cached && ghosts[slotId] == null) continue;
+            Slot slot = handler.slots.get(slotId);
+            int color = ghosts[slotId] != null ? GHOST_OVERLAY : MEMORIZE_HIGHLIGHT;
+            drawContext.fill(slot.x, slot.y, slot.x + 16, slot.y + 16, color);
+        }
+    }
+    
+    /**
+     * Draw the baked icons and highlights as one quad, compositing them again first if the layer,
+     * the atlas or the GUI scale changed since the last time
+     */
+    private void drawComposited(DrawContext drawContext, ScreenHandler handler) {
+        int scale = Math.max(1, (int) Math.round(MinecraftClient.getInstance().getWindow().getScaleFactor()));
+        if (!GhostLayerCache.isCurrent(this, layerVersion, scale)) {
+            int left = Integer.MAX_VALUE;
+            int top = Integer.MAX_VALUE;
+            int right = Integer.MIN_VALUE;
+            int bottom = Integer.MIN_VALUE;
+            for (int i = 0; i < layerSize; i++) {
+                Slot slot = handler.slots.get(layer[i]);
+                left = Math.min(left, slot.x);
+                top = Math.min(top, slot.y);
+                right = Math.max(right, slot.x + 16);
+                bottom = Math.max(bottom, slot.y + 16);
+            }
+            
+            NativeImage image = GhostLayerCache.begin(this, layerVersion, scale, left, top, right - left, bottom - top);
+            for (int i = 0; i < layerSize; i++) {
+                Slot slot = handler.slots.get(layer[i]);
+                int x = (slot.x - left) * scale;
+                int y = (slot.y - top) * scale;
+                if (layerCells[i] >= 0) {
+                    GhostIconAtlas.copyIcon(layerCells[i], image, x, y, scale);
+                } else if (ghosts[layer[i]] == null) {
+                    GhostLayerCache.fill(image, x, y, 16 * scale, 16 * scale, MEMORIZE_HIGHLIGHT);
+                }
+            }
+        }
+        GhostLayerCache.draw(drawContext);
+    }
+}
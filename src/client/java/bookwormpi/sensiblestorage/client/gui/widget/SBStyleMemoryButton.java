@@ -1,13 +1,11 @@
 package bookwormpi.sensiblestorage.client.gui.widget;
 
-import bookwormpi.sensiblestorage.client.memory.EnhancedSBStyleMemoryManager;
+import bookwormpi.sensiblestorage.client.memory.MemoryContext;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.gui.DrawContext;
 import net.minecraft.client.gui.screen.ingame.HandledScreen;
 import net.minecraft.client.gui.widget.ButtonWidget;
 import net.minecraft.text.Text;
-import net.minecraft.util.math.BlockPos;
-import net.minecraft.world.World;
 
 /**
  * A SophisticatedBackpacks-style memory button with brain icon
@@ -21,29 +19,22 @@ public class SBStyleMemoryButton extends ButtonWidget {
     private static final int HOVERED_INACTIVE = 0xFF_777777;    // Lighter gray when hovered
     private static final int HOVERED_ACTIVE = 0xFF_5FA848;      // Lighter green when hovered
     
-    private final World world;
-    private final BlockPos containerPos;
     private final HandledScreen<?> parentScreen;
     
-    public SBStyleMemoryButton(int x, int y, World world, BlockPos containerPos, HandledScreen<?> parentScreen) {
+    public SBStyleMemoryButton(int x, int y, HandledScreen<?> parentScreen) {
         super(x, y, 16, 16, Text.translatable("sensiblestorage.gui.memory_mode_toggle"), 
               button -> {}, DEFAULT_NARRATION_SUPPLIER);
         
-        this.world = world;
-        this.containerPos = containerPos;
         this.parentScreen = parentScreen;
     }
     
     @Override
     public void onPress() {
         // Toggle memorization mode for this container
-        String containerId = EnhancedSBStyleMemoryManager.createContainerId(
-            parentScreen.getClass().getSimpleName(), 
-            parentScreen.getScreenHandler().syncId, 
-            containerPos
-        );
+        MemoryContext context = MemoryContext.of(parentScreen.getScreenHandler());
+        if (context == null) return;
         
-        boolean newMode = EnhancedSBStyleMemoryManager.toggleMemorizeMode(containerId);
+        boolean newMode = context.toggleMemorizeMode();
         
         // Optional: Play a sound or provide feedback
         // MinecraftClient.getInstance().player.playSound(SoundEvents.UI_BUTTON_CLICK, 0.5f, 1.0f);
@@ -53,13 +44,9 @@ public class SBStyleMemoryButton extends ButtonWidget {
      * Check if memorization mode is active for this container
      */
     private boolean isMemoryActive() {
-        // Create container ID and check if memorization mode is enabled
-        String containerId = EnhancedSBStyleMemoryManager.createContainerId(
-            parentScreen.getClass().getSimpleName(), 
-            parentScreen.getScreenHandler().syncId, 
-            containerPos
-        );
-        return EnhancedSBStyleMemoryManager.isMemorizeMode(containerId);
+        // The screen attaches the container's memory context to its handler when it opens
+        MemoryContext context = MemoryContext.of(parentScreen.getScreenHandler());
+        return context != null && context.isMemorizeMode();
     }
     
     @Override
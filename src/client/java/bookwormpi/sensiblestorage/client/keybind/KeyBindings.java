@@ -1,5 +1,6 @@
 package bookwormpi.sensiblestorage.client.keybind;
 
+import bookwormpi.sensiblestorage.client.container.ContainerHighlighter;
 import bookwormpi.sensiblestorage.client.container.ContainerTracker;
 import bookwormpi.sensiblestorage.client.gui.MemoryConfigScreen;
 import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientTickEvents;
@@ -29,11 +30,24 @@ public class KeyBindings {
         "category.sensiblestorage.keybinds"
     ));
     
+    // Unbound by default; every convenient key is taken by vanilla
+    public static final KeyBinding FIND_CONTAINERS = KeyBindingHelper.registerKeyBinding(new KeyBinding(
+        "key.sensiblestorage.find_containers",
+        InputUtil.Type.KEYSYM,
+        GLFW.GLFW_KEY_UNKNOWN,
+        "category.sensiblestorage.keybinds"
+    ));
+    
     public static void initialize() {
         ClientTickEvents.END_CLIENT_TICK.register(client -> {
             while (CONFIGURE_MEMORY.wasPressed()) {
                 handleConfigureMemoryKey(client);
             }
+            while (FIND_CONTAINERS.wasPressed()) {
+                if (client.player != null) {
+                    client.player.sendMessage(ContainerHighlighter.findForHeldItem(client), true);
+                }
+            }
         });
         
     }
@@ -0,0 +1,259 @@
+package bookwormpi.sensiblestorage.client.memory;
+
+import bookwormpi.sensiblestorage.client.memory.storage.BinaryInput;
+import bookwormpi.sensiblestorage.client.memory.storage.BinaryOutput;
+import bookwormpi.sensiblestorage.client.memory.storage.ShardKey;
+import bookwormpi.sensiblestorage.memory.DimensionIndex;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Identifies one container's memory: a container type, dimension and packed block position,
+ * or, for containers without a known position, the screen class and sync ID of the session
+ *
+ * Keys are built on every slot and render lookup, so building one never formats a string:
+ * dimensions are held as their shared {@link DimensionIndex} index, screen classes map to a type
+ * through a cache, and the hash is computed once. The old "type_dimension_x_y_z" string
+ * form is only produced for JSON files and only parsed when reading older files.
+ */
+public final class ContainerKey implements Comparable<ContainerKey> {
+    /**
+     * Container types; the ordinal is stored in binary shards and journals, so only append
+     */
+    public enum Type {
+        CHEST("chest"),
+        SHULKER_BOX("shulker_box"),
+        BARREL("barrel"),
+        HOPPER("hopper"),
+        DISPENSER("dispenser"),
+        DROPPER("dropper"),
+        FURNACE("furnace"),
+        CONTAINER("container");
+        
+        private static final Type[] VALUES = values();
+        private static final Map<String, Type> SCREEN_TYPES = new ConcurrentHashMap<>();
+        private final String id;
+        
+        Type(String id) {
+            this.id = id;
+        }
+        
+        public String id() {
+            return id;
+        }
+        
+        /**
+         * Type of a container screen, from its class name
+         */
+        public static Type ofScreenClass(String screenClassName) {
+            return SCREEN_TYPES.computeIfAbsent(screenClassName, Type::parseScreenClass);
+        }
+        
+        private static Type parseScreenClass(String screenClassName) {
+            String simplified = screenClassName.toLowerCase();
+            if (simplified.contains("chest")) return CHEST;
+            if (simplified.contains("shulker")) return SHULKER_BOX;
+            if (simplified.contains("barrel")) return BARREL;
+            if (simplified.contains("hopper")) return HOPPER;
+            if (simplified.contains("dispenser")) return DISPENSER;
+            if (simplified.contains("dropper")) return DROPPER;
+            if (simplified.contains("furnace")) return FURNACE;
+            return CONTAINER;
+        }
+        
+        static Type byOrdinal(int ordinal) throws IOException {
+            if (ordinal < 0 || ordinal >= VALUES.length) {
+                throw new IOException("Unknown container type " + ordinal);
+            }
+            return VALUES[ordinal];
+        }
+    }
+    
+    // Longest type IDs first, so "shulker_box_..." is never read as a type followed by "box_..."
+    private static final Type[] TYPES_BY_ID_LENGTH = Type.values().clone();
+    
+    static {
+        Arrays.sort(TYPES_BY_ID_LENGTH, Comparator.comparingInt((Type type) -> type.id.length()).reversed());
+    }
+    
+    // Dimension index of session keys, which have no dimension
+    private static final int NO_DIMENSION = -1;
+    
+    // Sorted by dimension ID rather than index, so files are written in the same order every session
+    private static final Comparator<ContainerKey> ORDER = Comparator.comparing(ContainerKey::dimension)
+        .thenComparingLong(key -> key.packedPos)
+        .thenComparing(key -> key.type)
+        .thenComparing(key -> key.sessionName)
+        .thenComparingInt(key -> key.syncId);
+    
+    private final Type type;
+    private final int dimension;
+    private final long packedPos;
+    private final String sessionName;
+    private final int syncId;
+    private final int hash;
+    
+    private ContainerKey(Type type, int dimension, long packedPos, String sessionName, int syncId) {
+        this.type = type;
+        this.dimension = dimension;
+        this.packedPos = packedPos;
+        this.sessionName = sessionName;
+        this.syncId = syncId;
+        
+        int h = type.ordinal();
+        h = 31 * h + dimension;
+        h = 31 * h + Long.hashCode(packedPos);
+        h = 31 * h + sessionName.hashCode();
+        this.hash = 31 * h + syncId;
+    }
+    
+    /**
+     * Key of a container block
+     */
+    public static ContainerKey of(Type type, String dimension, BlockPos pos) {
+        return new ContainerKey(type, DimensionIndex.of(dimension), pos.asLong(), "", 0);
+    }
+    
+    /**
+     * Key of a container block in the given world, without building its dimension ID
+     */
+    public static ContainerKey of(Type type, World world, BlockPos pos) {
+        return new ContainerKey(type, DimensionIndex.of(world), pos.asLong(), "", 0);
+    }
+    
+    /**
+     * Key of a container screen whose block position is unknown, only meaningful for its session
+     */
+    public static ContainerKey session(String screenClassName, int syncId) {
+        return new ContainerKey(Type.CONTAINER, NO_DIMENSION, 0, screenClassName, syncId);
+    }
+    
+    public boolean isPositioned() {
+        return sessionName.isEmpty();
+    }
+    
+    public Type type() {
+        return type;
+    }
+    
+    public String dimension() {
+        return dimension == NO_DIMENSION ? "" : DimensionIndex.id(dimension);
+    }
+    
+    /**
+     * {@link BlockPos#asLong()} of the container, 0 for session keys
+     */
+    public long packedPos() {
+        return packedPos;
+    }
+    
+    public BlockPos pos() {
+        return isPositioned() ? BlockPos.fromLong(packedPos) : null;
+    }
+    
+    /**
+     * Region shard holding this container; session keys share the unpositioned shard
+     */
+    public ShardKey shard() {
+        return isPositioned()
+            ? ShardKey.of(dimension(), BlockPos.unpackLongX(packedPos), BlockPos.unpackLongZ(packedPos))
+            : ShardKey.UNPOSITIONED;
+    }
+    
+    /**
+     * The "type_dimension_x_y_z" (or "screenClass_syncId") form used by JSON files and older binary files
+     */
+    public String toLegacyId() {
+        if (!isPositioned()) {
+            return syncId >= 0 ? sessionName + "_" + syncId : sessionName;
+        }
+        return String.format("%s_%s_%d_%d_%d", type.id, dimension(), BlockPos.unpackLongX(packedPos),
+            BlockPos.unpackLongY(packedPos), BlockPos.unpackLongZ(packedPos));
+    }
+    
+    /**
+     * Read a legacy string ID; anything that is not a positional ID becomes a session key
+     */
+    public static ContainerKey parseLegacyId(String legacyId) {
+        int zSep = legacyId.lastIndexOf('_');
+        int ySep = zSep > 0 ? legacyId.lastIndexOf('_', zSep - 1) : -1;
+        int xSep = ySep > 0 ? legacyId.lastIndexOf('_', ySep - 1) : -1;
+        if (xSep > 0) {
+            try {
+                BlockPos pos = new BlockPos(Integer.parseInt(legacyId.substring(xSep + 1, ySep)),
+                    Integer.parseInt(legacyId.substring(ySep + 1, zSep)), Integer.parseInt(legacyId.substring(zSep + 1)));
+                String typeAndDimension = legacyId.substring(0, xSep);
+                for (Type type : TYPES_BY_ID_LENGTH) {
+                    if (typeAndDimension.startsWith(type.id + "_")) {
+                        return of(type, typeAndDimension.substring(type.id.length() + 1), pos);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                // Not a positional ID
+            }
+        }
+        
+        if (zSep > 0) {
+            try {
+                return session(legacyId.substring(0, zSep), Integer.parseInt(legacyId.substring(zSep + 1)));
+            } catch (NumberFormatException e) {
+                // Not a screen class and sync ID either
+            }
+        }
+        return new ContainerKey(Type.CONTAINER, NO_DIMENSION, 0, legacyId, -1);
+    }
+    
+    /**
+     * Binary form used by shards and the journal: a kind byte, then type, dimension and packed
+     * position for a container block, or the session name and sync ID
+     */
+    public void write(BinaryOutput out) throws IOException {
+        if (isPositioned()) {
+            out.writeByte(0);
+            out.writeVarInt(type.ordinal());
+            out.writeString(dimension());
+            out.writeLong(packedPos);
+        } else {
+            out.writeByte(1);
+            out.writeString(sessionName);
+            out.writeSignedVarInt(syncId);
+        }
+    }
+    
+    public static ContainerKey read(BinaryInput in) throws IOException {
+        return switch (in.readByte()) {
+            case 0 -> new ContainerKey(Type.byOrdinal(in.readVarInt()), DimensionIndex.of(in.readString()), in.readLong(), "", 0);
+            case 1 -> new ContainerKey(Type.CONTAINER, NO_DIMENSION, 0, in.readString(), in.readSignedVarInt());
+            default -> throw new IOException("Unknown container key kind");
+        };
+    }
+    
+    @Override
+    public int compareTo(ContainerKey other) {
+        return ORDER.compare(this, other);
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ContainerKey other)) return false;
+        return hash == other.hash && packedPos == other.packedPos && syncId == other.syncId && type == other.type
+            && dimension == other.dimension && sessionName.equals(other.sessionName);
+    }
+    
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+    
+    @Override
+    public String toString() {
+        return toLegacyId();
+    }
+}
@@ -1,19 +1,25 @@
 package bookwormpi.sensiblestorage.client.memory;
 
+import bookwormpi.sensiblestorage.SensibleStorage;
+import bookwormpi.sensiblestorage.client.config.SensibleStorageConfig;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.item.ItemStack;
+import net.minecraft.text.Text;
 import net.minecraft.util.math.BlockPos;
 
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Enhanced SB-Style memory manager with optional persistent storage
  * Can work in both session-only and persistent modes
  */
 public class EnhancedSBStyleMemoryManager {
-    private static final Map<String, ItemStack[]> sessionMemory = new HashMap<>();
-    private static final Map<String, Boolean> sessionMemorizeMode = new HashMap<>();
+    // Session memory is never saved, so the least recently used containers are simply forgotten past the cache budget
+    private static final Map<ContainerKey, SparseTemplates> sessionMemory = boundedSessionMap();
+    private static final Map<ContainerKey, Boolean> sessionMemorizeMode = boundedSessionMap();
     
     // Configuration
     private static boolean usePersistentStorage = true;
@@ -32,75 +38,122 @@ public class EnhancedSBStyleMemoryManager {
         isInitialized = true;
     }
     
+    private static <V> Map<ContainerKey, V> boundedSessionMap() {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ContainerKey, V> eldest) {
+                return size() > SensibleStorageConfig.get().memoryCacheMaxContainers;
+            }
+        };
+    }
+    
+    /**
+     * Completes once stored templates can be looked up; until then lookups report no templates
+     */
+    public static CompletableFuture<Void> whenReady() {
+        return usePersistentStorage ? PersistentMemoryManager.whenReady() : CompletableFuture.completedFuture(null);
+    }
+    
+    /**
+     * Whether stored templates can be looked up yet
+     */
+    public static boolean isReady() {
+        return !usePersistentStorage || PersistentMemoryManager.isReady();
+    }
+    
+    /**
+     * Whether a container's stored templates can be looked up yet; if not, they are read in the background
+     */
+    public static boolean isReady(ContainerKey containerId) {
+        return !usePersistentStorage || PersistentMemoryManager.isReady(containerId);
+    }
+    
+    /**
+     * Whether a container's memory can be edited now; while it is still being read from disk the edit
+     * is dropped and the player told so, rather than the client thread waiting for the read
+     */
+    private static boolean editable(ContainerKey containerId) {
+        if (isReady(containerId)) return true;
+        
+        MinecraftClient client = MinecraftClient.getInstance();
+        if (client.player != null) {
+            client.player.sendMessage(Text.translatable("sensiblestorage.message.memory_loading"), true);
+        }
+        return false;
+    }
+    
     /**
      * Create a container ID - tries to create a persistent ID if possible, falls back to session ID
      */
-    public static String createContainerId(String screenClassName, int syncId, BlockPos containerPos) {
+    public static ContainerKey createContainerId(String screenClassName, int syncId, BlockPos containerPos) {
         if (usePersistentStorage && containerPos != null) {
             MinecraftClient client = MinecraftClient.getInstance();
             if (client.world != null) {
-                String dimension = client.world.getRegistryKey().getValue().toString();
-                String containerType = extractContainerType(screenClassName);
-                return PersistentMemoryManager.createContainerIdFromPosition(
-                    dimension, containerPos.getX(), containerPos.getY(), containerPos.getZ(), containerType);
+                return ContainerKey.of(ContainerKey.Type.ofScreenClass(screenClassName), client.world, containerPos);
             }
         }
         
         // Fallback to session-based ID
-        return screenClassName + "_" + syncId;
+        return ContainerKey.session(screenClassName, syncId);
     }
     
     /**
-     * Extract container type from screen class name
+     * Get or create memory templates for a container
      */
-    private static String extractContainerType(String screenClassName) {
-        // Extract meaningful container type from class name
-        String simplified = screenClassName.toLowerCase();
-        if (simplified.contains("chest")) return "chest";
-        if (simplified.contains("shulker")) return "shulker_box";
-        if (simplified.contains("barrel")) return "barrel";
-        if (simplified.contains("hopper")) return "hopper";
-        if (simplified.contains("dispenser")) return "dispenser";
-        if (simplified.contains("dropper")) return "dropper";
-        if (simplified.contains("furnace")) return "furnace";
-        return "container";
+    public static SparseTemplates getMemoryTemplates(ContainerKey containerId, int slotCount) {
+        if (usePersistentStorage) {
+            return PersistentMemoryManager.getMemoryTemplates(containerId, slotCount);
+        } else {
+            SparseTemplates templates = sessionMemory.computeIfAbsent(containerId, k -> new SparseTemplates(slotCount));
+            templates.ensureSlots(slotCount);
+            return templates;
+        }
     }
     
     /**
-     * Get or create memory templates for a container
+     * Keep a container's memory in RAM while a screen holds on to it (persistent mode only; session memory is never paged)
      */
-    public static ItemStack[] getMemoryTemplates(String containerId, int slotCount) {
+    static void pin(ContainerKey containerId) {
         if (usePersistentStorage) {
-            return PersistentMemoryManager.getMemoryTemplates(containerId, slotCount);
-        } else {
-            return sessionMemory.computeIfAbsent(containerId, k -> {
-                ItemStack[] templates = new ItemStack[slotCount];
-                for (int i = 0; i < slotCount; i++) {
-                    templates[i] = ItemStack.EMPTY;
-                }
-                return templates;
-            });
+            PersistentMemoryManager.pin(containerId);
+        }
+    }
+    
+    static void unpin(ContainerKey containerId) {
+        if (usePersistentStorage) {
+            PersistentMemoryManager.unpin(containerId);
         }
     }
     
+    /**
+     * Look up memory templates for a container without creating them
+     */
+    static SparseTemplates findMemoryTemplates(ContainerKey containerId) {
+        return usePersistentStorage ? PersistentMemoryManager.getTemplates(containerId) : sessionMemory.get(containerId);
+    }
+    
     /**
      * SB-style memory capture: copy current items to memory templates
      */
-    public static void captureMemory(String containerId, net.minecraft.screen.ScreenHandler handler) {
+    public static void captureMemory(ContainerKey containerId, net.minecraft.screen.ScreenHandler handler) {
+        if (!editable(containerId)) return;
+        
         int containerSlots = Math.max(0, handler.slots.size() - 36); // Exclude player inventory
-        ItemStack[] templates = getMemoryTemplates(containerId, containerSlots);
+        SparseTemplates templates = getMemoryTemplates(containerId, containerSlots);
         
-        // Copy current container contents to memory (SB-style)
+        // Copy current container contents to memory (SB-style), sharing pooled template instances
+        templates.clear();
         for (int i = 0; i < containerSlots; i++) {
             ItemStack current = handler.getSlot(i).getStack();
-            templates[i] = current.isEmpty() ? ItemStack.EMPTY : current.copy();
+            templates.set(i, TemplatePool.intern(current));
         }
         
-        // Mark as modified for persistent storage
+        // Journal the capture as a clear followed by the filled slots
         if (usePersistentStorage) {
-            PersistentMemoryManager.markModified(containerId);
-            // Auto-save after capturing memory
-            PersistentMemoryManager.save();
+            PersistentMemoryManager.recordClear(containerId);
+            for (int slot = templates.nextSlot(0); slot >= 0; slot = templates.nextSlot(slot + 1)) {
+                PersistentMemoryManager.recordSlot(containerId, slot);
+            }
         }
         
     }
@@ -108,24 +161,14 @@ public class EnhancedSBStyleMemoryManager {
     /**
      * Clear all memory templates for a container
      */
-    public static void clearMemory(String containerId) {
-        if (usePersistentStorage) {
-            // Clear from persistent storage
-            ItemStack[] templates = PersistentMemoryManager.getMemoryTemplates(containerId, 0);
-            if (templates != null) {
-                for (int i = 0; i < templates.length; i++) {
-                    templates[i] = ItemStack.EMPTY;
-                }
-                PersistentMemoryManager.markModified(containerId);
-                PersistentMemoryManager.save();
-            }
-        } else {
-            // Clear from session storage
-            ItemStack[] templates = sessionMemory.get(containerId);
-            if (templates != null) {
-                for (int i = 0; i < templates.length; i++) {
-                    templates[i] = ItemStack.EMPTY;
-                }
+    public static void clearMemory(ContainerKey containerId) {
+        if (!editable(containerId)) return;
+        
+        SparseTemplates templates = findMemoryTemplates(containerId);
+        if (templates != null) {
+            templates.clear();
+            if (usePersistentStorage) {
+                PersistentMemoryManager.recordClear(containerId);
             }
         }
         
@@ -134,18 +177,15 @@ public class EnhancedSBStyleMemoryManager {
     /**
      * Check if an item matches the memory template (SB-style matching)
      */
-    public static boolean matchesTemplate(String containerId, int slotIndex, ItemStack stack) {
-        // We need the total container size, not slotIndex + 1
-        ItemStack[] templates = usePersistentStorage ? 
-            PersistentMemoryManager.getMemoryTemplates(containerId, Math.max(54, slotIndex + 1)) :
-            sessionMemory.get(containerId);
-            
-        if (templates == null || slotIndex >= templates.length || templates[slotIndex].isEmpty()) {
+    public static boolean matchesTemplate(ContainerKey containerId, int slotIndex, ItemStack stack) {
+        // Lookups never create or resize memory; a missing slot simply has no template
+        ItemStack template = getTemplate(containerId, slotIndex);
+        if (template.isEmpty()) {
             return true; // No template means allow anything
         }
         
         // SB-style matching
-        return ItemStack.areItemsAndComponentsEqual(templates[slotIndex], stack);
+        return itemMatchesTemplate(template, stack);
     }
     
     /**
@@ -161,80 +201,53 @@ public class EnhancedSBStyleMemoryManager {
             return false; // Can't place empty item if template exists
         }
         
+        // Templates are pooled, so an interned stack matches by identity
+        if (template == item) {
+            return true;
+        }
+        
         // SB-style matching - same item type and components, ignore count
         return ItemStack.areItemsAndComponentsEqual(template, item);
     }
      /**
      * Get memory template for a specific slot
      */
-    public static ItemStack getTemplate(String containerId, int slotIndex) {
-        // We need the total container size, not slotIndex + 1
-        // For persistent storage, we'll use a reasonable default and let it resize if needed
-        ItemStack[] templates = usePersistentStorage ? 
-            PersistentMemoryManager.getMemoryTemplates(containerId, Math.max(54, slotIndex + 1)) :
-            sessionMemory.get(containerId);
-            
-        if (templates == null || slotIndex < 0 || slotIndex >= templates.length) {
-            return ItemStack.EMPTY;
-        }
-
-        ItemStack result = templates[slotIndex];
-        return result;
+    public static ItemStack getTemplate(ContainerKey containerId, int slotIndex) {
+        SparseTemplates templates = findMemoryTemplates(containerId);
+        return templates != null ? templates.get(slotIndex) : ItemStack.EMPTY;
     }
     
     /**
      * Get memory template for a specific slot with known container size
      */
-    public static ItemStack getTemplate(String containerId, int slotIndex, int containerSlots) {
-        ItemStack[] templates = usePersistentStorage ? 
-            PersistentMemoryManager.getMemoryTemplates(containerId, containerSlots) :
-            sessionMemory.get(containerId);
-            
-        if (templates == null || slotIndex < 0 || slotIndex >= templates.length) {
+    public static ItemStack getTemplate(ContainerKey containerId, int slotIndex, int containerSlots) {
+        if (slotIndex >= containerSlots) {
             return ItemStack.EMPTY;
         }
-
-        ItemStack result = templates[slotIndex];
-        return result;
+        return getTemplate(containerId, slotIndex);
     }
     
     /**
      * Set memory template for a specific slot (used in memorize mode)
      */
-    public static void setTemplate(String containerId, int slotIndex, ItemStack stack) {
-        // We need the total container size, not slotIndex + 1
-        // For persistent storage, we'll use a reasonable default and let it resize if needed
-        ItemStack[] templates = usePersistentStorage ? 
-            PersistentMemoryManager.getMemoryTemplates(containerId, Math.max(54, slotIndex + 1)) :
-            sessionMemory.get(containerId);
-            
-        if (templates != null && slotIndex >= 0 && slotIndex < templates.length) {
-            templates[slotIndex] = stack.isEmpty() ? ItemStack.EMPTY : stack.copy();
-            
-            if (usePersistentStorage) {
-                PersistentMemoryManager.markModified(containerId);
-                // Auto-save when setting individual templates
-                PersistentMemoryManager.save();
-            }
-            
-        }
+    public static void setTemplate(ContainerKey containerId, int slotIndex, ItemStack stack) {
+        // The container grows to fit the slot; empty slots cost nothing, so no padding is needed
+        setTemplate(containerId, slotIndex, stack, slotIndex + 1);
     }
     
     /**
      * Set memory template for a specific slot with known container size (used in memorize mode)
      */
-    public static void setTemplate(String containerId, int slotIndex, ItemStack stack, int containerSlots) {
-        ItemStack[] templates = usePersistentStorage ? 
-            PersistentMemoryManager.getMemoryTemplates(containerId, containerSlots) :
-            sessionMemory.get(containerId);
-            
-        if (templates != null && slotIndex >= 0 && slotIndex < templates.length) {
-            templates[slotIndex] = stack.isEmpty() ? ItemStack.EMPTY : stack.copy();
+    public static void setTemplate(ContainerKey containerId, int slotIndex, ItemStack stack, int containerSlots) {
+        if (slotIndex < 0 || slotIndex >= containerSlots || !editable(containerId)) return;
+        
+        SparseTemplates templates = getMemoryTemplates(containerId, containerSlots);
+        if (templates != null) {
+            templates.set(slotIndex, TemplatePool.intern(stack));
             
             if (usePersistentStorage) {
-                PersistentMemoryManager.markModified(containerId);
-                // Auto-save when setting individual templates
-                PersistentMemoryManager.save();
+                // Appends a small journal record; shards are checkpointed in the background
+                PersistentMemoryManager.recordSlot(containerId, slotIndex);
             }
             
         }
@@ -242,12 +255,16 @@ public class EnhancedSBStyleMemoryManager {
     
     /**
      * Toggle memorize mode for a container
+     *
+     * @return the new mode, or the unchanged one while the container's memory is still being read
      */
-    public static boolean toggleMemorizeMode(String containerId) {
+    public static boolean toggleMemorizeMode(ContainerKey containerId) {
+        if (!editable(containerId)) return isMemorizeMode(containerId);
+        
         if (usePersistentStorage) {
             PersistentMemoryManager.ContainerMemory memory = PersistentMemoryManager.getOrCreateMemory(containerId, 0);
             memory.memorizeMode = !memory.memorizeMode;
-            PersistentMemoryManager.markModified(containerId);
+            PersistentMemoryManager.recordMemorizeMode(containerId);
             return memory.memorizeMode;
         } else {
             boolean currentMode = sessionMemorizeMode.getOrDefault(containerId, false);
@@ -260,10 +277,10 @@ public class EnhancedSBStyleMemoryManager {
     /**
      * Check if container is in memorize mode
      */
-    public static boolean isMemorizeMode(String containerId) {
+    public static boolean isMemorizeMode(ContainerKey containerId) {
         if (usePersistentStorage) {
-            PersistentMemoryManager.ContainerMemory memory = PersistentMemoryManager.getOrCreateMemory(containerId, 0);
-            return memory.memorizeMode;
+            PersistentMemoryManager.ContainerMemory memory = PersistentMemoryManager.getMemory(containerId);
+            return memory != null && memory.memorizeMode;
         } else {
             return sessionMemorizeMode.getOrDefault(containerId, false);
         }
@@ -272,12 +289,18 @@ public class EnhancedSBStyleMemoryManager {
     /**
      * Remove container memory when closed (session mode only - persistent mode keeps data)
      */
-    public static void removeContainer(String containerId) {
+    public static void removeContainer(ContainerKey containerId) {
         if (usePersistentStorage) {
             // In persistent mode, we don't remove on close - data persists between sessions
-            // Reset memorize mode though
-            PersistentMemoryManager.ContainerMemory memory = PersistentMemoryManager.getOrCreateMemory(containerId, 0);
-            memory.memorizeMode = false;
+            // Reset memorize mode though, and keep the memory from expiring while the container is in use
+            PersistentMemoryManager.ContainerMemory memory = PersistentMemoryManager.getMemory(containerId);
+            if (memory != null) {
+                if (memory.memorizeMode) {
+                    memory.memorizeMode = false;
+                    PersistentMemoryManager.recordMemorizeMode(containerId);
+                }
+                PersistentMemoryManager.touch(containerId);
+            }
         } else {
             // In session mode, remove completely
             sessionMemory.remove(containerId);
@@ -288,7 +311,9 @@ public class EnhancedSBStyleMemoryManager {
     /**
      * Force remove a container (even in persistent mode)
      */
-    public static void forceRemoveContainer(String containerId) {
+    public static void forceRemoveContainer(ContainerKey containerId) {
+        if (!editable(containerId)) return;
+        
         if (usePersistentStorage) {
             PersistentMemoryManager.removeContainer(containerId);
         } else {
@@ -298,11 +323,11 @@ public class EnhancedSBStyleMemoryManager {
     }
     
     /**
-     * Save all data (persistent mode only)
+     * Save all data now (persistent mode only)
      */
     public static void saveAll() {
         if (usePersistentStorage) {
-            PersistentMemoryManager.save();
+            PersistentMemoryManager.flush();
         }
     }
     
@@ -311,30 +336,59 @@ public class EnhancedSBStyleMemoryManager {
      */
     public static String getStats() {
         if (usePersistentStorage) {
-            return String.format("Persistent mode: %d containers loaded", 
-                PersistentMemoryManager.getLoadedContainerIds().size());
+            return String.format("Persistent mode: %d containers loaded from %d shards, %d distinct templates (%s)", 
+                PersistentMemoryManager.getLoadedContainerIds().size(), PersistentMemoryManager.getShardCount(),
+                TemplatePool.size(), PersistentMemoryManager.getStoreStats().describe());
         } else {
-            return String.format("Session mode: %d containers in memory", sessionMemory.size());
+            return String.format("Session mode: %d containers in memory, %d distinct templates", sessionMemory.size(),
+                TemplatePool.size());
+        }
+    }
+    
+    /**
+     * Garbage-collect stale memories (persistent mode only); session memory is already bounded
+     *
+     * @return completes on the client thread with a report line for the gc command
+     */
+    public static CompletableFuture<String> sweep(boolean dryRun) {
+        if (!usePersistentStorage) {
+            return CompletableFuture.completedFuture("Session mode: memories are dropped when their container closes");
         }
+        return PersistentMemoryManager.sweep(dryRun).handle((report, error) -> {
+            if (error != null) {
+                SensibleStorage.LOGGER.error("Memory sweep failed", error);
+                return "Sweep failed, see the log";
+            }
+            return report != null ? report.describe() : "No world memory is open yet";
+        });
+    }
+    
+    /**
+     * Nearest containers in a dimension with a memory template matching the stack, closest first
+     * Session memory has no container positions, so only persistent mode finds anything
+     */
+    public static List<ItemIndex.Match> findContainersFor(ItemStack stack, String dimension, BlockPos origin, int limit) {
+        return usePersistentStorage ? PersistentMemoryManager.findContainersFor(stack, dimension, origin, limit) : List.of();
     }
     
     /**
      * Migrate memory templates between different container IDs
      */
-    public static void migrateMemory(String fromContainerId, String toContainerId) {
+    public static void migrateMemory(ContainerKey fromContainerId, ContainerKey toContainerId) {
         if (fromContainerId.equals(toContainerId)) return;
+        if (!editable(fromContainerId) || !editable(toContainerId)) return;
         
-        ItemStack[] fromTemplates = usePersistentStorage ? 
-            PersistentMemoryManager.getMemoryTemplates(fromContainerId, 0) :
-            sessionMemory.get(fromContainerId);
-            
-        if (fromTemplates == null || fromTemplates.length == 0) return;
+        SparseTemplates fromTemplates = findMemoryTemplates(fromContainerId);
+        if (fromTemplates == null || fromTemplates.slotCount() == 0) return;
         
         // Get or create templates for destination
-        ItemStack[] toTemplates = getMemoryTemplates(toContainerId, fromTemplates.length);
+        SparseTemplates toTemplates = getMemoryTemplates(toContainerId, fromTemplates.slotCount());
         
         // Copy templates
-        System.arraycopy(fromTemplates, 0, toTemplates, 0, Math.min(fromTemplates.length, toTemplates.length));
+        toTemplates.clear();
+        for (int slot = fromTemplates.nextSlot(0); slot >= 0; slot = fromTemplates.nextSlot(slot + 1)) {
+            toTemplates.set(slot, fromTemplates.get(slot));
+        }
         
         // Copy memorize mode state
         boolean memorizeMode = usePersistentStorage ?
@@ -342,8 +396,13 @@ public class EnhancedSBStyleMemoryManager {
             sessionMemorizeMode.getOrDefault(fromContainerId, false);
             
         if (usePersistentStorage) {
+            // Journaled like a capture of the target, followed by its memorize mode
             PersistentMemoryManager.getOrCreateMemory(toContainerId, 0).memorizeMode = memorizeMode;
-            PersistentMemoryManager.markModified(toContainerId);
+            PersistentMemoryManager.recordClear(toContainerId);
+            for (int slot = toTemplates.nextSlot(0); slot >= 0; slot = toTemplates.nextSlot(slot + 1)) {
+                PersistentMemoryManager.recordSlot(toContainerId, slot);
+            }
+            PersistentMemoryManager.recordMemorizeMode(toContainerId);
         } else {
             sessionMemorizeMode.put(toContainerId, memorizeMode);
         }
@@ -353,21 +412,14 @@ public class EnhancedSBStyleMemoryManager {
     /**
      * Check if any memory templates exist for a container
      */
-    public static boolean hasAnyMemoryTemplates(String containerId) {
+    public static boolean hasAnyMemoryTemplates(ContainerKey containerId) {
         init();
         
         if (usePersistentStorage) {
             return PersistentMemoryManager.hasAnyMemoryTemplates(containerId);
         } else {
-            ItemStack[] templates = sessionMemory.get(containerId);
-            if (templates == null) return false;
-            
-            for (ItemStack template : templates) {
-                if (template != null && !template.isEmpty()) {
-                    return true;
-                }
-            }
-            return false;
+            SparseTemplates templates = sessionMemory.get(containerId);
+            return templates != null && !templates.isEmpty();
         }
     }
 }
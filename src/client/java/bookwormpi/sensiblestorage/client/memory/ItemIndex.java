@@ -0,0 +1,349 @@
+package bookwormpi.sensiblestorage.client.memory;
+
+import bookwormpi.sensiblestorage.SensibleStorage;
+import bookwormpi.sensiblestorage.client.memory.PersistentMemoryManager.ContainerMemory;
+import bookwormpi.sensiblestorage.client.memory.storage.BinaryInput;
+import bookwormpi.sensiblestorage.client.memory.storage.BinaryOutput;
+import bookwormpi.sensiblestorage.client.memory.storage.MemoryStore;
+import bookwormpi.sensiblestorage.client.memory.storage.ShardKey;
+import bookwormpi.sensiblestorage.client.memory.storage.StackEncoding;
+import bookwormpi.sensiblestorage.client.memory.storage.StoreFiles;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectOpenHashMap;
+import net.minecraft.item.ItemStack;
+import net.minecraft.util.math.BlockPos;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * World-wide index from template items to the containers remembering them
+ *
+ * Every region keeps an exact map from pooled template to the containers holding it, so
+ * a query never reads a shard: it only visits the regions that remember the template.
+ * Edits update a container's entries in place, so answers never include forgotten templates.
+ *
+ * The maps are saved next to the world's store with each checkpoint (templates as item ID
+ * and components) and journal replay updates them, so the full scan that builds the index
+ * only runs when a world has no saved index yet or its shards were migrated. A snapshot
+ * shares the regions with the index, and a region is copied before its next edit instead.
+ * Filled on the IO thread while the store opens, used only on the client thread afterwards.
+ */
+public final class ItemIndex {
+    private static final int MAGIC = 0x53534949;
+    // Version 1 held per-region bloom filters over item IDs; such a file is rebuilt
+    private static final int VERSION = 2;
+    private static final int MAX_COUNT = 1 << 24;
+    
+    private final Path file;
+    private final String backend;
+    private final StackEncoding encoding;
+    private final Map<ShardKey, Region> regions = new HashMap<>();
+    private boolean dirty;
+    
+    /**
+     * A container remembering the queried item, with its squared distance from the query origin
+     */
+    public record Match(ContainerKey container, double distanceSq) {
+        public BlockPos pos() {
+            return container.pos();
+        }
+    }
+    
+    private static final class Region {
+        // Pooled template -> containers holding it, and each container's distinct templates for updating it in place
+        final Reference2ObjectOpenHashMap<ItemStack, List<ContainerKey>> containers = new Reference2ObjectOpenHashMap<>();
+        final Map<ContainerKey, List<ItemStack>> templates = new HashMap<>();
+        // Handed to a snapshot that may still be writing it
+        boolean shared;
+        
+        Region copy() {
+            Region copy = new Region();
+            containers.forEach((template, holders) -> copy.containers.put(template, new ArrayList<>(holders)));
+            copy.templates.putAll(templates);
+            return copy;
+        }
+    }
+    
+    /**
+     * @param file     where the index is saved, or null for a store that is never saved
+     * @param backend  storage backend the index describes; a saved index from another backend is ignored
+     * @param encoding writes and reads the saved templates
+     */
+    ItemIndex(Path file, String backend, StackEncoding encoding) {
+        this.file = file;
+        this.backend = backend;
+        this.encoding = encoding;
+    }
+    
+    /**
+     * Replace a container's entries with its current templates, after any edit to them
+     */
+    void reindex(ContainerKey containerId, SparseTemplates templates) {
+        if (!containerId.isPositioned()) return;
+        
+        List<ItemStack> current = new ArrayList<>();
+        if (templates != null) {
+            for (int slot = templates.nextSlot(0); slot >= 0; slot = templates.nextSlot(slot + 1)) {
+                ItemStack template = TemplatePool.intern(templates.get(slot));
+                if (!template.isEmpty() && !current.contains(template)) {
+                    current.add(template);
+                }
+            }
+        }
+        
+        ShardKey shard = containerId.shard();
+        Region region = regions.get(shard);
+        List<ItemStack> previous = region != null ? region.templates.get(containerId) : null;
+        if (previous == null ? current.isEmpty() : previous.equals(current)) return;
+        
+        region = editable(shard);
+        if (previous != null) {
+            region.templates.remove(containerId);
+            for (ItemStack template : previous) {
+                List<ContainerKey> holders = region.containers.get(template);
+                holders.remove(containerId);
+                if (holders.isEmpty()) {
+                    region.containers.remove(template);
+                }
+            }
+        }
+        if (!current.isEmpty()) {
+            region.templates.put(containerId, current);
+            for (ItemStack template : current) {
+                region.containers.computeIfAbsent(template, k -> new ArrayList<>(2)).add(containerId);
+            }
+        }
+        if (region.templates.isEmpty()) {
+            regions.remove(shard);
+        }
+        dirty = true;
+    }
+    
+    /**
+     * Forget a removed container
+     */
+    void remove(ContainerKey containerId) {
+        reindex(containerId, null);
+    }
+    
+    /**
+     * A region that may be edited: created if missing, copied first if a snapshot shares it
+     */
+    private Region editable(ShardKey shard) {
+        Region region = regions.get(shard);
+        if (region == null || region.shared) {
+            region = region == null ? new Region() : region.copy();
+            regions.put(shard, region);
+        }
+        return region;
+    }
+    
+    /**
+     * IO thread: build the index from scratch, reading the whole store
+     */
+    void rebuild(MemoryStore<ContainerKey, ContainerMemory> store) {
+        long start = System.nanoTime();
+        regions.clear();
+        store.forEachRegion(shard -> {
+            if (!shard.isPositioned()) return;
+            store.scanRegion(shard).forEach((containerId, memory) -> reindex(containerId, memory.templates));
+        });
+        dirty = true;
+        SensibleStorage.LOGGER.info("Indexed memory templates of {} regions in {} ms", regions.size(),
+            (System.nanoTime() - start) / 1_000_000);
+    }
+    
+    /**
+     * Nearest containers in a dimension with a template matching the stack, closest first
+     * Answered from memory alone; regions are visited nearest first, and only until no unvisited
+     * region could hold a closer match
+     */
+    List<Match> nearest(ItemStack stack, String dimension, BlockPos origin, int limit) {
+        if (stack.isEmpty() || limit <= 0) return List.of();
+        
+        // Every indexed template is pooled and held here, so a stack without a pooled equal is remembered nowhere
+        ItemStack template = TemplatePool.find(stack);
+        if (template == null) return List.of();
+        
+        List<ShardKey> candidates = new ArrayList<>();
+        for (Map.Entry<ShardKey, Region> entry : regions.entrySet()) {
+            if (entry.getKey().dimension().equals(dimension) && entry.getValue().containers.containsKey(template)) {
+                candidates.add(entry.getKey());
+            }
+        }
+        candidates.sort(Comparator.comparingDouble(shard -> regionDistanceSq(shard, origin)));
+        
+        // Farthest kept match on top, so it is the one replaced by a closer one
+        PriorityQueue<Match> nearest = new PriorityQueue<>(Comparator.comparingDouble(Match::distanceSq).reversed());
+        for (ShardKey shard : candidates) {
+            if (nearest.size() == limit && regionDistanceSq(shard, origin) > nearest.peek().distanceSq()) break;
+            
+            for (ContainerKey containerId : regions.get(shard).containers.get(template)) {
+                long pos = containerId.packedPos();
+                double dx = BlockPos.unpackLongX(pos) - origin.getX();
+                double dy = BlockPos.unpackLongY(pos) - origin.getY();
+                double dz = BlockPos.unpackLongZ(pos) - origin.getZ();
+                double distanceSq = dx * dx + dy * dy + dz * dz;
+                if (nearest.size() < limit) {
+                    nearest.add(new Match(containerId, distanceSq));
+                } else if (distanceSq < nearest.peek().distanceSq()) {
+                    nearest.poll();
+                    nearest.add(new Match(containerId, distanceSq));
+                }
+            }
+        }
+        
+        List<Match> matches = new ArrayList<>(nearest);
+        matches.sort(Comparator.comparingDouble(Match::distanceSq));
+        return matches;
+    }
+    
+    /**
+     * Number of regions with an index entry
+     */
+    public int regionCount() {
+        return regions.size();
+    }
+    
+    /**
+     * Whether the saved index is behind; an index that is never saved is never dirty
+     */
+    boolean isDirty() {
+        return file != null && dirty;
+    }
+    
+    /**
+     * Squared horizontal distance from a position to the nearest block column of a region,
+     * which no container in it can be closer than
+     */
+    private static double regionDistanceSq(ShardKey shard, BlockPos origin) {
+        int minX = shard.regionX() << 9;
+        int minZ = shard.regionZ() << 9;
+        double dx = Math.max(0, Math.max(minX - origin.getX(), origin.getX() - (minX + 511)));
+        double dz = Math.max(0, Math.max(minZ - origin.getZ(), origin.getZ() - (minZ + 511)));
+        return dx * dx + dz * dz;
+    }
+    
+    /**
+     * IO thread, before the journal is replayed: read the saved index
+     * Templates of items that no longer exist are dropped, like when a shard is decoded
+     *
+     * @return false when there is no usable saved index and it has to be rebuilt
+     */
+    boolean load() {
+        if (file == null) return false;
+        
+        try (ReadableByteChannel channel = StoreFiles.openRead(file)) {
+            BinaryInput in = new BinaryInput(channel);
+            if (in.readInt() != MAGIC || in.readVarInt() != VERSION || !in.readString().equals(backend)) {
+                return false;
+            }
+            
+            int regionCount = in.readCount(MAX_COUNT);
+            for (int i = 0; i < regionCount; i++) {
+                String dimension = in.readString();
+                ShardKey shard = new ShardKey(dimension, in.readSignedVarInt(), in.readSignedVarInt());
+                Region region = new Region();
+                int templateCount = in.readCount(MAX_COUNT);
+                for (int t = 0; t < templateCount; t++) {
+                    ItemStack template = TemplatePool.intern(encoding.decode(in.readString(), in.readString(), 1));
+                    int holderCount = in.readCount(MAX_COUNT);
+                    List<ContainerKey> holders = new ArrayList<>(holderCount);
+                    for (int h = 0; h < holderCount; h++) {
+                        ContainerKey.Type type = ContainerKey.Type.byOrdinal(in.readVarInt());
+                        holders.add(ContainerKey.of(type, dimension, BlockPos.fromLong(in.readLong())));
+                    }
+                    if (template.isEmpty()) continue;
+                    
+                    region.containers.put(template, holders);
+                    for (ContainerKey containerId : holders) {
+                        region.templates.computeIfAbsent(containerId, k -> new ArrayList<>(2)).add(template);
+                    }
+                }
+                if (!region.templates.isEmpty()) {
+                    regions.put(shard, region);
+                }
+            }
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException | RuntimeException e) {
+            SensibleStorage.LOGGER.warn("Ignoring unreadable item index {}", file, e);
+            regions.clear();
+            return false;
+        }
+    }
+    
+    /**
+     * Client thread: hand the regions over for saving with a checkpoint; each is copied before its next edit
+     *
+     * @return null when nothing changed since the last snapshot or the index is never saved
+     */
+    Snapshot snapshot() {
+        if (file == null || !dirty) return null;
+        dirty = false;
+        
+        for (Region region : regions.values()) {
+            region.shared = true;
+        }
+        return new Snapshot(file, backend, encoding, Map.copyOf(regions));
+    }
+    
+    /**
+     * Regions frozen for the IO thread
+     */
+    record Snapshot(Path file, String backend, StackEncoding encoding, Map<ShardKey, Region> regions) {
+        /**
+         * Replace the saved index through the same temp file, fsync and atomic rename as a shard checkpoint
+         * On failure it is deleted, so the next open rebuilds it rather than trusting an old one
+         */
+        void write() {
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try {
+                Files.createDirectories(file.getParent());
+                try (WritableByteChannel channel = StoreFiles.openWrite(temp, false)) {
+                    BinaryOutput out = new BinaryOutput(channel);
+                    out.writeInt(MAGIC);
+                    out.writeVarInt(VERSION);
+                    out.writeString(backend);
+                    out.writeVarInt(regions.size());
+                    for (Map.Entry<ShardKey, Region> entry : regions.entrySet()) {
+                        out.writeString(entry.getKey().dimension());
+                        out.writeSignedVarInt(entry.getKey().regionX());
+                        out.writeSignedVarInt(entry.getKey().regionZ());
+                        Map<ItemStack, List<ContainerKey>> containers = entry.getValue().containers;
+                        out.writeVarInt(containers.size());
+                        for (Map.Entry<ItemStack, List<ContainerKey>> template : containers.entrySet()) {
+                            out.writeString(StackEncoding.itemId(template.getKey()));
+                            out.writeString(encoding.encodeComponents(template.getKey()));
+                            out.writeVarInt(template.getValue().size());
+                            for (ContainerKey containerId : template.getValue()) {
+                                out.writeVarInt(containerId.type().ordinal());
+                                out.writeLong(containerId.packedPos());
+                            }
+                        }
+                    }
+                    out.flush();
+                }
+                StoreFiles.force(temp);
+                StoreFiles.replace(temp, file);
+            } catch (IOException | RuntimeException e) {
+                SensibleStorage.LOGGER.error("Failed to save item index {}", file, e);
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException deleteError) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package bookwormpi.sensiblestorage.client.memory;
+
+import net.minecraft.item.ItemStack;
+import net.minecraft.screen.ScreenHandler;
+
+/**
+ * Memory of the container behind an open screen, resolved once when the screen opens and
+ * attached to its screen handler, so slot checks and rendering skip the container ID and
+ * store lookups
+ *
+ * Edits go through here so the cached templates and memorize flag stay current. While its
+ * screen is open the context pins the memory in the store, so the templates it holds are never
+ * dropped from the store's cache and replaced by a copy. Client thread only.
+ */
+public final class MemoryContext {
+    /**
+     * Duck interface mixed into {@link ScreenHandler}
+     */
+    public interface Holder {
+        MemoryContext sensiblestorage$getMemoryContext();
+        
+        void sensiblestorage$setMemoryContext(MemoryContext context);
+    }
+    
+    private final ContainerKey key;
+    private final int containerSlots;
+    // Resolved once the store is ready; null afterwards means the container has no memory yet
+    private SparseTemplates templates;
+    private boolean memorizeMode;
+    private boolean resolved;
+    private boolean pinRequested;
+    private boolean pinned;
+    // Bumped whenever the templates or memorize flag seen through this context change
+    private int version;
+    private TemplateRouting routing;
+    private int routingVersion = -1;
+    
+    public MemoryContext(ContainerKey key, int containerSlots) {
+        this.key = key;
+        this.containerSlots = containerSlots;
+    }
+    
+    /**
+     * The context attached to a screen handler, or null when it is not a container with memory
+     */
+    public static MemoryContext of(ScreenHandler handler) {
+        return ((Holder) handler).sensiblestorage$getMemoryContext();
+    }
+    
+    public static void attach(ScreenHandler handler, MemoryContext context) {
+        ((Holder) handler).sensiblestorage$setMemoryContext(context);
+    }
+    
+    /**
+     * Pin the memory for as long as the screen is open (screen init); takes effect once the store is ready
+     */
+    public void pin() {
+        pinRequested = true;
+        resolve();
+    }
+    
+    /**
+     * Release the pin (screen closed)
+     */
+    public void release() {
+        if (pinned) {
+            EnhancedSBStyleMemoryManager.unpin(key);
+            pinned = false;
+        }
+        pinRequested = false;
+    }
+    
+    public ContainerKey key() {
+        return key;
+    }
+    
+    /**
+     * Number of container slots, excluding the player inventory
+     */
+    public int containerSlots() {
+        return containerSlots;
+    }
+    
+    /**
+     * Template of a container slot, or empty for player inventory slots and slots without one
+     */
+    public ItemStack template(int slotIndex) {
+        if (slotIndex < 0 || slotIndex >= containerSlots || !resolve()) return ItemStack.EMPTY;
+        return templates != null ? templates.get(slotIndex) : ItemStack.EMPTY;
+    }
+    
+    /**
+     * Changes whenever {@link #template} or {@link #isMemorizeMode} may return something new
+     */
+    public int version() {
+        resolve();
+        return version;
+    }
+    
+    /**
+     * Which slots each template reserves, rebuilt after template edits
+     */
+    public TemplateRouting routing() {
+        int current = version();
+        if (routingVersion != current) {
+            routing = TemplateRouting.of(templates, containerSlots);
+            routingVersion = current;
+        }
+        return routing;
+    }
+    
+    public boolean isMemorizeMode() {
+        return resolve() && memorizeMode;
+    }
+    
+    public boolean toggleMemorizeMode() {
+        memorizeMode = EnhancedSBStyleMemoryManager.toggleMemorizeMode(key);
+        version++;
+        return memorizeMode;
+    }
+    
+    public void setTemplate(int slotIndex, ItemStack stack) {
+        EnhancedSBStyleMemoryManager.setTemplate(key, slotIndex, stack, containerSlots);
+        // The first edit creates the memory
+        templates = EnhancedSBStyleMemoryManager.findMemoryTemplates(key);
+        version++;
+    }
+    
+    public void clear() {
+        EnhancedSBStyleMemoryManager.clearMemory(key);
+        version++;
+    }
+    
+    /**
+     * Look the memory up once it has been read from disk; until then the container reads as empty
+     * Checking starts the read in the background, so the render thread never waits on it
+     */
+    private boolean resolve() {
+        if (!resolved && EnhancedSBStyleMemoryManager.isReady(key)) {
+            // Pinned before the lookup, so the templates read here stay the store's own instance
+            if (pinRequested && !pinned) {
+                EnhancedSBStyleMemoryManager.pin(key);
+                pinned = true;
+            }
+            templates = EnhancedSBStyleMemoryManager.findMemoryTemplates(key);
+            memorizeMode = EnhancedSBStyleMemoryManager.isMemorizeMode(key);
+            resolved = true;
+            version++;
+        }
+        return resolved;
+    }
+}
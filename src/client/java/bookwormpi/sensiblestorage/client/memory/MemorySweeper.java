@@ -0,0 +1,176 @@
+package bookwormpi.sensiblestorage.client.memory;
+
+import bookwormpi.sensiblestorage.SensibleStorage;
+import bookwormpi.sensiblestorage.client.config.SensibleStorageConfig;
+import bookwormpi.sensiblestorage.client.memory.PersistentMemoryManager.ContainerMemory;
+import bookwormpi.sensiblestorage.client.memory.storage.MemoryStore;
+import bookwormpi.sensiblestorage.client.memory.storage.ShardKey;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Garbage collection for container memories
+ *
+ * Drops memories without a single template, which every container opened in memorize mode
+ * leaves behind, and, when memoryExpiryDays is set, memories whose container has not been
+ * used for that many days. Runs on its own at most once a day per world after the world's
+ * store opens, and on demand through the gc command.
+ *
+ * A sweep has two halves: {@link #scan} reads every region as last saved on the IO thread and
+ * collects the stale memories, and the caller then removes them on the client thread like any
+ * other removal, re-checking those that were read back into memory since.
+ */
+public final class MemorySweeper {
+    // An automatic sweep reads every region of the world, so it is rate limited per world
+    private static final long SWEEP_INTERVAL_MS = TimeUnit.DAYS.toMillis(1);
+    private static final String LAST_SWEEP_FILE = "last_sweep";
+    
+    private MemorySweeper() {
+    }
+    
+    /**
+     * What a sweep removed, or would remove for a dry run
+     */
+    public record Report(boolean dryRun, int regions, int containers, int empty, int expired) {
+        public int removed() {
+            return empty + expired;
+        }
+        
+        public String describe() {
+            return String.format("%s %d of %d containers in %d regions (%d without templates, %d unused for %d+ days)",
+                dryRun ? "Would remove" : "Removed", removed(), containers, regions, empty, expired,
+                SensibleStorageConfig.get().memoryExpiryDays);
+        }
+    }
+    
+    /**
+     * A memory found stale by a scan, and whether it expired rather than having no templates
+     */
+    record Stale(ContainerKey containerId, boolean expired) {}
+    
+    /**
+     * Stale memories found by {@link #scan}, by region, and what the sweep removed of them so far
+     */
+    static final class Scan {
+        private final long protectedSince;
+        private final long expiredBefore;
+        private final Map<ShardKey, List<Stale>> stale = new HashMap<>();
+        private int regions;
+        private int containers;
+        private int removedEmpty;
+        private int removedExpired;
+        
+        private Scan(long protectedSince, long expiredBefore) {
+            this.protectedSince = protectedSince;
+            this.expiredBefore = expiredBefore;
+        }
+        
+        Map<ShardKey, List<Stale>> stale() {
+            return stale;
+        }
+        
+        /**
+         * Whether a memory is stale by the rules this scan used
+         */
+        boolean isStale(ContainerMemory memory) {
+            return memory.lastModified < expiredBefore || memory.templates.isEmpty() && memory.lastModified < protectedSince;
+        }
+        
+        void recordRemoved(Stale removed) {
+            if (removed.expired()) {
+                removedExpired++;
+            } else {
+                removedEmpty++;
+            }
+        }
+        
+        /**
+         * @param dryRun report everything found rather than what was removed
+         */
+        Report report(boolean dryRun) {
+            if (!dryRun) return new Report(false, regions, containers, removedEmpty, removedExpired);
+            
+            int empty = 0;
+            int expired = 0;
+            for (List<Stale> region : stale.values()) {
+                for (Stale candidate : region) {
+                    if (candidate.expired()) {
+                        expired++;
+                    } else {
+                        empty++;
+                    }
+                }
+            }
+            return new Report(true, regions, containers, empty, expired);
+        }
+    }
+    
+    /**
+     * Find every stale memory in the store without changing it
+     *
+     * @param protectedSince memories created or used at or after this time are kept even without
+     *                       templates, since an open screen may be about to fill them
+     * @param owner          executor of the client thread, which owns the store
+     */
+    static CompletableFuture<Scan> scan(MemoryStore<ContainerKey, ContainerMemory> store, long protectedSince, Executor owner) {
+        int expiryDays = SensibleStorageConfig.get().memoryExpiryDays;
+        long expiredBefore = expiryDays > 0 ? System.currentTimeMillis() - TimeUnit.DAYS.toMillis(expiryDays) : Long.MIN_VALUE;
+        
+        Scan scan = new Scan(protectedSince, expiredBefore);
+        return store.scanStored((region, contents) -> {
+            scan.regions++;
+            List<Stale> stale = new ArrayList<>();
+            for (Map.Entry<ContainerKey, ContainerMemory> entry : contents.entrySet()) {
+                ContainerMemory memory = entry.getValue();
+                scan.containers++;
+                if (memory.lastModified < expiredBefore) {
+                    stale.add(new Stale(entry.getKey(), true));
+                } else if (memory.templates.isEmpty() && memory.lastModified < protectedSince) {
+                    stale.add(new Stale(entry.getKey(), false));
+                }
+            }
+            if (!stale.isEmpty()) {
+                scan.stale.merge(region, stale, (found, more) -> {
+                    found.addAll(more);
+                    return found;
+                });
+            }
+        }, owner).thenApply(done -> scan);
+    }
+    
+    /**
+     * IO thread: whether the world's last sweep was long enough ago
+     */
+    static boolean isDue(Path worldDir) {
+        Path marker = worldDir.resolve(LAST_SWEEP_FILE);
+        try {
+            return !Files.exists(marker)
+                || System.currentTimeMillis() - Long.parseLong(Files.readString(marker).trim()) >= SWEEP_INTERVAL_MS;
+        } catch (IOException | NumberFormatException e) {
+            SensibleStorage.LOGGER.warn("Ignoring unreadable {}", marker, e);
+            return true;
+        }
+    }
+    
+    /**
+     * IO thread: remember when the world was last swept
+     */
+    static void recordSweep(Path worldDir, long time) {
+        Path marker = worldDir.resolve(LAST_SWEEP_FILE);
+        try {
+            Files.createDirectories(worldDir);
+            Files.writeString(marker, Long.toString(time));
+        } catch (IOException e) {
+            SensibleStorage.LOGGER.warn("Failed to record memory sweep time in {}", marker, e);
+        }
+    }
+}
@@ -1,302 +1,1370 @@
 package bookwormpi.sensiblestorage.client.memory;
 
-import com.google.gson.*;
+import bookwormpi.sensiblestorage.SensibleStorage;
+import bookwormpi.sensiblestorage.client.config.SensibleStorageConfig;
+import bookwormpi.sensiblestorage.client.memory.storage.AppendJournal;
+import bookwormpi.sensiblestorage.client.memory.storage.BinaryInput;
+import bookwormpi.sensiblestorage.client.memory.storage.BinaryOutput;
+import bookwormpi.sensiblestorage.client.memory.storage.InMemoryStore;
+import bookwormpi.sensiblestorage.client.memory.storage.IndexedShardCodec;
+import bookwormpi.sensiblestorage.client.memory.storage.JsonStreams;
+import bookwormpi.sensiblestorage.client.memory.storage.MemoryStore;
+import bookwormpi.sensiblestorage.client.memory.storage.Palette;
+import bookwormpi.sensiblestorage.client.memory.storage.RegionShardedStore;
+import bookwormpi.sensiblestorage.client.memory.storage.ShardCodec;
+import bookwormpi.sensiblestorage.client.memory.storage.ShardKey;
+import bookwormpi.sensiblestorage.client.memory.storage.ShardPager;
+import bookwormpi.sensiblestorage.client.memory.storage.SingleFileStore;
+import bookwormpi.sensiblestorage.client.memory.storage.StackEncoding;
+import bookwormpi.sensiblestorage.client.memory.storage.StorageBackend;
+import bookwormpi.sensiblestorage.client.memory.storage.StorageExecutor;
+import bookwormpi.sensiblestorage.client.memory.storage.StoreFiles;
+import bookwormpi.sensiblestorage.client.memory.storage.StoreStats;
+import bookwormpi.sensiblestorage.client.memory.storage.WorldNamespace;
+import bookwormpi.sensiblestorage.client.memory.storage.WriteBehindSaver;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import net.fabricmc.loader.api.FabricLoader;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.network.ClientPlayNetworkHandler;
 import net.minecraft.item.ItemStack;
-import net.minecraft.registry.Registries;
-import net.minecraft.util.Identifier;
+import net.minecraft.util.math.BlockPos;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Persistent memory manager that saves/loads memory templates to/from disk
  * Inspired by ChestTracker's approach but simplified for our needs
+ *
+ * Each server or singleplayer world has its own store below sensiblestorage/worlds/,
+ * opened in the background when joining and flushed and released on disconnect.
  */
 public class PersistentMemoryManager {
     private static final Path STORAGE_DIR = FabricLoader.getInstance().getGameDir().resolve("sensiblestorage");
-    private static final Path MEMORY_FILE = STORAGE_DIR.resolve("memory_templates.json");
-    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+    private static final Path LEGACY_MEMORY_FILE = STORAGE_DIR.resolve("memory_templates.json");
+    private static final Path LEGACY_SHARD_DIR = STORAGE_DIR.resolve("templates");
+    private static final Path WORLDS_DIR = STORAGE_DIR.resolve("worlds");
     
-    // In-memory cache
-    private static final Map<String, ContainerMemory> loadedMemories = new HashMap<>();
-    private static boolean isLoaded = false;
+    // Binary shard format: magic "SSTP" followed by a format version
+    private static final int BINARY_MAGIC = 0x53535450;
+    private static final int BINARY_VERSION = 4;
+    private static final int MAX_SLOTS = 1 << 16;
+    
+    // Memories of destroyed containers kept for the session, in case the container is put back
+    private static final int MAX_TOMBSTONES = 256;
+    
+    // Journal record types
+    private static final int RECORD_SET_SLOT = 1;
+    private static final int RECORD_CLEAR_CONTAINER = 2;
+    private static final int RECORD_REMOVE_CONTAINER = 3;
+    private static final int RECORD_MEMORIZE_MODE = 4;
+    // Set on the record type when the container is written as a ContainerKey rather than a legacy string ID
+    private static final int RECORD_KEYED = 0x10;
+    
+    
+    // Current world's memories of the regions around the player, sharded on disk and paged with chunks
+    // Null while no world is open
+    private static MemoryStore<ContainerKey, ContainerMemory> store;
+    private static String worldNamespace;
+    private static boolean isInitialized = false;
+    
+    // Slot edits are appended here as small records; the shards are only rewritten at checkpoints
+    private static AppendJournal journal;
+    
+    // Which containers remember which items, for finding the containers that accept an item
+    private static ItemIndex itemIndex;
+    
+    // Template encoding backed by the current world's registries, captured on the client thread when it opens
+    private static StackEncoding encoding;
+    
+    // World store being opened on the IO executor, installed on the client thread once ready
+    private static CompletableFuture<WorldStore> pendingOpen;
+    
+    // Completes on the client thread once the pending open has been installed (or failed)
+    private static CompletableFuture<Void> ready = CompletableFuture.completedFuture(null);
+    
+    // When the current world was joined; memories created since then are never swept
+    private static long openedAt;
+    
+    // Recently destroyed containers, restored if a container with the same ID is used again this session
+    private static final Map<ContainerKey, ContainerMemory> tombstones = new LinkedHashMap<>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ContainerKey, ContainerMemory> eldest) {
+            return size() > MAX_TOMBSTONES;
+        }
+    };
+    
+    // Write-behind checkpoints: dirty shards are snapshotted here and rewritten off-thread
+    private static final WriteBehindSaver<Checkpoint> saver =
+        new WriteBehindSaver<>("memory templates", PersistentMemoryManager::snapshotCheckpoint,
+            PersistentMemoryManager::writeCheckpoint);
+    
+    /**
+     * A world's store and journal, built off-thread and handed to the client thread whole
+     */
+    private record WorldStore(String namespace, MemoryStore<ContainerKey, ContainerMemory> store, AppendJournal journal,
+                              ItemIndex itemIndex, StackEncoding encoding) {}
+    
+    /**
+     * Dirty shards plus the journal they belong to (null for the memory backend), so a checkpoint
+     * finishing after a world switch still rotates the right journal, and the item index if it changed
+     */
+    private record Checkpoint(MemoryStore.Flush snapshot, AppendJournal journal, ItemIndex.Snapshot itemIndex) {}
     
     /**
      * Container memory data structure
      */
     public static class ContainerMemory {
-        public ItemStack[] templates;
+        // Only the templated slots, as shared TemplatePool instances
+        public SparseTemplates templates;
         public boolean memorizeMode;
         public long lastModified;
         
         public ContainerMemory() {
-            this.templates = new ItemStack[0];
-            this.memorizeMode = false;
-            this.lastModified = System.currentTimeMillis();
+            this(0);
         }
         
         public ContainerMemory(int slotCount) {
-            this.templates = new ItemStack[slotCount];
-            for (int i = 0; i < slotCount; i++) {
-                templates[i] = ItemStack.EMPTY;
-            }
+            this.templates = new SparseTemplates(slotCount);
             this.memorizeMode = false;
             this.lastModified = System.currentTimeMillis();
         }
+        
+        /**
+         * Copy for handing to the save thread; templates are pooled and never mutated, so only the slot index is copied
+         */
+        private ContainerMemory copy() {
+            ContainerMemory copy = new ContainerMemory();
+            copy.templates = templates.copy();
+            copy.memorizeMode = memorizeMode;
+            copy.lastModified = lastModified;
+            return copy;
+        }
     }
     
     /**
      * Initialize the persistent memory system
      */
     public static void init() {
-        try {
-            Files.createDirectories(STORAGE_DIR);
-            load();
-        } catch (Exception e) {
+        if (isInitialized) return;
+        isInitialized = true;
+        
+        ShardPager.register(PersistentMemoryManager::pageIn, PersistentMemoryManager::pageOut);
+    }
+    
+    /**
+     * Open the current world's store in the background (world join)
+     */
+    public static void openWorld() {
+        init();
+        
+        String namespace = WorldNamespace.current();
+        ClientPlayNetworkHandler network = MinecraftClient.getInstance().getNetworkHandler();
+        if (namespace == null || network == null || namespace.equals(worldNamespace)) return;
+        closeWorld();
+        
+        // Registries are read here on the client thread; the IO and codec threads only see the captured encoding
+        StackEncoding worldEncoding = StackEncoding.of(network.getRegistryManager());
+        worldNamespace = namespace;
+        openedAt = System.currentTimeMillis();
+        CompletableFuture<WorldStore> opening = CompletableFuture.supplyAsync(() -> openStore(namespace, worldEncoding),
+            StorageExecutor.IO);
+        pendingOpen = opening;
+        ready = new CompletableFuture<>();
+        opening.whenCompleteAsync((opened, error) -> {
+            if (pendingOpen != opening) return;
+            
+            if (error != null) {
+                SensibleStorage.LOGGER.error("Failed to open memory templates", error);
+                pendingOpen = null;
+            } else {
+                install(opened);
+            }
+            ready.complete(null);
+        }, MinecraftClient.getInstance());
+    }
+    
+    /**
+     * Completes on the client thread once the current world's store is usable
+     * Lookups made before then see no templates rather than waiting for the load
+     */
+    public static CompletableFuture<Void> whenReady() {
+        return ready;
+    }
+    
+    /**
+     * Whether the current world's store has finished loading
+     */
+    public static boolean isReady() {
+        return store != null;
+    }
+    
+    /**
+     * Whether a container's memory can be read and edited without waiting on the disk
+     * If not, its region is read in the background; until then lookups see no memory and edits are refused
+     */
+    public static boolean isReady(ContainerKey containerId) {
+        return store != null && store.isLoaded(containerId, MinecraftClient.getInstance());
+    }
+    
+    /**
+     * Whether the memories in a chunk's region can be listed without waiting on the disk
+     * If not, the region is read in the background
+     */
+    public static boolean isChunkReady(String dimension, int chunkX, int chunkZ) {
+        if (store == null) return false;
+        
+        ShardKey shard = ShardKey.ofChunk(dimension, chunkX, chunkZ);
+        if (store.isResident(shard)) return true;
+        store.loadShardAsync(shard, MinecraftClient.getInstance());
+        return false;
+    }
+    
+    /**
+     * Flush the current world's store and release it (disconnect)
+     */
+    public static void closeWorld() {
+        if (pendingOpen != null) {
+            awaitOpen();
         }
+        flush();
+        
+        store = null;
+        journal = null;
+        itemIndex = null;
+        encoding = null;
+        worldNamespace = null;
+        tombstones.clear();
+        ready.complete(null);
     }
     
     /**
-     * Load memory templates from disk
+     * IO thread: open this world's store in the configured backend and replay its journal
+     * Shards themselves are paged in as their chunks load rather than all at once
      */
-    public static void load() {
-        if (isLoaded) return;
+    private static WorldStore openStore(String namespace, StackEncoding worldEncoding) {
+        Path worldDir = WORLDS_DIR.resolve(namespace);
+        Path shardDir = worldDir.resolve("templates");
+        Path singleFile = worldDir.resolve("memory_templates.json");
+        ShardCodec<ContainerKey, ContainerMemory> jsonCodec = new JsonShardCodec(worldEncoding);
         
-        try {
-            if (!Files.exists(MEMORY_FILE)) {
-                isLoaded = true;
-                return;
+        MemoryStore<ContainerKey, ContainerMemory> worldStore;
+        switch (SensibleStorageConfig.get().backend()) {
+            case MEMORY -> {
+                return new WorldStore(namespace, new InMemoryStore<>(ContainerKey::shard), null,
+                    new ItemIndex(null, StorageBackend.MEMORY.name(), worldEncoding), worldEncoding);
             }
-            
-            String jsonData = Files.readString(MEMORY_FILE);
-            JsonObject root = JsonParser.parseString(jsonData).getAsJsonObject();
-            
-            for (Map.Entry<String, JsonElement> entry : root.entrySet()) {
-                String containerId = entry.getKey();
-                JsonObject containerData = entry.getValue().getAsJsonObject();
-                
-                ContainerMemory memory = deserializeContainerMemory(containerData);
-                if (memory != null) {
-                    loadedMemories.put(containerId, memory);
+            case LEGACY_JSON -> {
+                SingleFileStore<ContainerKey, ContainerMemory> single =
+                    new SingleFileStore<>(singleFile, jsonCodec, ContainerKey::shard);
+                try {
+                    if (!single.load()) {
+                        // Switching from the sharded backend: start from everything in the shards
+                        RegionShardedStore<ContainerKey, ContainerMemory> shards = openShards(shardDir, singleFile, worldEncoding);
+                        shards.loadAll();
+                        single.importFrom(shards);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    SensibleStorage.LOGGER.error("Failed to load {}", singleFile, e);
                 }
+                worldStore = single;
             }
-            
-            isLoaded = true;
-            
+            default -> worldStore = openShards(shardDir, singleFile, worldEncoding);
+        }
+        
+        // A saved index only covers the shards it was saved with, so migrated shards need a fresh one
+        ItemIndex worldIndex = new ItemIndex(worldDir.resolve("item_index.bin"), SensibleStorageConfig.get().backend().name(),
+            worldEncoding);
+        boolean indexed = worldStore.stats().migratedFiles() == 0 && worldIndex.load();
+        
+        AppendJournal worldJournal = new AppendJournal(shardDir.resolve("journal.log"));
+        int replayed = worldJournal.replay(in -> applyRecord(worldStore, worldIndex, worldEncoding, in));
+        if (replayed > 0) {
+            SensibleStorage.LOGGER.info("Replayed {} memory template journal records for {}", replayed, namespace);
+        }
+        
+        if (!indexed) {
+            worldIndex.rebuild(worldStore);
+        }
+        return new WorldStore(namespace, worldStore, worldJournal, worldIndex, worldEncoding);
+    }
+    
+    /**
+     * IO thread: open a world's region shards, migrating older stores into them
+     *
+     * @param singleFile the world's legacy-json backend file, imported when switching back from that backend
+     */
+    private static RegionShardedStore<ContainerKey, ContainerMemory> openShards(Path shardDir, Path singleFile,
+                                                                               StackEncoding worldEncoding) {
+        // Templates from before per-world stores were shared by every world; the first world joined adopts them
+        try {
+            if (Files.isDirectory(LEGACY_SHARD_DIR) && !Files.exists(shardDir)) {
+                Files.createDirectories(shardDir.getParent());
+                Files.move(LEGACY_SHARD_DIR, shardDir);
+                SensibleStorage.LOGGER.info("Moved shared memory templates into world {}", shardDir.getParent().getFileName());
+            }
+        } catch (IOException e) {
+            SensibleStorage.LOGGER.error("Failed to move shared memory templates into world {}", shardDir.getParent().getFileName(), e);
+        }
+        
+        // Shards in the other format are converted to the configured one
+        boolean json = SensibleStorageConfig.get().useJsonStorage();
+        ShardCodec<ContainerKey, ContainerMemory> jsonCodec = new JsonShardCodec(worldEncoding);
+        ShardCodec<ContainerKey, ContainerMemory> binaryCodec = new BinaryShardCodec(worldEncoding);
+        RegionShardedStore<ContainerKey, ContainerMemory> shards = new RegionShardedStore<>(shardDir,
+            json ? "json" : "bin", json ? jsonCodec : binaryCodec, ContainerKey::shard);
+        
+        try {
+            shards.migrateShards(json ? "bin" : "json", json ? binaryCodec : jsonCodec, ContainerMemory::copy);
         } catch (Exception e) {
+            SensibleStorage.LOGGER.error("Failed to load memory template shards", e);
+        }
+        
+        for (Path legacyFile : List.of(LEGACY_MEMORY_FILE, singleFile)) {
             try {
-                Files.move(MEMORY_FILE, MEMORY_FILE.resolveSibling("memory_templates.json.corrupt"), 
-                          StandardCopyOption.REPLACE_EXISTING);
-            } catch (IOException backupError) {
+                shards.migrateFrom(legacyFile, jsonCodec, ContainerMemory::copy);
+            } catch (Exception e) {
+                SensibleStorage.LOGGER.error("Failed to migrate {}", legacyFile, e);
+                try {
+                    Files.move(legacyFile, legacyFile.resolveSibling(legacyFile.getFileName() + ".corrupt"), 
+                              StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException backupError) {
+                }
             }
-            isLoaded = true;
         }
+        return shards;
     }
     
     /**
-     * Save memory templates to disk
+     * Client thread: make an opened store current and sync it with the chunks already loaded
      */
-    public static void save() {
-        if (!isLoaded) return;
+    private static void install(WorldStore opened) {
+        pendingOpen = null;
+        store = opened.store();
+        journal = opened.journal();
+        itemIndex = opened.itemIndex();
+        encoding = opened.encoding();
+        if (itemIndex.isDirty()) {
+            saver.markDirty();
+        }
         
-        try {
-            JsonObject root = new JsonObject();
-            
-            for (Map.Entry<String, ContainerMemory> entry : loadedMemories.entrySet()) {
-                String containerId = entry.getKey();
-                ContainerMemory memory = entry.getValue();
-                
-                JsonObject containerData = serializeContainerMemory(memory);
-                root.add(containerId, containerData);
+        // Replay paged in the shards it touched; checkpoint them right away so they can be paged out again
+        releaseUnreferenced();
+        for (ShardKey shard : ShardPager.referencedShards()) {
+            pageIn(shard);
+        }
+        SensibleStorage.LOGGER.info("Opened memory templates for {}", opened.namespace());
+        
+        // The daily sweep reads every region, so it only starts once the store is usable and runs in the background
+        Path worldDir = WORLDS_DIR.resolve(opened.namespace());
+        MemoryStore<ContainerKey, ContainerMemory> installed = store;
+        CompletableFuture.supplyAsync(() -> MemorySweeper.isDue(worldDir), StorageExecutor.IO).thenAcceptAsync(due -> {
+            if (due && store == installed) {
+                sweepDaily(worldDir);
+            }
+        }, MinecraftClient.getInstance());
+    }
+    
+    /**
+     * Client thread: the automatic sweep of a world, at most once a day
+     */
+    private static void sweepDaily(Path worldDir) {
+        long now = System.currentTimeMillis();
+        sweep(false).whenComplete((report, error) -> {
+            if (error != null) {
+                SensibleStorage.LOGGER.error("Memory sweep of {} failed", worldDir.getFileName(), error);
+                return;
             }
+            if (report == null) return;
             
-            Files.createDirectories(STORAGE_DIR);
-            Files.writeString(MEMORY_FILE, GSON.toJson(root));
+            if (report.removed() > 0) {
+                SensibleStorage.LOGGER.info("Memory sweep of {}: {}", worldDir.getFileName(), report.describe());
+            }
+            StorageExecutor.IO.execute(() -> MemorySweeper.recordSweep(worldDir, now));
+        });
+    }
+    
+    /**
+     * Checkpoint any dirty shards, then page out every shard no loaded chunk needs
+     */
+    private static void releaseUnreferenced() {
+        if (store.isDirty()) {
+            saver.flushAsync();
+        }
+        
+        for (ShardKey shard : store.residentShards()) {
+            if (!ShardPager.isReferenced(shard)) {
+                pageOut(shard);
+            }
+        }
+    }
+    
+    /**
+     * Drop memories without templates and, if memoryExpiryDays is set, memories unused for that long
+     * Every region is read on the IO thread; the stale memories are then removed and journaled on the
+     * client thread one region at a time, each region paged in first and out again if no chunk needs it
+     *
+     * @param dryRun only count what would be removed
+     * @return completes on the client thread with what was (or would be) removed, or with null when no
+     *         world store is open or it is still loading
+     */
+    public static CompletableFuture<MemorySweeper.Report> sweep(boolean dryRun) {
+        if (store == null) return CompletableFuture.completedFuture(null);
+        
+        // The scan reads the saved regions, so unsaved edits are queued for writing ahead of it
+        if (store.isDirty()) {
+            saver.flushAsync();
+        }
+        
+        MemoryStore<ContainerKey, ContainerMemory> sweeping = store;
+        MinecraftClient client = MinecraftClient.getInstance();
+        return MemorySweeper.scan(sweeping, openedAt, client).thenComposeAsync(scan -> {
+            if (dryRun) return CompletableFuture.completedFuture(scan.report(true));
             
+            CompletableFuture<Void> removing = CompletableFuture.completedFuture(null);
+            for (Map.Entry<ShardKey, List<MemorySweeper.Stale>> region : scan.stale().entrySet()) {
+                removing = removing.thenCompose(done -> removeStale(sweeping, region.getKey(), region.getValue(), scan));
+            }
+            return removing.thenApply(done -> {
+                save();
+                return scan.report(false);
+            });
+        }, client);
+    }
+    
+    /**
+     * Client thread: remove the stale memories a sweep found in one region
+     * Memories still on disk are as the scan read them; those in memory may have been used since and are checked again
+     */
+    private static CompletableFuture<Void> removeStale(MemoryStore<ContainerKey, ContainerMemory> sweeping, ShardKey shard,
+                                                       List<MemorySweeper.Stale> stale, MemorySweeper.Scan scan) {
+        if (store != sweeping) return CompletableFuture.completedFuture(null);
+        
+        MinecraftClient client = MinecraftClient.getInstance();
+        return sweeping.loadShardAsync(shard, client).thenRun(() -> {
+            if (store != sweeping) return;
             
-        } catch (Exception e) {
+            for (MemorySweeper.Stale candidate : stale) {
+                ContainerKey containerId = candidate.containerId();
+                if (sweeping.isLoaded(containerId, client)) {
+                    ContainerMemory memory = sweeping.get(containerId);
+                    if (memory == null || !scan.isStale(memory)) continue;
+                }
+                removeContainer(containerId);
+                scan.recordRemoved(candidate);
+            }
+            if (!ShardPager.isReferenced(shard)) {
+                pageOut(shard);
+            }
+        });
+    }
+    
+    /**
+     * Finish a pending open before the store is flushed and released (disconnect)
+     * Waits at most the shutdown flush timeout; an open still running after that is abandoned, and its
+     * late completion ignored. Migrations and journal replay only rewrite files on the IO thread, so
+     * nothing it already did is lost, and the next join simply opens the world again
+     */
+    private static void awaitOpen() {
+        if (store != null || pendingOpen == null) return;
+        
+        CompletableFuture<WorldStore> opening = pendingOpen;
+        pendingOpen = null;
+        try {
+            install(opening.get(SensibleStorageConfig.get().shutdownFlushTimeoutMs, TimeUnit.MILLISECONDS));
+        } catch (TimeoutException e) {
+            SensibleStorage.LOGGER.warn("Gave up waiting for the memory templates of {} to open", worldNamespace);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            SensibleStorage.LOGGER.error("Failed to open memory templates", e.getCause());
         }
+        ready.complete(null);
     }
     
     /**
-     * Get or create memory for a container
+     * A region gained its first loaded chunk: read its shard in the background ahead of the first lookup
+     */
+    private static void pageIn(ShardKey shard) {
+        if (store == null) return;
+        
+        MemoryStore<ContainerKey, ContainerMemory> paging = store;
+        paging.loadShardAsync(shard, MinecraftClient.getInstance()).thenRun(() -> {
+            // The region's last chunk may have unloaded again while it was being read
+            if (store == paging && !ShardPager.isReferenced(shard)) {
+                pageOut(shard);
+            }
+        });
+    }
+    
+    /**
+     * A region lost its last loaded chunk: drop its shard, writing unsaved edits in the background
      */
-    public static ContainerMemory getOrCreateMemory(String containerId, int slotCount) {
-        if (!isLoaded) load();
+    private static void pageOut(ShardKey shard) {
+        if (store == null) return;
         
-        return loadedMemories.computeIfAbsent(containerId, k -> new ContainerMemory(slotCount));
+        MemoryStore.Flush snapshot = store.evictShard(shard, ContainerMemory::copy);
+        if (snapshot != null) {
+            StorageExecutor.IO.execute(snapshot::write);
+        }
     }
     
     /**
-     * Create a persistent container ID based on position and dimension
+     * Request a save; the write happens in the background once edits go quiet
      */
-    public static String createContainerIdFromPosition(String dimension, int x, int y, int z, String containerType) {
-        return String.format("%s_%s_%d_%d_%d", containerType, dimension, x, y, z);
+    public static void save() {
+        if (store == null) return;
+        saver.markDirty();
+    }
+    
+    /**
+     * Checkpoint pending changes now, waiting a bounded time (shutdown, disconnect, manual save)
+     */
+    public static void flush() {
+        if (store == null) return;
+        if (store.isDirty() || itemIndex.isDirty()) {
+            saver.markDirty();
+        }
+        saver.flushBlocking(SensibleStorageConfig.get().shutdownFlushTimeoutMs);
+    }
+    
+    /**
+     * Drive the write-behind saver, called every client tick
+     */
+    public static void tick() {
+        saver.tick();
+    }
+    
+    /**
+     * Get or create memory for a container
+     * Without an open world this returns a detached memory that is never saved. Edits check
+     * {@link #isReady(ContainerKey)} first, since otherwise this reads the region on the client thread
+     */
+    public static ContainerMemory getOrCreateMemory(ContainerKey containerId, int slotCount) {
+        if (store == null) return new ContainerMemory(slotCount);
+        
+        restoreParked(containerId);
+        return store.computeIfAbsent(containerId, k -> new ContainerMemory(slotCount));
     }
     
     /**
      * Get memory templates for a container
      */
-    public static ItemStack[] getMemoryTemplates(String containerId, int slotCount) {
+    public static SparseTemplates getMemoryTemplates(ContainerKey containerId, int slotCount) {
         ContainerMemory memory = getOrCreateMemory(containerId, slotCount);
         
-        // Resize if needed
-        if (memory.templates.length != slotCount) {
-            ItemStack[] newTemplates = new ItemStack[slotCount];
-            int copyLength = Math.min(memory.templates.length, slotCount);
-            System.arraycopy(memory.templates, 0, newTemplates, 0, copyLength);
-            
-            // Fill remaining with EMPTY
-            for (int i = copyLength; i < slotCount; i++) {
-                newTemplates[i] = ItemStack.EMPTY;
-            }
-            
-            memory.templates = newTemplates;
+        if (memory.templates.ensureSlots(slotCount) && store != null) {
             memory.lastModified = System.currentTimeMillis();
+            store.markDirty(containerId);
         }
         
         return memory.templates;
     }
     
     /**
-     * Mark container memory as modified (for auto-save)
+     * Look up a container's templates without creating them, or null when it has none
+     */
+    public static SparseTemplates getTemplates(ContainerKey containerId) {
+        ContainerMemory memory = getMemory(containerId);
+        return memory != null ? memory.templates : null;
+    }
+    
+    /**
+     * Look up a container's memory without creating it; null when it has none or it is still being read
+     */
+    public static ContainerMemory getMemory(ContainerKey containerId) {
+        if (!isReady(containerId)) return null;
+        
+        restoreParked(containerId);
+        return store.get(containerId);
+    }
+    
+    /**
+     * Container IDs with memory whose position lies in the given chunk; empty until {@link #isChunkReady}
+     * Only the region's key list is consulted, so no memory is decoded
+     */
+    public static List<ContainerKey> containerIdsInChunk(String dimension, int chunkX, int chunkZ) {
+        if (!isChunkReady(dimension, chunkX, chunkZ)) return List.of();
+        
+        List<ContainerKey> matches = new ArrayList<>();
+        for (ContainerKey containerId : store.regionKeys(ShardKey.ofChunk(dimension, chunkX, chunkZ))) {
+            long pos = containerId.packedPos();
+            if (containerId.isPositioned() && BlockPos.unpackLongX(pos) >> 4 == chunkX && BlockPos.unpackLongZ(pos) >> 4 == chunkZ) {
+                matches.add(containerId);
+            }
+        }
+        return matches;
+    }
+    
+    /**
+     * Container IDs with memory at a block position, one per container type ever opened there
+     * Empty until the position's chunk is {@link #isChunkReady ready}
+     */
+    public static List<ContainerKey> containerIdsAt(String dimension, BlockPos pos) {
+        if (!isChunkReady(dimension, pos.getX() >> 4, pos.getZ() >> 4)) return List.of();
+        
+        Set<ContainerKey> regionKeys = store.regionKeys(ShardKey.of(dimension, pos.getX(), pos.getZ()));
+        List<ContainerKey> matches = new ArrayList<>();
+        for (ContainerKey.Type type : ContainerKey.Type.values()) {
+            ContainerKey containerId = ContainerKey.of(type, dimension, pos);
+            if (regionKeys.contains(containerId)) {
+                matches.add(containerId);
+            }
+        }
+        return matches;
+    }
+    
+    /**
+     * Nearest containers in a dimension with a template matching the stack, closest first; empty while the store is loading
+     * Answered by the item index alone, so no region is read
+     */
+    public static List<ItemIndex.Match> findContainersFor(ItemStack stack, String dimension, BlockPos origin, int limit) {
+        if (store == null) return List.of();
+        return itemIndex.nearest(stack, dimension, origin, limit);
+    }
+    
+    /**
+     * The container is gone from the world: remove its memory, parking it for the rest of the session
+     * so that putting a container back at the same spot brings the templates back
+     *
+     * @return false if its memory is still being read, so the caller should try again later
+     */
+    public static boolean parkContainer(ContainerKey containerId) {
+        if (store != null && !isReady(containerId)) return false;
+        
+        ContainerMemory memory = getMemory(containerId);
+        if (memory == null) return true;
+        
+        removeContainer(containerId);
+        if (!memory.templates.isEmpty()) {
+            memory.memorizeMode = false;
+            tombstones.put(containerId, memory);
+        }
+        return true;
+    }
+    
+    /**
+     * Bring back a parked memory, journaling it like a capture so it is saved again
      */
-    public static void markModified(String containerId) {
-        ContainerMemory memory = loadedMemories.get(containerId);
+    private static void restoreParked(ContainerKey containerId) {
+        if (tombstones.isEmpty()) return;
+        
+        ContainerMemory parked = tombstones.remove(containerId);
+        if (parked == null || store.get(containerId) != null) return;
+        
+        store.put(containerId, parked);
+        recordClear(containerId);
+        for (int slot = parked.templates.nextSlot(0); slot >= 0; slot = parked.templates.nextSlot(slot + 1)) {
+            recordSlot(containerId, slot);
+        }
+        SensibleStorage.LOGGER.debug("Restored memory of {} from its tombstone", containerId);
+    }
+    
+    /**
+     * Keep a container's memory decoded while an open screen holds its templates
+     */
+    public static void pin(ContainerKey containerId) {
+        if (store != null) {
+            store.pin(containerId);
+        }
+    }
+    
+    /**
+     * Release a pin taken by {@link #pin} when the screen closes
+     */
+    public static void unpin(ContainerKey containerId) {
+        if (store != null) {
+            store.unpin(containerId);
+        }
+    }
+    
+    /**
+     * Note that a container with memory was used, so age-based expiry keeps it
+     * Refreshed at most once a day, so simply using containers rarely costs a shard rewrite
+     */
+    public static void touch(ContainerKey containerId) {
+        ContainerMemory memory = getMemory(containerId);
+        long now = System.currentTimeMillis();
+        if (memory != null && now - memory.lastModified > TimeUnit.DAYS.toMillis(1)) {
+            memory.lastModified = now;
+            store.markDirty(containerId);
+            save();
+        }
+    }
+    
+    /**
+     * Mark container memory as modified and schedule a write-behind save
+     */
+    public static void markModified(ContainerKey containerId) {
+        if (store == null) return;
+        
+        ContainerMemory memory = store.get(containerId);
         if (memory != null) {
             memory.lastModified = System.currentTimeMillis();
+            store.markDirty(containerId);
+            itemIndex.reindex(containerId, memory.templates);
+            save();
         }
     }
     
     /**
-     * Remove container memory (when explicitly cleared or container is removed)
+     * Journal a single template slot after it was changed in place (memorize mode)
      */
-    public static void removeContainer(String containerId) {
-        loadedMemories.remove(containerId);
-        save(); // Immediately save when removing
+    public static void recordSlot(ContainerKey containerId, int slotIndex) {
+        if (store == null) return;
+        
+        ContainerMemory memory = store.get(containerId);
+        if (memory == null || slotIndex < 0 || slotIndex >= memory.templates.slotCount()) return;
+        
+        long now = System.currentTimeMillis();
+        memory.lastModified = now;
+        store.markDirty(containerId);
+        
+        int slotCount = memory.templates.slotCount();
+        ItemStack template = memory.templates.get(slotIndex);
+        StackEncoding recordEncoding = encoding;
+        itemIndex.reindex(containerId, memory.templates);
+        appendRecord(out -> {
+            out.writeByte(RECORD_SET_SLOT | RECORD_KEYED);
+            out.writeVarLong(now);
+            containerId.write(out);
+            out.writeVarInt(slotCount);
+            out.writeVarInt(slotIndex);
+            if (template == null || template.isEmpty()) {
+                out.writeString("");
+                out.writeString("");
+                out.writeVarInt(0);
+            } else {
+                out.writeString(StackEncoding.itemId(template));
+                out.writeString(recordEncoding.encodeComponents(template));
+                out.writeVarInt(template.getCount());
+            }
+        });
     }
     
     /**
-     * Get all loaded container IDs
+     * Journal that every template slot of a container was emptied
      */
-    public static java.util.Set<String> getLoadedContainerIds() {
-        return loadedMemories.keySet();
+    public static void recordClear(ContainerKey containerId) {
+        if (store == null) return;
+        
+        ContainerMemory memory = store.get(containerId);
+        if (memory == null) return;
+        
+        long now = System.currentTimeMillis();
+        memory.lastModified = now;
+        store.markDirty(containerId);
+        itemIndex.reindex(containerId, memory.templates);
+        
+        int slotCount = memory.templates.slotCount();
+        appendRecord(out -> {
+            out.writeByte(RECORD_CLEAR_CONTAINER | RECORD_KEYED);
+            out.writeVarLong(now);
+            containerId.write(out);
+            out.writeVarInt(slotCount);
+        });
     }
     
     /**
-     * Check if any memory templates exist for a container
+     * Journal a container's memorize mode after it was switched
+     */
+    public static void recordMemorizeMode(ContainerKey containerId) {
+        if (store == null) return;
+        
+        ContainerMemory memory = store.get(containerId);
+        if (memory == null) return;
+        
+        long now = System.currentTimeMillis();
+        memory.lastModified = now;
+        store.markDirty(containerId);
+        
+        int slotCount = memory.templates.slotCount();
+        boolean memorizeMode = memory.memorizeMode;
+        appendRecord(out -> {
+            out.writeByte(RECORD_MEMORIZE_MODE | RECORD_KEYED);
+            out.writeVarLong(now);
+            containerId.write(out);
+            out.writeVarInt(slotCount);
+            out.writeBoolean(memorizeMode);
+        });
+    }
+    
+    /**
+     * Remove container memory (when explicitly cleared or container is removed)
      */
-    public static boolean hasAnyMemoryTemplates(String containerId) {
-        if (!isLoaded) load();
+    public static void removeContainer(ContainerKey containerId) {
+        if (store == null || !store.discard(containerId)) return;
+        itemIndex.remove(containerId);
         
-        ContainerMemory memory = loadedMemories.get(containerId);
-        if (memory == null || memory.templates == null) {
-            return false;
+        long now = System.currentTimeMillis();
+        appendRecord(out -> {
+            out.writeByte(RECORD_REMOVE_CONTAINER | RECORD_KEYED);
+            out.writeVarLong(now);
+            containerId.write(out);
+        });
+    }
+    
+    /**
+     * Journal an edit, starting a background checkpoint once the journal has grown past the configured size
+     * The memory backend has no journal, so its edits only mark the store dirty
+     */
+    private static void appendRecord(AppendJournal.RecordWriter writer) {
+        if (journal == null) {
+            save();
+            return;
         }
         
-        for (ItemStack template : memory.templates) {
-            if (template != null && !template.isEmpty()) {
-                return true;
-            }
+        journal.append(writer);
+        if (journal.size() >= SensibleStorageConfig.get().journalCheckpointBytes) {
+            saver.flushAsync();
         }
-        return false;
     }
-
+    
     /**
-     * Serialize container memory to JSON
+     * Client thread: every record journaled so far is covered by the dirty shards being copied
      */
-    private static JsonObject serializeContainerMemory(ContainerMemory memory) {
-        JsonObject obj = new JsonObject();
+    private static Checkpoint snapshotCheckpoint() {
+        if (journal != null) {
+            journal.beginCheckpoint();
+        }
+        return new Checkpoint(store.snapshotDirty(ContainerMemory::copy), journal, itemIndex.snapshot());
+    }
+    
+    /**
+     * IO thread: rotate the journal, rewrite the dirty shards, then drop the rotated journal
+     * The rotated journal is kept if any shard failed, so its records are replayed on next load
+     */
+    private static void writeCheckpoint(Checkpoint checkpoint) {
+        MemoryStore.Flush snapshot = checkpoint.snapshot();
+        AppendJournal journal = checkpoint.journal();
+        if (journal == null) {
+            snapshot.write();
+            return;
+        }
         
-        // Serialize templates
-        JsonArray templatesArray = new JsonArray();
-        for (ItemStack stack : memory.templates) {
-            JsonObject stackObj = serializeItemStack(stack);
-            templatesArray.add(stackObj);
+        boolean rotated = true;
+        try {
+            journal.rotate();
+        } catch (IOException e) {
+            SensibleStorage.LOGGER.error("Failed to rotate memory template journal", e);
+            rotated = false;
         }
-        obj.add("templates", templatesArray);
         
-        obj.addProperty("memorizeMode", memory.memorizeMode);
-        obj.addProperty("lastModified", memory.lastModified);
+        snapshot.write();
+        // Saved before the rotated journal is dropped: records it held are only covered by this copy
+        if (checkpoint.itemIndex() != null) {
+            checkpoint.itemIndex().write();
+        }
         
-        return obj;
+        if (rotated && snapshot.isComplete()) {
+            try {
+                journal.commitCheckpoint();
+            } catch (IOException e) {
+                SensibleStorage.LOGGER.warn("Failed to delete rotated memory template journal", e);
+            }
+        }
     }
     
     /**
-     * Deserialize container memory from JSON
+     * Apply one journal record on load; records hold absolute values, so replaying twice is harmless
+     * The item index is updated alongside, so it matches the store once the journal is replayed
      */
-    private static ContainerMemory deserializeContainerMemory(JsonObject obj) {
-        try {
+    private static void applyRecord(MemoryStore<ContainerKey, ContainerMemory> store, ItemIndex itemIndex,
+                                    StackEncoding encoding, BinaryInput in) throws IOException {
+        int type = in.readByte();
+        long timestamp = in.readVarLong();
+        // Journals written before structured keys hold the legacy string ID
+        ContainerKey containerId = (type & RECORD_KEYED) != 0 ? ContainerKey.read(in) : ContainerKey.parseLegacyId(in.readString());
+        
+        switch (type & ~RECORD_KEYED) {
+            case RECORD_SET_SLOT -> {
+                int slotCount = in.readCount(MAX_SLOTS);
+                int slotIndex = in.readVarInt();
+                String itemId = in.readString();
+                String components = in.readString();
+                int count = in.readVarInt();
+                
+                ContainerMemory memory = store.computeIfAbsent(containerId, k -> new ContainerMemory(slotCount));
+                memory.templates.ensureSlots(slotCount);
+                ItemStack template = itemId.isEmpty() ? ItemStack.EMPTY
+                    : TemplatePool.intern(encoding.decode(itemId, components, count));
+                memory.templates.set(slotIndex, template);
+                itemIndex.reindex(containerId, memory.templates);
+                memory.lastModified = timestamp;
+                store.markDirty(containerId);
+            }
+            case RECORD_CLEAR_CONTAINER -> {
+                int slotCount = in.readCount(MAX_SLOTS);
+                ContainerMemory memory = store.computeIfAbsent(containerId, k -> new ContainerMemory(slotCount));
+                memory.templates.ensureSlots(slotCount);
+                memory.templates.clear();
+                itemIndex.reindex(containerId, memory.templates);
+                memory.lastModified = timestamp;
+                store.markDirty(containerId);
+            }
+            case RECORD_MEMORIZE_MODE -> {
+                int slotCount = in.readCount(MAX_SLOTS);
+                boolean memorizeMode = in.readBoolean();
+                ContainerMemory memory = store.computeIfAbsent(containerId, k -> new ContainerMemory(slotCount));
+                memory.templates.ensureSlots(slotCount);
+                memory.memorizeMode = memorizeMode;
+                memory.lastModified = timestamp;
+                store.markDirty(containerId);
+            }
+            case RECORD_REMOVE_CONTAINER -> {
+                store.remove(containerId);
+                itemIndex.remove(containerId);
+            }
+            default -> throw new IOException("Unknown journal record type " + type);
+        }
+    }
+    
+    /**
+     * Get the container IDs currently paged in
+     */
+    public static java.util.Set<ContainerKey> getLoadedContainerIds() {
+        return store != null ? store.keys() : Set.of();
+    }
+    
+    /**
+     * Check if any memory templates exist for a container
+     */
+    public static boolean hasAnyMemoryTemplates(ContainerKey containerId) {
+        SparseTemplates templates = getTemplates(containerId);
+        return templates != null && !templates.isEmpty();
+    }
+
+    /**
+     * Number of shards currently paged in
+     */
+    public static int getShardCount() {
+        return store != null ? store.shardCount() : 0;
+    }
+    
+    /**
+     * Load time and JSON migration savings for the stats command
+     */
+    public static StoreStats getStoreStats() {
+        return store != null ? store.stats() : new StoreStats("closed");
+    }
+    
+    /**
+     * Compact binary shard format
+     *
+     * Layout: magic, version, a palette of distinct (item id, components) pairs, then per
+     * container its ID, flags, lastModified, slot count, the occupancy bitmap as varlong
+     * words and one palette index per templated slot. Version 1 files, which stored
+     * (slot delta, palette index, count) triples instead of the bitmap, are still read.
+     *
+     * Since version 3 the containers are followed by an index of (container ID, file offset)
+     * pairs and, in the last 8 bytes, the offset of that index, so a single container can be
+     * read without decoding the rest. Compressed files are not seekable and are always read whole.
+     * Version 4 writes container IDs as binary {@link ContainerKey}s instead of legacy strings.
+     */
+    private static class BinaryShardCodec implements IndexedShardCodec<ContainerKey, ContainerMemory> {
+        private final StackEncoding encoding;
+        
+        BinaryShardCodec(StackEncoding encoding) {
+            this.encoding = encoding;
+        }
+        
+        /**
+         * Version 3 came after checkpoints, so such files always end in a checksum trailer
+         */
+        @Override
+        public boolean requiresTrailer(Path file) throws IOException {
+            try (ReadableByteChannel channel = StoreFiles.openRead(file)) {
+                BinaryInput in = new BinaryInput(channel);
+                return in.readInt() == BINARY_MAGIC && in.readVarInt() >= 3;
+            }
+        }
+        
+        @Override
+        public Map<ContainerKey, ContainerMemory> read(Path file) throws IOException {
+            try (ReadableByteChannel channel = StoreFiles.openRead(file)) {
+                BinaryInput in = new BinaryInput(channel);
+                if (in.readInt() != BINARY_MAGIC) {
+                    throw new IOException("Not a memory template shard: " + file);
+                }
+                int version = in.readVarInt();
+                if (version < 1 || version > BINARY_VERSION) {
+                    throw new IOException("Unsupported memory template shard version " + version);
+                }
+                
+                ItemStack[] palette = readPalette(in);
+                int containerCount = in.readCount(Integer.MAX_VALUE);
+                Map<ContainerKey, ContainerMemory> containers = new HashMap<>();
+                for (int c = 0; c < containerCount; c++) {
+                    ContainerKey containerId = readKey(in, version);
+                    containers.put(containerId, readContainer(in, version, palette, containerId));
+                }
+                return containers;
+            }
+        }
+        
+        @Override
+        public boolean writesIndex() {
+            return !SensibleStorageConfig.get().compressStorage;
+        }
+        
+        @Override
+        public ShardIndex<ContainerKey, ContainerMemory> readIndex(Path file, long length) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                BinaryInput in = new BinaryInput(channel);
+                // Compressed files start with the gzip header instead
+                if (in.readInt() != BINARY_MAGIC) return null;
+                int version = in.readVarInt();
+                if (version < 3 || version > BINARY_VERSION) return null;
+                ItemStack[] palette = readPalette(in);
+                
+                ByteBuffer footer = ByteBuffer.allocate(Long.BYTES);
+                channel.read(footer, length - Long.BYTES);
+                long indexOffset = footer.flip().getLong();
+                if (indexOffset <= 0 || indexOffset > length - Long.BYTES) {
+                    throw new IOException("Corrupt container index in " + file);
+                }
+                
+                channel.position(indexOffset);
+                in = new BinaryInput(channel);
+                int count = in.readCount(Integer.MAX_VALUE);
+                Map<ContainerKey, Integer> positions = new HashMap<>();
+                long[] offsets = new long[count + 1];
+                for (int i = 0; i < count; i++) {
+                    positions.put(readKey(in, version), i);
+                    offsets[i] = in.readVarLong();
+                }
+                // Containers are written back to back, so each one ends where the next begins
+                offsets[count] = indexOffset;
+                return new BinaryShardIndex(file, version, palette, positions, offsets);
+            }
+        }
+        
+        private static ContainerKey readKey(BinaryInput in, int version) throws IOException {
+            return version >= 4 ? ContainerKey.read(in) : ContainerKey.parseLegacyId(in.readString());
+        }
+        
+        private ItemStack[] readPalette(BinaryInput in) throws IOException {
+            ItemStack[] palette = new ItemStack[in.readCount(MAX_SLOTS * 64)];
+            for (int i = 0; i < palette.length; i++) {
+                palette[i] = TemplatePool.intern(encoding.decode(in.readString(), in.readString(), 1));
+            }
+            return palette;
+        }
+        
+        /**
+         * Decode one container following its ID
+         */
+        private static ContainerMemory readContainer(BinaryInput in, int version, ItemStack[] palette, ContainerKey containerId) throws IOException {
             ContainerMemory memory = new ContainerMemory();
+            memory.memorizeMode = (in.readByte() & 1) != 0;
+            memory.lastModified = in.readVarLong();
+            memory.templates = version == 1 ? readSlotTriples(in, palette, containerId)
+                : readOccupancy(in, palette, containerId);
+            return memory;
+        }
+        
+
+        private static SparseTemplates readOccupancy(BinaryInput in, ItemStack[] palette, ContainerKey containerId) throws IOException {
+            int slotCount = in.readCount(MAX_SLOTS);
+            long[] occupancy = new long[(slotCount + 63) >>> 6];
+            int filled = 0;
+            for (int i = 0; i < occupancy.length; i++) {
+                occupancy[i] = in.readVarLong();
+                filled += Long.bitCount(occupancy[i]);
+            }
             
-            // Deserialize templates
-            JsonArray templatesArray = obj.getAsJsonArray("templates");
-            memory.templates = new ItemStack[templatesArray.size()];
+            ItemStack[] templates = new ItemStack[filled];
+            for (int i = 0; i < filled; i++) {
+                int paletteIndex = in.readVarInt();
+                if (paletteIndex >= palette.length) {
+                    throw new IOException("Corrupt slot entry in " + containerId);
+                }
+                templates[i] = palette[paletteIndex];
+            }
             
-            for (int i = 0; i < templatesArray.size(); i++) {
-                JsonObject stackObj = templatesArray.get(i).getAsJsonObject();
-                memory.templates[i] = deserializeItemStack(stackObj);
+            try {
+                return SparseTemplates.of(slotCount, occupancy, templates);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Corrupt occupancy bitmap in " + containerId, e);
+            }
+        }
+        
+        private static SparseTemplates readSlotTriples(BinaryInput in, ItemStack[] palette, ContainerKey containerId) throws IOException {
+            SparseTemplates templates = new SparseTemplates(in.readCount(MAX_SLOTS));
+            int filled = in.readCount(templates.slotCount());
+            int slot = -1;
+            for (int i = 0; i < filled; i++) {
+                slot += in.readVarInt() + 1;
+                int paletteIndex = in.readVarInt();
+                in.readVarInt(); // count, unused since templates ignore it
+                if (slot >= templates.slotCount() || paletteIndex >= palette.length) {
+                    throw new IOException("Corrupt slot entry in " + containerId);
+                }
+                templates.set(slot, palette[paletteIndex]);
+            }
+            return templates;
+        }
+        
+        @Override
+        public void write(Map<ContainerKey, ContainerMemory> containers, Path file) throws IOException {
+            // First pass: build the palette and each container's palette indices in slot order
+            // Pooled templates are shared instances, so the palette groups them by identity without encoding each slot
+            Palette<ItemStack> palette = new Palette<>();
+            Map<ContainerKey, int[]> slotEntries = new TreeMap<>();
+            for (Map.Entry<ContainerKey, ContainerMemory> entry : containers.entrySet()) {
+                ItemStack[] templates = entry.getValue().templates.filledTemplates();
+                int[] indices = new int[templates.length];
+                for (int i = 0; i < templates.length; i++) {
+                    indices[i] = palette.indexOf(TemplatePool.intern(templates[i]));
+                }
+                slotEntries.put(entry.getKey(), indices);
             }
             
-            memory.memorizeMode = obj.has("memorizeMode") ? obj.get("memorizeMode").getAsBoolean() : false;
-            memory.lastModified = obj.has("lastModified") ? obj.get("lastModified").getAsLong() : System.currentTimeMillis();
+            try (WritableByteChannel channel = StoreFiles.openWrite(file, SensibleStorageConfig.get().compressStorage)) {
+                BinaryOutput out = new BinaryOutput(channel);
+                out.writeInt(BINARY_MAGIC);
+                out.writeVarInt(BINARY_VERSION);
+                
+                out.writeVarInt(palette.size());
+                for (ItemStack paletteEntry : palette.entries()) {
+                    out.writeString(StackEncoding.itemId(paletteEntry));
+                    out.writeString(encoding.encodeComponents(paletteEntry));
+                }
+                
+                out.writeVarInt(slotEntries.size());
+                long[] offsets = new long[slotEntries.size()];
+                int position = 0;
+                for (Map.Entry<ContainerKey, int[]> entry : slotEntries.entrySet()) {
+                    ContainerMemory memory = containers.get(entry.getKey());
+                    
+                    offsets[position++] = out.bytesWritten();
+                    entry.getKey().write(out);
+                    out.writeByte(memory.memorizeMode ? 1 : 0);
+                    out.writeVarLong(memory.lastModified);
+                    out.writeVarInt(memory.templates.slotCount());
+                    for (long word : memory.templates.occupancy()) {
+                        out.writeVarLong(word);
+                    }
+                    for (int paletteIndex : entry.getValue()) {
+                        out.writeVarInt(paletteIndex);
+                    }
+                }
+                
+                long indexOffset = out.bytesWritten();
+                out.writeVarInt(slotEntries.size());
+                position = 0;
+                for (ContainerKey containerId : slotEntries.keySet()) {
+                    containerId.write(out);
+                    out.writeVarLong(offsets[position++]);
+                }
+                out.writeLong(indexOffset);
+                out.flush();
+            }
+        }
+    }
+    
+    /**
+     * Container offsets of one version 3+ binary shard, read back one container at a time
+     */
+    private record BinaryShardIndex(Path file, int version, ItemStack[] palette, Map<ContainerKey, Integer> positions,
+                                    long[] offsets) implements IndexedShardCodec.ShardIndex<ContainerKey, ContainerMemory> {
+        @Override
+        public Set<ContainerKey> keys() {
+            return positions.keySet();
+        }
+        
+        @Override
+        public ContainerMemory read(ContainerKey containerId) throws IOException {
+            Integer position = positions.get(containerId);
+            if (position == null) {
+                throw new IOException(containerId + " is not in " + file);
+            }
             
-            return memory;
+            // Each container is small, so read exactly its bytes rather than buffering the file
+            long offset = offsets[position];
+            ByteBuffer bytes = ByteBuffer.allocate(Math.toIntExact(offsets[position + 1] - offset));
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                while (bytes.hasRemaining()) {
+                    if (channel.read(bytes, offset + bytes.position()) < 0) {
+                        throw new IOException("Truncated container " + containerId + " in " + file);
+                    }
+                }
+            }
             
-        } catch (Exception e) {
-            return null;
+            BinaryInput in = new BinaryInput(bytes.array());
+            if (!containerId.equals(BinaryShardCodec.readKey(in, version))) {
+                throw new IOException("Stale container index for " + file);
+            }
+            return BinaryShardCodec.readContainer(in, version, palette, containerId);
         }
     }
     
     /**
-     * Serialize ItemStack to JSON (simplified approach)
+     * JSON shard format: one object mapping container ID to its serialized memory
+     * Streamed one container at a time, so peak heap does not grow with the file size
      */
-    private static JsonObject serializeItemStack(ItemStack stack) {
-        JsonObject obj = new JsonObject();
+    private static class JsonShardCodec implements ShardCodec<ContainerKey, ContainerMemory> {
+        private final StackEncoding encoding;
         
-        if (stack.isEmpty()) {
-            obj.addProperty("empty", true);
-            return obj;
+        JsonShardCodec(StackEncoding encoding) {
+            this.encoding = encoding;
+        }
+        
+        @Override
+        public Map<ContainerKey, ContainerMemory> read(Path file) throws IOException {
+            Map<ContainerKey, ContainerMemory> containers = new HashMap<>();
+            try (JsonReader reader = JsonStreams.reader(file)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    ContainerKey containerId = ContainerKey.parseLegacyId(reader.nextName());
+                    containers.put(containerId, readContainerMemory(reader, encoding));
+                }
+                reader.endObject();
+            }
+            return containers;
         }
         
-        // Store item ID and count (without complex NBT for now)
-        Identifier itemId = Registries.ITEM.getId(stack.getItem());
-        obj.addProperty("item", itemId.toString());
-        obj.addProperty("count", stack.getCount());
+        @Override
+        public void write(Map<ContainerKey, ContainerMemory> containers, Path file) throws IOException {
+            try (JsonWriter writer = JsonStreams.writer(file, SensibleStorageConfig.get().compressStorage)) {
+                writer.beginObject();
+                for (Map.Entry<ContainerKey, ContainerMemory> entry : new TreeMap<>(containers).entrySet()) {
+                    writer.name(entry.getKey().toLegacyId());
+                    writeContainerMemory(writer, entry.getValue(), encoding);
+                }
+                writer.endObject();
+            }
+        }
+    }
+    
+    /**
+     * Write container memory as JSON
+     */
+    private static void writeContainerMemory(JsonWriter writer, ContainerMemory memory, StackEncoding encoding) throws IOException {
+        writer.beginObject();
         
-        // Note: For simplicity, we're not storing complex NBT data like enchantments
-        // In a production system, you'd want to serialize the full ItemStack with all components
+        writer.name("slotCount").value(memory.templates.slotCount());
+        writer.name("slots").beginObject();
+        for (int slot = memory.templates.nextSlot(0); slot >= 0; slot = memory.templates.nextSlot(slot + 1)) {
+            writer.name(Integer.toString(slot));
+            writeItemStack(writer, memory.templates.get(slot), encoding);
+        }
+        writer.endObject();
         
-        return obj;
+        writer.name("memorizeMode").value(memory.memorizeMode);
+        writer.name("lastModified").value(memory.lastModified);
+        writer.endObject();
     }
     
     /**
-     * Deserialize ItemStack from JSON
+     * Read container memory from JSON, skipping fields we don't know
+     *
+     * Older files store a dense "templates" array with an entry for every slot; newer
+     * ones store "slotCount" and a "slots" object holding only the templated slots.
      */
-    private static ItemStack deserializeItemStack(JsonObject obj) {
-        try {
-            if (obj.has("empty") && obj.get("empty").getAsBoolean()) {
-                return ItemStack.EMPTY;
+    private static ContainerMemory readContainerMemory(JsonReader reader, StackEncoding encoding) throws IOException {
+        ContainerMemory memory = new ContainerMemory();
+        List<ItemStack> templates = new ArrayList<>();
+        Map<Integer, ItemStack> slots = new HashMap<>();
+        int slotCount = 0;
+        
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "templates" -> {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        templates.add(readItemStack(reader, encoding));
+                    }
+                    reader.endArray();
+                }
+                case "slotCount" -> slotCount = reader.nextInt();
+                case "slots" -> {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        int slot = Integer.parseInt(reader.nextName());
+                        slots.put(slot, readItemStack(reader, encoding));
+                    }
+                    reader.endObject();
+                }
+                case "memorizeMode" -> memory.memorizeMode = reader.nextBoolean();
+                case "lastModified" -> memory.lastModified = reader.nextLong();
+                default -> reader.skipValue();
             }
-            
-            String itemIdStr = obj.get("item").getAsString();
-            Identifier itemId = Identifier.tryParse(itemIdStr);
-            if (itemId == null) {
-                return ItemStack.EMPTY;
+        }
+        reader.endObject();
+        
+        memory.templates = new SparseTemplates(Math.min(Math.max(slotCount, templates.size()), MAX_SLOTS));
+        for (int slot = 0; slot < templates.size(); slot++) {
+            memory.templates.set(slot, templates.get(slot));
+        }
+        for (Map.Entry<Integer, ItemStack> slot : slots.entrySet()) {
+            memory.templates.set(slot.getKey(), slot.getValue());
+        }
+        return memory;
+    }
+    
+    /**
+     * Write an ItemStack as JSON, with its component changes when it has any
+     */
+    private static void writeItemStack(JsonWriter writer, ItemStack stack, StackEncoding encoding) throws IOException {
+        writer.beginObject();
+        if (stack == null || stack.isEmpty()) {
+            writer.name("empty").value(true);
+        } else {
+            writer.name("item").value(StackEncoding.itemId(stack));
+            writer.name("count").value(stack.getCount());
+            String components = encoding.encodeComponents(stack);
+            if (!components.isEmpty()) {
+                writer.name("components").value(components);
             }
-            
-            var item = Registries.ITEM.get(itemId);
-            int count = obj.has("count") ? obj.get("count").getAsInt() : 1;
-            
-            return new ItemStack(item, count);
-            
-        } catch (Exception e) {
+        }
+        writer.endObject();
+    }
+    
+    /**
+     * Read an ItemStack from JSON; unknown items come back as EMPTY
+     */
+    private static ItemStack readItemStack(JsonReader reader, StackEncoding encoding) throws IOException {
+        boolean empty = false;
+        String itemId = null;
+        String components = "";
+        int count = 1;
+        
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "empty" -> empty = reader.nextBoolean();
+                case "item" -> itemId = reader.nextString();
+                case "count" -> count = reader.nextInt();
+                case "components" -> components = reader.nextString();
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+        
+        if (empty || itemId == null) {
             return ItemStack.EMPTY;
         }
+        return TemplatePool.intern(encoding.decode(itemId, components, count));
     }
 }
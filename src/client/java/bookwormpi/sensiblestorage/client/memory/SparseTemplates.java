@@ -0,0 +1,203 @@
+package bookwormpi.sensiblestorage.client.memory;
+
+import net.minecraft.item.ItemStack;
+
+import java.util.Arrays;
+
+/**
+ * Sparse template slots for one container
+ *
+ * An occupancy bitmap marks the templated slots and a dense array holds just those
+ * templates in slot order, so a 54-slot chest with three templates stores three
+ * references. A slot's position in the dense array is its rank in the bitmap: the
+ * filled count of the words before it (kept as a prefix sum) plus a popcount within
+ * its own word, which makes lookups O(1).
+ *
+ * Templates are shared {@link TemplatePool} instances and are never mutated.
+ */
+public final class SparseTemplates {
+    private static final ItemStack[] NO_TEMPLATES = new ItemStack[0];
+    
+    private int slotCount;
+    private long[] occupied;
+    private int[] rankBefore;
+    private ItemStack[] filled;
+    private int filledCount;
+    
+    public SparseTemplates(int slotCount) {
+        this.slotCount = Math.max(0, slotCount);
+        this.occupied = new long[wordCount(this.slotCount)];
+        this.rankBefore = new int[occupied.length];
+        this.filled = NO_TEMPLATES;
+    }
+    
+    private static int wordCount(int slotCount) {
+        return (slotCount + 63) >>> 6;
+    }
+    
+    /**
+     * Number of slots in the container
+     */
+    public int slotCount() {
+        return slotCount;
+    }
+    
+    /**
+     * Number of slots that have a template
+     */
+    public int filledCount() {
+        return filledCount;
+    }
+    
+    /**
+     * Whether no slot has a template
+     */
+    public boolean isEmpty() {
+        for (long word : occupied) {
+            if (word != 0) return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Template for a slot, or EMPTY when the slot has none or is out of range
+     */
+    public ItemStack get(int slot) {
+        if (slot < 0 || slot >= slotCount) return ItemStack.EMPTY;
+        
+        long bit = 1L << slot;
+        long word = occupied[slot >>> 6];
+        if ((word & bit) == 0) return ItemStack.EMPTY;
+        return filled[rankBefore[slot >>> 6] + Long.bitCount(word & (bit - 1))];
+    }
+    
+    /**
+     * Set or clear a slot's template; slots beyond the container size are ignored
+     */
+    public void set(int slot, ItemStack template) {
+        if (slot < 0 || slot >= slotCount) return;
+        
+        int wordIndex = slot >>> 6;
+        long bit = 1L << slot;
+        int rank = rankBefore[wordIndex] + Long.bitCount(occupied[wordIndex] & (bit - 1));
+        boolean present = (occupied[wordIndex] & bit) != 0;
+        
+        if (template == null || template.isEmpty()) {
+            if (!present) return;
+            System.arraycopy(filled, rank + 1, filled, rank, filledCount - rank - 1);
+            filled[--filledCount] = null;
+            occupied[wordIndex] &= ~bit;
+            adjustRanks(wordIndex, -1);
+        } else if (present) {
+            filled[rank] = template;
+        } else {
+            if (filledCount == filled.length) {
+                filled = Arrays.copyOf(filled, Math.min(slotCount, Math.max(4, filledCount * 2)));
+            }
+            System.arraycopy(filled, rank, filled, rank + 1, filledCount - rank);
+            filled[rank] = template;
+            filledCount++;
+            occupied[wordIndex] |= bit;
+            adjustRanks(wordIndex, 1);
+        }
+    }
+    
+    private void adjustRanks(int wordIndex, int delta) {
+        for (int i = wordIndex + 1; i < rankBefore.length; i++) {
+            rankBefore[i] += delta;
+        }
+    }
+    
+    /**
+     * Remove every template, keeping the slot count
+     */
+    public void clear() {
+        Arrays.fill(occupied, 0);
+        Arrays.fill(rankBefore, 0);
+        filled = NO_TEMPLATES;
+        filledCount = 0;
+    }
+    
+    /**
+     * Grow the container to at least this many slots; returns whether it changed
+     */
+    public boolean ensureSlots(int slots) {
+        if (slots <= slotCount) return false;
+        
+        int words = wordCount(slots);
+        if (words != occupied.length) {
+            occupied = Arrays.copyOf(occupied, words);
+            rankBefore = Arrays.copyOf(rankBefore, words);
+            Arrays.fill(rankBefore, wordCount(slotCount), words, filledCount);
+        }
+        slotCount = slots;
+        return true;
+    }
+    
+    /**
+     * First templated slot at or after {@code from}, or -1; iterates like {@link java.util.BitSet#nextSetBit}
+     */
+    public int nextSlot(int from) {
+        if (from < 0) from = 0;
+        if (from >= slotCount) return -1;
+        
+        int wordIndex = from >>> 6;
+        long word = occupied[wordIndex] & (-1L << from);
+        while (true) {
+            if (word != 0) return (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+            if (++wordIndex == occupied.length) return -1;
+            word = occupied[wordIndex];
+        }
+    }
+    
+    /**
+     * Raw occupancy bitmap words, for the binary shard format
+     */
+    long[] occupancy() {
+        return occupied;
+    }
+    
+    /**
+     * Templated slots in slot order, for the binary shard format
+     */
+    ItemStack[] filledTemplates() {
+        return Arrays.copyOf(filled, filledCount);
+    }
+    
+    /**
+     * Rebuild from a stored bitmap and its templates in slot order
+     */
+    static SparseTemplates of(int slotCount, long[] occupancy, ItemStack[] templates) {
+        SparseTemplates sparse = new SparseTemplates(slotCount);
+        if (occupancy.length != sparse.occupied.length
+                || (slotCount & 63) != 0 && occupancy.length > 0 && occupancy[occupancy.length - 1] >>> slotCount != 0) {
+            throw new IllegalArgumentException("Bitmap does not fit " + slotCount + " slots");
+        }
+        
+        int rank = 0;
+        for (int i = 0; i < sparse.occupied.length; i++) {
+            sparse.rankBefore[i] = rank;
+            sparse.occupied[i] = occupancy[i];
+            rank += Long.bitCount(occupancy[i]);
+        }
+        if (rank != templates.length) {
+            throw new IllegalArgumentException("Bitmap has " + rank + " slots but " + templates.length + " templates");
+        }
+        sparse.filled = templates;
+        sparse.filledCount = templates.length;
+        return sparse;
+    }
+    
+    /**
+     * Copy for handing to the save thread; the templates themselves are shared
+     */
+    public SparseTemplates copy() {
+        SparseTemplates copy = new SparseTemplates(0);
+        copy.slotCount = slotCount;
+        copy.occupied = occupied.clone();
+        copy.rankBefore = rankBefore.clone();
+        copy.filled = Arrays.copyOf(filled, filledCount);
+        copy.filledCount = filledCount;
+        return copy;
+    }
+}
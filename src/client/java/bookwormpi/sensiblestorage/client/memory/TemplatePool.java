@@ -0,0 +1,57 @@
+package bookwormpi.sensiblestorage.client.memory;
+
+import com.google.common.collect.MapMaker;
+import net.minecraft.component.ComponentChanges;
+import net.minecraft.item.Item;
+import net.minecraft.item.ItemStack;
+
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Canonical pool of memory templates (flyweights)
+ *
+ * A template is fully described by its item and component changes; the count is
+ * irrelevant because matching ignores it. Every stored template goes through
+ * {@link #intern(ItemStack)}, so 5,000 chests templated with cobblestone share one
+ * ItemStack and two templates are equal exactly when they are the same instance.
+ * Values are held weakly: once no container references a template it is collected.
+ *
+ * Interned stacks are shared and must never be mutated; copy one before changing it.
+ */
+public final class TemplatePool {
+    private record TemplateKey(Item item, ComponentChanges changes) {}
+    
+    private static final ConcurrentMap<TemplateKey, ItemStack> pool = new MapMaker().weakValues().makeMap();
+    
+    private TemplatePool() {
+    }
+    
+    /**
+     * Canonical shared instance for this stack's item and components (count 1), or EMPTY
+     */
+    public static ItemStack intern(ItemStack stack) {
+        if (stack == null || stack.isEmpty()) {
+            return ItemStack.EMPTY;
+        }
+        
+        TemplateKey key = new TemplateKey(stack.getItem(), stack.getComponentChanges());
+        return pool.computeIfAbsent(key, k -> stack.copyWithCount(1));
+    }
+    
+    /**
+     * The pooled template equal to this stack, or null when no such template exists; never adds one
+     */
+    public static ItemStack find(ItemStack stack) {
+        if (stack == null || stack.isEmpty()) {
+            return null;
+        }
+        return pool.get(new TemplateKey(stack.getItem(), stack.getComponentChanges()));
+    }
+    
+    /**
+     * Number of distinct templates currently alive
+     */
+    public static int size() {
+        return pool.size();
+    }
+}
@@ -0,0 +1,69 @@
+package bookwormpi.sensiblestorage.client.memory;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import net.minecraft.item.ItemStack;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Reverse index of one container's templates: the slots reserved for each template, in slot
+ * order, and the slots without a template
+ *
+ * Templates are interned, so a stack's slots are found by looking up its pooled template and
+ * then one identity lookup, without visiting any slot.
+ */
+public final class TemplateRouting {
+    private static final int[] NO_SLOTS = new int[0];
+    
+    private final Map<ItemStack, int[]> slotsByTemplate;
+    private final int[] untemplatedSlots;
+    
+    private TemplateRouting(Map<ItemStack, int[]> slotsByTemplate, int[] untemplatedSlots) {
+        this.slotsByTemplate = slotsByTemplate;
+        this.untemplatedSlots = untemplatedSlots;
+    }
+    
+    /**
+     * Index the first containerSlots slots of a container's templates; null templates index as all untemplated
+     */
+    static TemplateRouting of(SparseTemplates templates, int containerSlots) {
+        Map<ItemStack, IntArrayList> grouped = new IdentityHashMap<>();
+        IntArrayList untemplated = new IntArrayList();
+        for (int slot = 0; slot < containerSlots; slot++) {
+            ItemStack template = templates != null ? templates.get(slot) : ItemStack.EMPTY;
+            if (template.isEmpty()) {
+                untemplated.add(slot);
+            } else {
+                grouped.computeIfAbsent(template, t -> new IntArrayList()).add(slot);
+            }
+        }
+        
+        Map<ItemStack, int[]> slotsByTemplate = new IdentityHashMap<>(grouped.size());
+        grouped.forEach((template, slots) -> slotsByTemplate.put(template, slots.toIntArray()));
+        return new TemplateRouting(slotsByTemplate, untemplated.toIntArray());
+    }
+    
+    /**
+     * Whether any slot has a template; without one, nothing needs routing
+     */
+    public boolean hasTemplates() {
+        return !slotsByTemplate.isEmpty();
+    }
+    
+    /**
+     * Slots whose template matches the stack, in slot order
+     */
+    public int[] slotsFor(ItemStack stack) {
+        ItemStack template = TemplatePool.find(stack);
+        int[] slots = template != null ? slotsByTemplate.get(template) : null;
+        return slots != null ? slots : NO_SLOTS;
+    }
+    
+    /**
+     * Slots without a template, which take any item
+     */
+    public int[] untemplatedSlots() {
+        return untemplatedSlots;
+    }
+}
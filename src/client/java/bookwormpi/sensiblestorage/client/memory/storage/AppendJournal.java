@@ -0,0 +1,208 @@
+package bookwormpi.sensiblestorage.client.memory.storage;
+
+import bookwormpi.sensiblestorage.SensibleStorage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only edit log sitting in front of a checkpointed store
+ *
+ * Each record is framed as (varint length, CRC32, payload) so a torn write at the
+ * end of the file is detected and dropped on replay. Records are encoded on the
+ * client thread and appended on the IO executor, which keeps them ordered with
+ * the checkpoint writes queued on the same thread.
+ *
+ * A checkpoint goes: {@link #beginCheckpoint()} on the client thread, then
+ * {@link #rotate()} to move the live log aside as the ".old" file, write the store,
+ * and finally {@link #commitCheckpoint()} to drop the rotated log. Replay reads
+ * the ".old" file before the live one, so a crash at any point loses nothing.
+ */
+public class AppendJournal {
+    private static final int MAX_RECORD_BYTES = 1 << 20;
+    
+    private final Path file;
+    private final Path rotatedFile;
+    
+    // Client thread: reusable record encoder and bytes appended since the last checkpoint
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+    private final BinaryOutput recordOutput = new BinaryOutput(Channels.newChannel(recordBytes));
+    private long size;
+    
+    // IO thread only
+    private FileChannel channel;
+    
+    public AppendJournal(Path file) {
+        this.file = file;
+        this.rotatedFile = file.resolveSibling(file.getFileName() + ".old");
+    }
+    
+    /**
+     * Bytes appended since the last checkpoint started, including what replay found on disk
+     */
+    public long size() {
+        return size;
+    }
+    
+    /**
+     * Encode a record on the client thread and queue the append on the IO executor
+     */
+    public void append(RecordWriter writer) {
+        byte[] payload;
+        try {
+            recordBytes.reset();
+            writer.write(recordOutput);
+            recordOutput.flush();
+            payload = recordBytes.toByteArray();
+        } catch (IOException e) {
+            SensibleStorage.LOGGER.error("Failed to encode journal record for {}", file, e);
+            return;
+        }
+        
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer frame = ByteBuffer.allocate(5 + 4 + payload.length);
+        int length = payload.length;
+        while ((length & ~0x7F) != 0) {
+            frame.put((byte) ((length & 0x7F) | 0x80));
+            length >>>= 7;
+        }
+        frame.put((byte) length);
+        frame.putInt((int) crc.getValue());
+        frame.put(payload);
+        frame.flip();
+        size += frame.remaining();
+        
+        StorageExecutor.IO.execute(() -> {
+            try {
+                if (channel == null) {
+                    Files.createDirectories(file.getParent());
+                    channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+                }
+                while (frame.hasRemaining()) {
+                    channel.write(frame);
+                }
+            } catch (IOException e) {
+                SensibleStorage.LOGGER.error("Failed to append to journal {}", file, e);
+            }
+        });
+    }
+    
+    /**
+     * Replay every intact record, oldest first; must run before any append
+     *
+     * @return number of records replayed
+     */
+    public int replay(RecordReader handler) {
+        int records = replayFile(rotatedFile, handler) + replayFile(file, handler);
+        try {
+            size = (Files.exists(rotatedFile) ? Files.size(rotatedFile) : 0) + (Files.exists(file) ? Files.size(file) : 0);
+        } catch (IOException e) {
+            size = 0;
+        }
+        return records;
+    }
+    
+    /**
+     * Client thread: everything appended so far will be covered by the checkpoint being snapshotted
+     */
+    public void beginCheckpoint() {
+        size = 0;
+    }
+    
+    /**
+     * IO thread: close the live log and move it aside until the checkpoint is on disk
+     * If an earlier checkpoint failed, its rotated log is kept and this one is appended to it
+     */
+    public void rotate() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        if (!Files.exists(file)) return;
+        
+        if (Files.exists(rotatedFile)) {
+            Files.write(rotatedFile, Files.readAllBytes(file), StandardOpenOption.APPEND);
+            Files.delete(file);
+        } else {
+            Files.move(file, rotatedFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+    
+    /**
+     * IO thread: the checkpoint is written, so the rotated log is no longer needed
+     */
+    public void commitCheckpoint() throws IOException {
+        Files.deleteIfExists(rotatedFile);
+    }
+    
+    private int replayFile(Path path, RecordReader handler) {
+        if (!Files.exists(path)) return 0;
+        
+        int records = 0;
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            BinaryInput input = new BinaryInput(in);
+            while (true) {
+                int length;
+                try {
+                    length = input.readVarInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length < 0 || length > MAX_RECORD_BYTES) {
+                    SensibleStorage.LOGGER.warn("Journal {} has a corrupt record length after {} records, ignoring the rest", path, records);
+                    break;
+                }
+                
+                int expectedCrc = input.readInt();
+                byte[] payload = new byte[length];
+                input.readBytes(payload);
+                
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != expectedCrc) {
+                    SensibleStorage.LOGGER.warn("Journal {} has a checksum mismatch after {} records, ignoring the rest", path, records);
+                    break;
+                }
+                
+                try {
+                    handler.read(new BinaryInput(payload));
+                    records++;
+                } catch (IOException | RuntimeException e) {
+                    SensibleStorage.LOGGER.warn("Skipping unreadable record in journal {}", path, e);
+                }
+            }
+        } catch (EOFException e) {
+            SensibleStorage.LOGGER.warn("Journal {} ends in a partial record after {} records, ignoring it", path, records);
+        } catch (IOException | RuntimeException e) {
+            SensibleStorage.LOGGER.error("Failed to replay journal {} after {} records", path, records, e);
+        }
+        return records;
+    }
+    
+    /**
+     * Writes the payload of one journal record
+     */
+    @FunctionalInterface
+    public interface RecordWriter {
+        void write(BinaryOutput out) throws IOException;
+    }
+    
+    /**
+     * Applies one replayed journal record
+     */
+    @FunctionalInterface
+    public interface RecordReader {
+        void read(BinaryInput in) throws IOException;
+    }
+}
@@ -0,0 +1,131 @@
+package bookwormpi.sensiblestorage.client.memory.storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffered binary reader over an NIO channel, the counterpart of {@link BinaryOutput}
+ */
+public class BinaryInput {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_STRING_BYTES = 1 << 20;
+    
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+    
+    public BinaryInput(ReadableByteChannel channel) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        buffer.flip();
+    }
+    
+    /**
+     * Read from an in-memory record without any channel or extra buffer
+     */
+    public BinaryInput(byte[] bytes) {
+        this.channel = null;
+        this.buffer = ByteBuffer.wrap(bytes);
+    }
+    
+    public int readByte() throws IOException {
+        require(1);
+        return buffer.get() & 0xFF;
+    }
+    
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+    
+    public int readInt() throws IOException {
+        require(4);
+        return buffer.getInt();
+    }
+    
+    public long readLong() throws IOException {
+        require(8);
+        return buffer.getLong();
+    }
+    
+    public int readVarInt() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("VarInt too long");
+    }
+    
+    public int readSignedVarInt() throws IOException {
+        int raw = readVarInt();
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+    
+    public long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("VarLong too long");
+    }
+    
+    public String readString() throws IOException {
+        int length = readVarInt();
+        if (length < 0 || length > MAX_STRING_BYTES) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        readBytes(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    public void readBytes(byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!buffer.hasRemaining()) {
+                fill();
+            }
+            int chunk = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.get(bytes, offset, chunk);
+            offset += chunk;
+        }
+    }
+    
+    /**
+     * Read a count prefix, rejecting values that cannot be valid for the data that follows
+     */
+    public int readCount(int max) throws IOException {
+        int count = readVarInt();
+        if (count < 0 || count > max) {
+            throw new IOException("Invalid count " + count);
+        }
+        return count;
+    }
+    
+    private void require(int bytes) throws IOException {
+        while (buffer.remaining() < bytes) {
+            fill();
+        }
+    }
+    
+    private void fill() throws IOException {
+        if (channel == null) {
+            throw new EOFException();
+        }
+        buffer.compact();
+        int read = channel.read(buffer);
+        buffer.flip();
+        if (read < 0) {
+            throw new EOFException();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package bookwormpi.sensiblestorage.client.memory.storage;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * Memory store that keeps every entry on the heap and never writes anything
+ *
+ * Serves as the "memory" backend and as the base of {@link SingleFileStore}. All
+ * entries are always resident, so paging is a no-op and regions are only used to
+ * answer {@link #scanRegion}.
+ */
+public class InMemoryStore<K, V> implements MemoryStore<K, V> {
+    protected final Map<K, V> entries = new HashMap<>();
+    protected final Function<K, ShardKey> sharding;
+    protected final StoreStats stats;
+    protected boolean dirty;
+    
+    /**
+     * @param sharding maps a container key to the region it belongs to
+     */
+    public InMemoryStore(Function<K, ShardKey> sharding) {
+        this(sharding, "memory");
+    }
+    
+    protected InMemoryStore(Function<K, ShardKey> sharding, String backend) {
+        this.sharding = sharding;
+        this.stats = new StoreStats(backend);
+    }
+    
+    @Override
+    public V get(K key) {
+        return entries.get(key);
+    }
+    
+    @Override
+    public V computeIfAbsent(K key, Function<K, V> factory) {
+        V value = entries.get(key);
+        if (value == null) {
+            value = factory.apply(key);
+            put(key, value);
+        }
+        return value;
+    }
+    
+    @Override
+    public void put(K key, V value) {
+        entries.put(key, value);
+        dirty = true;
+    }
+    
+    @Override
+    public V remove(K key) {
+        V removed = entries.remove(key);
+        if (removed != null) {
+            dirty = true;
+        }
+        return removed;
+    }
+    
+    @Override
+    public Map<K, V> scanRegion(ShardKey region) {
+        Map<K, V> matches = new HashMap<>();
+        for (Map.Entry<K, V> entry : entries.entrySet()) {
+            if (sharding.apply(entry.getKey()).equals(region)) {
+                matches.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return matches;
+    }
+    
+    @Override
+    public Set<K> regionKeys(ShardKey region) {
+        Set<K> matches = new HashSet<>();
+        for (K key : entries.keySet()) {
+            if (sharding.apply(key).equals(region)) {
+                matches.add(key);
+            }
+        }
+        return matches;
+    }
+    
+    @Override
+    public void markDirty(K key) {
+        if (entries.containsKey(key)) {
+            dirty = true;
+        }
+    }
+    
+    @Override
+    public boolean isDirty() {
+        return dirty;
+    }
+    
+    @Override
+    public Set<K> keys() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+    
+    @Override
+    public int size() {
+        return entries.size();
+    }
+    
+    @Override
+    public void forEachRegion(Consumer<ShardKey> visitor) {
+        Set<ShardKey> shards = new HashSet<>();
+        for (K key : entries.keySet()) {
+            shards.add(sharding.apply(key));
+        }
+        shards.forEach(visitor);
+    }
+    
+    @Override
+    public CompletableFuture<Void> scanStored(BiConsumer<ShardKey, Map<K, V>> visitor, Executor owner) {
+        return CompletableFuture.runAsync(() -> {
+            Map<ShardKey, Map<K, V>> regions = new HashMap<>();
+            for (Map.Entry<K, V> entry : entries.entrySet()) {
+                regions.computeIfAbsent(sharding.apply(entry.getKey()), k -> new HashMap<>()).put(entry.getKey(), entry.getValue());
+            }
+            regions.forEach(visitor);
+        }, owner);
+    }
+    
+    @Override
+    public int shardCount() {
+        Set<ShardKey> shards = new HashSet<>();
+        for (K key : entries.keySet()) {
+            shards.add(sharding.apply(key));
+        }
+        return shards.size();
+    }
+    
+    @Override
+    public Set<ShardKey> residentShards() {
+        return Set.of();
+    }
+    
+    /**
+     * Every region is always in memory, there is just nothing to page
+     */
+    @Override
+    public boolean isResident(ShardKey shard) {
+        return true;
+    }
+    
+    @Override
+    public void loadShard(ShardKey shard) {
+    }
+    
+    @Override
+    public CompletableFuture<Void> loadShardAsync(ShardKey shard, Executor owner) {
+        return CompletableFuture.completedFuture(null);
+    }
+    
+    @Override
+    public boolean isLoaded(K key, Executor owner) {
+        return true;
+    }
+    
+    @Override
+    public Flush evictShard(ShardKey shard, UnaryOperator<V> copier) {
+        return null;
+    }
+    
+    @Override
+    public Flush snapshotDirty(UnaryOperator<V> copier) {
+        dirty = false;
+        return NothingToWrite.INSTANCE;
+    }
+    
+    @Override
+    public StoreStats stats() {
+        return stats;
+    }
+    
+    private enum NothingToWrite implements Flush {
+        INSTANCE;
+        
+        @Override
+        public long write() {
+            return 0;
+        }
+        
+        @Override
+        public boolean isComplete() {
+            return true;
+        }
+    }
+}
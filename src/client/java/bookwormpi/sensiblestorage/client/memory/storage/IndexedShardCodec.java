@@ -0,0 +1,45 @@
+package bookwormpi.sensiblestorage.client.memory.storage;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Set;
+
+/**
+ * Shard codec whose files carry a key to offset index, so single entries can be read back
+ * without decoding the whole file
+ *
+ * {@link RegionShardedStore} pages indexed shards in by reading just the index, and
+ * drops cold entries of clean shards once its cache budget is exceeded, reading them
+ * back one at a time on the next lookup.
+ */
+public interface IndexedShardCodec<K, V> extends ShardCodec<K, V> {
+    /**
+     * Read a shard's index and whatever shared header its entries need
+     *
+     * @param length bytes of codec output, excluding the store's checksum trailer
+     * @return the index, or null if this file has none (older version or compressed)
+     */
+    ShardIndex<K, V> readIndex(Path file, long length) throws IOException;
+    
+    /**
+     * Whether files written now carry an index; compressed files, for one, cannot be read at an offset
+     */
+    default boolean writesIndex() {
+        return true;
+    }
+    
+    /**
+     * Entries of one shard file, read from disk on demand
+     */
+    interface ShardIndex<K, V> {
+        Set<K> keys();
+        
+        /**
+         * Decode a single entry from disk
+         *
+         * @throws IOException if it cannot be read, including when the file was rewritten
+         *                     since the index was read and the offset no longer holds this key
+         */
+        V read(K key) throws IOException;
+    }
+}
@@ -0,0 +1,40 @@
+package bookwormpi.sensiblestorage.client.memory.storage;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * Streaming JSON over buffered file channels, so JSON stores are read and written one
+ * container at a time without ever holding the whole text or a DOM in memory
+ * Files go through {@link StoreFiles}, so compressed JSON streams the same way
+ */
+public final class JsonStreams {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private JsonStreams() {
+    }
+    
+    public static JsonReader reader(Path file) throws IOException {
+        ReadableByteChannel channel = StoreFiles.openRead(file);
+        return new JsonReader(new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8), BUFFER_SIZE));
+    }
+    
+    /**
+     * Pretty-printing writer, matching the layout of the old Gson-written files
+     */
+    public static JsonWriter writer(Path file, boolean compress) throws IOException {
+        WritableByteChannel channel = StoreFiles.openWrite(file, compress);
+        JsonWriter writer = new JsonWriter(new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8), BUFFER_SIZE));
+        writer.setIndent("  ");
+        return writer;
+    }
+}
@@ -0,0 +1,173 @@
+package bookwormpi.sensiblestorage.client.memory.storage;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * Storage backend behind the memory managers, picked by the storageBackend config option
+ *
+ * Entries are keyed by container and grouped into regions ({@link ShardKey}). All methods
+ * except {@link Flush#write()} are called on the client thread. Backends that keep every
+ * entry in memory treat the paging methods as no-ops.
+ */
+public interface MemoryStore<K, V> {
+    /**
+     * Entry for a key, or null; pages the key's region in first if needed
+     */
+    V get(K key);
+    
+    /**
+     * Get an entry, creating (and marking dirty) a new one if absent
+     */
+    V computeIfAbsent(K key, Function<K, V> factory);
+    
+    void put(K key, V value);
+    
+    /**
+     * Delete an entry
+     *
+     * @return the removed entry, or null if there was none
+     */
+    V remove(K key);
+    
+    /**
+     * Delete an entry without reading it back from disk first, where the backend can avoid that
+     *
+     * @return whether there was an entry
+     */
+    default boolean discard(K key) {
+        return remove(key) != null;
+    }
+    
+    /**
+     * Every entry in one region, paging it in first if needed
+     */
+    Map<K, V> scanRegion(ShardKey region);
+    
+    /**
+     * Keys in one region, paging it in first if needed but without decoding entries where the backend can avoid it
+     */
+    Set<K> regionKeys(ShardKey region);
+    
+    /**
+     * Visit every stored region, whether resident or only on disk, paging each in for the visitor
+     * Regions that were not resident are paged out again afterwards unless the visitor left them dirty
+     */
+    void forEachRegion(Consumer<ShardKey> visitor);
+    
+    /**
+     * Hand every stored region's entries to the visitor without making any region resident, for
+     * read-only scans of the whole store (the memory sweep)
+     * Backends that save to disk visit each region as last written, on {@link StorageExecutor#IO}
+     * after every write queued before; the entries are then copies nothing else sees. Backends
+     * that keep every entry in memory visit their live entries on the owner executor instead
+     *
+     * @param owner executor of the client thread, which owns the store
+     * @return completes once every region was visited
+     */
+    CompletableFuture<Void> scanStored(BiConsumer<ShardKey, Map<K, V>> visitor, Executor owner);
+    
+    /**
+     * Keep an entry decoded while something holds a reference to it (an open screen), so edits made
+     * through that reference are never lost to a cache eviction; pins are counted
+     * Backends that keep every entry in memory need no pins
+     */
+    default void pin(K key) {
+    }
+    
+    /**
+     * Release a pin taken by {@link #pin}
+     */
+    default void unpin(K key) {
+    }
+    
+    /**
+     * Record that an entry was edited in place, so the next flush writes it
+     */
+    void markDirty(K key);
+    
+    boolean isDirty();
+    
+    /**
+     * Keys of the entries currently in memory
+     */
+    Set<K> keys();
+    
+    int size();
+    
+    /**
+     * Number of regions currently holding entries
+     */
+    int shardCount();
+    
+    /**
+     * Regions currently in memory
+     */
+    Set<ShardKey> residentShards();
+    
+    /**
+     * Whether a region can be read without touching the disk
+     */
+    boolean isResident(ShardKey shard);
+    
+    /**
+     * Read a region ahead of its first lookup; no-op if already resident
+     */
+    void loadShard(ShardKey shard);
+    
+    /**
+     * Read a region on {@link StorageExecutor#IO} and make it resident on the owner executor
+     *
+     * @param owner executor of the client thread, which owns the store
+     * @return completes once the region is resident
+     */
+    CompletableFuture<Void> loadShardAsync(ShardKey shard, Executor owner);
+    
+    /**
+     * Whether an entry can be looked up without touching the disk; if not, it is read in the background
+     * Render-path lookups check this first and treat the entry as absent until it returns true
+     */
+    boolean isLoaded(K key, Executor owner);
+    
+    /**
+     * Drop a region from memory
+     *
+     * @return its unsaved edits for the caller to write, or null if there were none
+     */
+    Flush evictShard(ShardKey shard, UnaryOperator<V> copier);
+    
+    /**
+     * Take back the regions a flush from {@link #evictShard} failed to write, resident and dirty again,
+     * so their edits stay in memory and are retried by the next save; no-op for a flush that completed
+     */
+    default void restore(Flush failed) {
+    }
+    
+    /**
+     * Copy every unsaved edit for the IO executor and clear the dirty state
+     */
+    Flush snapshotDirty(UnaryOperator<V> copier);
+    
+    StoreStats stats();
+    
+    /**
+     * Immutable copy of unsaved edits, written on the IO executor
+     */
+    interface Flush {
+        /**
+         * @return total size in bytes of the files written
+         */
+        long write();
+        
+        /**
+         * Whether everything in the last {@link #write()} reached disk
+         */
+        boolean isComplete();
+    }
+}
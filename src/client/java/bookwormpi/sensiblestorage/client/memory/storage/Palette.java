@@ -0,0 +1,33 @@
+package bookwormpi.sensiblestorage.client.memory.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-file palette, like chunk section palettes: each distinct value is stored once
+ * and referenced by a small varint index everywhere else
+ */
+public final class Palette<T> {
+    private final Map<T, Integer> indices = new HashMap<>();
+    private final List<T> entries = new ArrayList<>();
+    
+    public int indexOf(T value) {
+        Integer index = indices.get(value);
+        if (index == null) {
+            index = entries.size();
+            indices.put(value, index);
+            entries.add(value);
+        }
+        return index;
+    }
+    
+    public List<T> entries() {
+        return entries;
+    }
+    
+    public int size() {
+        return entries.size();
+    }
+}
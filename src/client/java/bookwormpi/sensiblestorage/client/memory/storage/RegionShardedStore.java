@@ -0,0 +1,1103 @@
+package bookwormpi.sensiblestorage.client.memory.storage;
+
+import bookwormpi.sensiblestorage.SensibleStorage;
+import bookwormpi.sensiblestorage.client.config.SensibleStorageConfig;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Container memory store split into one file per dimension and 32x32-chunk region
+ *
+ * The store tracks which shard every container belongs to and which shards were
+ * edited, so a save only rewrites the shards holding dirty containers and an
+ * emptied shard is simply deleted. All methods except {@link Snapshot#write()}
+ * must be called on the client thread.
+ *
+ * Shards are checkpointed crash-safely: each one is written to a temp file with a
+ * CRC32 trailer and fsynced, the current file is kept as ".prev", and the temp
+ * file is atomically renamed into place. On load a shard that fails its checksum
+ * or cannot be parsed falls back to its ".prev" generation.
+ *
+ * Shards are paged: any access to a key first loads that key's shard if it is not
+ * resident, and {@link #evictShard} drops a shard from memory again (handing back
+ * its unsaved edits to write). Loading a shard waits for a pending write of that
+ * shard first, so a quick unload/reload never reads a stale file.
+ *
+ * Shards are independent files, so a full load decodes them in parallel on
+ * {@link StorageExecutor#CODEC} and a snapshot encodes them in parallel; results are
+ * merged in sorted file order, so the outcome matches a sequential load exactly.
+ *
+ * With an {@link IndexedShardCodec}, paging a shard in reads only its key to offset
+ * index. Decoded entries form an LRU cache bounded by the memoryCacheMaxContainers
+ * option: once it is exceeded, the coldest entries of clean indexed shards are
+ * dropped, and a later lookup reads just that entry back through the index. A shard
+ * about to be rewritten without an index (compressed) has its dropped entries read
+ * back first and is no longer treated as indexed.
+ *
+ * Lookups made while rendering must not touch the disk, so {@link #isLoaded} reports
+ * whether an entry is in memory and otherwise starts reading it on
+ * {@link StorageExecutor#IO}: the shard via {@link #loadShardAsync}, or a dropped entry
+ * through its index. The result is merged back on the owner's (client) thread. The IO
+ * executor runs tasks in order, so such a read always sees every write queued before it.
+ */
+public class RegionShardedStore<K, V> implements MemoryStore<K, V> {
+    // Checkpoint trailer: magic "SSCK" followed by the CRC32 of everything before it
+    private static final int TRAILER_MAGIC = 0x5353434B;
+    private static final int TRAILER_BYTES = 8;
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String PREVIOUS_SUFFIX = ".prev";
+    
+    private final Path root;
+    private final String extension;
+    private final ShardCodec<K, V> codec;
+    private final Function<K, ShardKey> sharding;
+    
+    // Decoded entries in access order; members lists every key of a resident shard, cached or not
+    private final Map<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<ShardKey, Set<K>> members = new HashMap<>();
+    private final Map<ShardKey, IndexedShardCodec.ShardIndex<K, V>> indexes = new HashMap<>();
+    // Indexed shards rewritten since their index was read; offsets are re-read before the next lookup
+    private final Set<ShardKey> staleIndexes = new HashSet<>();
+    private final Set<ShardKey> dirtyShards = new HashSet<>();
+    private final Set<ShardKey> residentShards = new HashSet<>();
+    private final Map<ShardKey, Snapshot<K, V>> inFlight = new ConcurrentHashMap<>();
+    // Entries referenced from outside the store (open screens), never dropped from the cache
+    private final Map<K, Integer> pins = new HashMap<>();
+    // Background page-ins and entry reads in progress, and how often each shard was snapshotted for a rewrite
+    private final Map<ShardKey, CompletableFuture<Void>> loading = new HashMap<>();
+    private final Set<K> prefetching = new HashSet<>();
+    private final Map<ShardKey, Integer> rewrites = new HashMap<>();
+    private final StoreStats stats;
+    
+    /**
+     * @param root      directory holding the shard files
+     * @param extension shard file extension, without the dot
+     * @param codec     reads and writes a single shard file
+     * @param sharding  maps a container key to the shard it belongs to
+     */
+    public RegionShardedStore(Path root, String extension, ShardCodec<K, V> codec, Function<K, ShardKey> sharding) {
+        this.root = root;
+        this.extension = extension;
+        this.codec = codec;
+        this.sharding = sharding;
+        this.stats = new StoreStats("sharded " + extension);
+    }
+    
+    public Path root() {
+        return root;
+    }
+    
+    @Override
+    public V get(K key) {
+        ShardKey shard = sharding.apply(key);
+        ensureResident(shard);
+        V value = entries.get(key);
+        if (value == null && indexes.containsKey(shard) && members.get(shard).contains(key)) {
+            value = readIndexed(shard, key);
+        }
+        return value;
+    }
+    
+    public boolean contains(K key) {
+        ShardKey shard = sharding.apply(key);
+        ensureResident(shard);
+        Set<K> shardMembers = members.get(shard);
+        return shardMembers != null && shardMembers.contains(key);
+    }
+    
+    /**
+     * Get an entry, creating (and marking dirty) a new one if absent
+     */
+    @Override
+    public V computeIfAbsent(K key, Function<K, V> factory) {
+        V value = get(key);
+        if (value == null) {
+            value = factory.apply(key);
+            put(key, value);
+        }
+        return value;
+    }
+    
+    @Override
+    public void put(K key, V value) {
+        ShardKey shard = sharding.apply(key);
+        ensureResident(shard);
+        entries.put(key, value);
+        members.computeIfAbsent(shard, k -> new HashSet<>()).add(key);
+        dirtyShards.add(shard);
+        trimCache();
+    }
+    
+    @Override
+    public V remove(K key) {
+        ShardKey shard = sharding.apply(key);
+        V removed = get(key);
+        if (removed != null) {
+            entries.remove(key);
+            Set<K> shardMembers = members.get(shard);
+            if (shardMembers != null) {
+                shardMembers.remove(key);
+            }
+            dirtyShards.add(shard);
+        }
+        return removed;
+    }
+    
+    /**
+     * Drops an entry evicted from the cache by its membership alone, where {@link #remove} would read it back first
+     */
+    @Override
+    public boolean discard(K key) {
+        ShardKey shard = sharding.apply(key);
+        ensureResident(shard);
+        Set<K> shardMembers = members.get(shard);
+        if (shardMembers == null || !shardMembers.remove(key)) return false;
+        
+        entries.remove(key);
+        dirtyShards.add(shard);
+        return true;
+    }
+    
+    @Override
+    public void pin(K key) {
+        pins.merge(key, 1, Integer::sum);
+    }
+    
+    @Override
+    public void unpin(K key) {
+        pins.computeIfPresent(key, (k, count) -> count > 1 ? count - 1 : null);
+    }
+    
+    /**
+     * Mark the shard holding this container as needing a rewrite
+     * Ignored for shards that are not resident, which would otherwise be rewritten empty
+     */
+    @Override
+    public void markDirty(K key) {
+        ShardKey shard = sharding.apply(key);
+        if (residentShards.contains(shard)) {
+            dirtyShards.add(shard);
+        }
+    }
+    
+    @Override
+    public boolean isDirty() {
+        return !dirtyShards.isEmpty();
+    }
+    
+    /**
+     * Resident shards are visited first, then every shard file not yet visited is decoded, visited
+     * and paged out again if it stayed clean, so at most one extra shard is in memory at a time
+     * Shards that only survived as ".prev" are included, and pending writes are awaited before any
+     * file is read, so a shard paged out just before is never visited in its older state
+     */
+    @Override
+    public void forEachRegion(Consumer<ShardKey> visitor) {
+        Set<Path> visited = new HashSet<>();
+        for (ShardKey shard : new ArrayList<>(residentShards)) {
+            visited.add(shard.resolve(root, extension));
+            visitor.accept(shard);
+        }
+        
+        for (Snapshot<K, V> pending : Set.copyOf(inFlight.values())) {
+            pending.awaitWritten();
+        }
+        
+        Set<Path> files;
+        try {
+            files = shardFiles();
+        } catch (IOException e) {
+            SensibleStorage.LOGGER.error("Failed to list memory shards in {}", root, e);
+            return;
+        }
+        
+        for (Path file : files) {
+            if (visited.contains(file)) continue;
+            
+            Decoded<K, V> decoded = decodeCheckpoint(file);
+            applyCheckpoint(decoded);
+            if (decoded.entries() == null) continue;
+            
+            Set<ShardKey> shards = new HashSet<>();
+            for (K key : decoded.entries().keySet()) {
+                shards.add(sharding.apply(key));
+            }
+            for (ShardKey shard : shards) {
+                visitor.accept(shard);
+                if (!dirtyShards.contains(shard)) {
+                    evictShard(shard, UnaryOperator.identity());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Decodes every shard file on the IO executor, falling back to ".prev" like a page-in, and
+     * touches no store state
+     */
+    @Override
+    public CompletableFuture<Void> scanStored(BiConsumer<ShardKey, Map<K, V>> visitor, Executor owner) {
+        return CompletableFuture.runAsync(() -> {
+            Set<Path> files;
+            try {
+                files = shardFiles();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            
+            for (Path file : files) {
+                Map<K, V> decoded = decodeCheckpoint(file).entries();
+                if (decoded == null) continue;
+                
+                Map<ShardKey, Map<K, V>> regions = new HashMap<>();
+                for (Map.Entry<K, V> entry : decoded.entrySet()) {
+                    regions.computeIfAbsent(sharding.apply(entry.getKey()), k -> new HashMap<>()).put(entry.getKey(), entry.getValue());
+                }
+                regions.forEach(visitor);
+            }
+        }, StorageExecutor.IO);
+    }
+    
+    /**
+     * Keys of every resident shard, including entries dropped from the cache
+     */
+    @Override
+    public Set<K> keys() {
+        Set<K> keys = new HashSet<>();
+        members.values().forEach(keys::addAll);
+        return Collections.unmodifiableSet(keys);
+    }
+    
+    /**
+     * Answered from the shard's member list, so entries dropped from the cache stay on disk
+     */
+    @Override
+    public Set<K> regionKeys(ShardKey region) {
+        ensureResident(region);
+        Set<K> shardMembers = members.get(region);
+        return shardMembers != null ? Set.copyOf(shardMembers) : Set.of();
+    }
+    
+    @Override
+    public Map<K, V> scanRegion(ShardKey region) {
+        ensureResident(region);
+        Map<K, V> contents = new HashMap<>();
+        Set<K> shardMembers = members.get(region);
+        if (shardMembers != null) {
+            for (K key : shardMembers) {
+                V value = get(key);
+                if (value != null) {
+                    contents.put(key, value);
+                }
+            }
+        }
+        return contents;
+    }
+    
+    /**
+     * Currently decoded entries only; see {@link #keys()} for everything resident
+     */
+    public Collection<V> values() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+    
+    @Override
+    public int size() {
+        int size = 0;
+        for (Set<K> shardMembers : members.values()) {
+            size += shardMembers.size();
+        }
+        return size;
+    }
+    
+    @Override
+    public int shardCount() {
+        return members.size();
+    }
+    
+    @Override
+    public Set<ShardKey> residentShards() {
+        return Set.copyOf(residentShards);
+    }
+    
+    @Override
+    public boolean isResident(ShardKey shard) {
+        return residentShards.contains(shard);
+    }
+    
+    @Override
+    public StoreStats stats() {
+        return stats;
+    }
+    
+    /**
+     * Forget every loaded container without touching disk
+     */
+    public void clear() {
+        entries.clear();
+        members.clear();
+        indexes.clear();
+        staleIndexes.clear();
+        dirtyShards.clear();
+        residentShards.clear();
+        pins.clear();
+        loading.clear();
+        prefetching.clear();
+        rewrites.clear();
+    }
+    
+    /**
+     * Load every shard file below the root, including shards that only survived as ".prev"
+     */
+    public void loadAll() throws IOException {
+        long start = System.nanoTime();
+        
+        Set<Path> files = shardFiles();
+        List<CompletableFuture<Decoded<K, V>>> decoding = new ArrayList<>(files.size());
+        for (Path file : files) {
+            decoding.add(CompletableFuture.supplyAsync(() -> decodeCheckpoint(file), StorageExecutor.CODEC));
+        }
+        for (CompletableFuture<Decoded<K, V>> decoded : decoding) {
+            applyCheckpoint(decoded.join());
+        }
+        
+        stats.recordLoad(System.nanoTime() - start);
+    }
+    
+    /**
+     * Page in a single shard, leaving every other shard untouched; no-op if already resident
+     */
+    @Override
+    public void loadShard(ShardKey shard) {
+        if (residentShards.contains(shard)) return;
+        
+        Snapshot<K, V> pending = inFlight.get(shard);
+        if (pending != null) {
+            pending.awaitWritten();
+        }
+        applyPaged(shard, readShard(shard.resolve(root, extension)));
+    }
+    
+    /**
+     * Page a shard in without blocking: it is read on the IO executor and merged on the owner executor
+     * A shard rewritten while it was being read is read again, so a stale file is never merged
+     *
+     * @param owner executor of the thread that owns the store (the client)
+     * @return completes on the owner executor once the shard is resident
+     */
+    @Override
+    public CompletableFuture<Void> loadShardAsync(ShardKey shard, Executor owner) {
+        if (residentShards.contains(shard)) return CompletableFuture.completedFuture(null);
+        
+        CompletableFuture<Void> existing = loading.get(shard);
+        if (existing != null) return existing;
+        
+        // Registered before anything is chained, since the owner may run the continuation inline
+        CompletableFuture<Void> loaded = new CompletableFuture<>();
+        loading.put(shard, loaded);
+        int generation = rewrites.getOrDefault(shard, 0);
+        Path file = shard.resolve(root, extension);
+        CompletableFuture.supplyAsync(() -> readShard(file), StorageExecutor.IO).whenCompleteAsync((paged, error) -> {
+            loading.remove(shard, loaded);
+            if (error != null) {
+                SensibleStorage.LOGGER.error("Failed to page in memory shard {}", file, error);
+            } else if (rewrites.getOrDefault(shard, 0) != generation) {
+                loadShardAsync(shard, owner).whenComplete((ignored, retryError) -> loaded.complete(null));
+                return;
+            } else if (!residentShards.contains(shard)) {
+                applyPaged(shard, paged);
+            }
+            loaded.complete(null);
+        }, owner);
+        return loaded;
+    }
+    
+    /**
+     * Whether an entry can be read without touching the disk
+     * If not, its shard or (for an entry dropped from the cache) the entry itself is read in the background,
+     * and a later call returns true; keys absent from a resident shard are loaded, there is nothing to read
+     */
+    @Override
+    public boolean isLoaded(K key, Executor owner) {
+        ShardKey shard = sharding.apply(key);
+        if (!residentShards.contains(shard)) {
+            loadShardAsync(shard, owner);
+            return false;
+        }
+        if (entries.containsKey(key) || !indexes.containsKey(shard)
+            || !members.getOrDefault(shard, Set.of()).contains(key)) {
+            return true;
+        }
+        prefetch(shard, key, owner);
+        return false;
+    }
+    
+    /**
+     * Page a shard out of memory
+     *
+     * @return a snapshot of its unsaved edits for the caller to write, or null if it was clean
+     */
+    @Override
+    public Snapshot<K, V> evictShard(ShardKey shard, UnaryOperator<V> copier) {
+        if (!residentShards.remove(shard)) return null;
+        
+        Snapshot<K, V> snapshot = dirtyShards.remove(shard) ? snapshot(Set.of(shard), copier) : null;
+        Set<K> shardMembers = members.remove(shard);
+        if (shardMembers != null) {
+            shardMembers.forEach(entries::remove);
+        }
+        indexes.remove(shard);
+        staleIndexes.remove(shard);
+        stats.recordShardEvicted();
+        return snapshot;
+    }
+    
+    /**
+     * A shard paged back in meanwhile read the older file: unless it was edited since, the snapshot's
+     * entries replace what was read, otherwise they only fill in the entries it lacks
+     */
+    @Override
+    public void restore(MemoryStore.Flush failed) {
+        if (!(failed instanceof Snapshot<?, ?> pending) || pending.store != this) return;
+        
+        @SuppressWarnings("unchecked")
+        Snapshot<K, V> snapshot = (Snapshot<K, V>) pending;
+        for (ShardKey shard : snapshot.failed) {
+            if (!residentShards.contains(shard) || !dirtyShards.contains(shard)) {
+                Set<K> older = members.remove(shard);
+                if (older != null) {
+                    older.forEach(entries::remove);
+                }
+                indexes.remove(shard);
+                staleIndexes.remove(shard);
+            }
+            
+            Map<K, V> contents = snapshot.shards.get(shard);
+            Set<K> shardMembers = members.computeIfAbsent(shard, k -> new HashSet<>());
+            for (Map.Entry<K, V> entry : contents.entrySet()) {
+                if (shardMembers.add(entry.getKey())) {
+                    entries.put(entry.getKey(), entry.getValue());
+                }
+            }
+            Set<K> unread = snapshot.uncached.getOrDefault(shard, Set.of());
+            if (!contents.keySet().containsAll(unread)) {
+                SensibleStorage.LOGGER.error("Memory shard {} could not be written or read back; only its edits are kept",
+                    shard.resolve(root, extension));
+            }
+            residentShards.add(shard);
+            dirtyShards.add(shard);
+        }
+        trimCache();
+    }
+    
+    /**
+     * Import a legacy single-file store, write it out as shards, and set the old file aside
+     */
+    public void migrateFrom(Path legacyFile, ShardCodec<K, V> legacyCodec, UnaryOperator<V> copier) throws IOException {
+        if (!Files.exists(legacyFile)) return;
+        
+        long legacyBytes = Files.size(legacyFile);
+        Map<K, V> legacy = legacyCodec.read(legacyFile);
+        legacy.forEach(this::put);
+        long writtenBytes = snapshotDirty(copier).write();
+        
+        Files.move(legacyFile, legacyFile.resolveSibling(legacyFile.getFileName() + ".migrated"),
+            StandardCopyOption.REPLACE_EXISTING);
+        stats.recordMigration(legacyBytes, writtenBytes);
+        SensibleStorage.LOGGER.info("Migrated {} containers from {} into {} shards",
+            legacy.size(), legacyFile.getFileName(), shardCount());
+    }
+    
+    /**
+     * Rewrite shards stored in an older per-shard format (e.g. JSON) in the current format
+     * Each legacy shard is read once, written in the new format, then deleted
+     */
+    public void migrateShards(String legacyExtension, ShardCodec<K, V> legacyCodec, UnaryOperator<V> copier) throws IOException {
+        for (Path legacyFile : listShardFiles("." + legacyExtension)) {
+            try {
+                long legacyBytes = Files.size(legacyFile);
+                legacyCodec.read(legacyFile).forEach(this::put);
+                long writtenBytes = snapshotDirty(copier).write();
+                Files.delete(legacyFile);
+                stats.recordMigration(legacyBytes, writtenBytes);
+            } catch (IOException | RuntimeException e) {
+                quarantine(legacyFile, e);
+            }
+        }
+        
+        if (stats.migratedFiles() > 0) {
+            SensibleStorage.LOGGER.info("Migrated {} legacy shards in {}: {}", stats.migratedFiles(), root, stats.describe());
+        }
+    }
+    
+    /**
+     * Copy the contents of every dirty shard for the save thread and clear the dirty set
+     */
+    @Override
+    public Snapshot<K, V> snapshotDirty(UnaryOperator<V> copier) {
+        Snapshot<K, V> snapshot = snapshot(dirtyShards, copier);
+        dirtyShards.clear();
+        return snapshot;
+    }
+    
+    private Snapshot<K, V> snapshot(Set<ShardKey> shardKeys, UnaryOperator<V> copier) {
+        Map<ShardKey, Map<K, V>> shards = new HashMap<>();
+        Map<ShardKey, Set<K>> uncached = new HashMap<>();
+        for (ShardKey shard : shardKeys) {
+            if (!writesIndex()) {
+                unindex(shard);
+            }
+            Map<K, V> contents = new HashMap<>();
+            Set<K> shardMembers = members.get(shard);
+            if (shardMembers != null) {
+                for (K key : shardMembers) {
+                    V value = entries.get(key);
+                    if (value != null) {
+                        contents.put(key, copier.apply(value));
+                    } else {
+                        // Dropped from the cache while clean; the IO thread reads it back from the current file
+                        uncached.computeIfAbsent(shard, k -> new HashSet<>()).add(key);
+                    }
+                }
+                if (shardMembers.isEmpty()) {
+                    members.remove(shard);
+                }
+            }
+            shards.put(shard, contents);
+        }
+        
+        Snapshot<K, V> snapshot = new Snapshot<>(this, shards, uncached);
+        for (ShardKey shard : shards.keySet()) {
+            inFlight.put(shard, snapshot);
+            rewrites.merge(shard, 1, Integer::sum);
+            if (indexes.containsKey(shard)) {
+                staleIndexes.add(shard);
+            }
+        }
+        return snapshot;
+    }
+    
+    private void ensureResident(ShardKey shard) {
+        if (!residentShards.contains(shard)) {
+            loadShard(shard);
+        }
+    }
+    
+    /**
+     * A shard file as read for paging in: just its index when it has one, otherwise the whole decoded shard
+     *
+     * @param nanos time spent reading it
+     */
+    private record Paged<K, V>(IndexedShardCodec.ShardIndex<K, V> index, Decoded<K, V> decoded, long nanos) {}
+    
+    /**
+     * Read a shard for paging in; touches no store state, so it can run on the IO executor
+     */
+    private Paged<K, V> readShard(Path file) {
+        long start = System.nanoTime();
+        IndexedShardCodec.ShardIndex<K, V> index = readShardIndex(file);
+        Decoded<K, V> decoded = index == null ? decodeCheckpoint(file) : null;
+        return new Paged<>(index, decoded, System.nanoTime() - start);
+    }
+    
+    /**
+     * Make a shard read by {@link #readShard} resident; with an index, every entry stays on disk until looked up
+     */
+    private void applyPaged(ShardKey shard, Paged<K, V> paged) {
+        residentShards.add(shard);
+        if (paged.index() != null) {
+            indexes.put(shard, paged.index());
+            staleIndexes.remove(shard);
+            members.put(shard, new HashSet<>(paged.index().keys()));
+            stats.recordShardLoaded(false);
+        } else {
+            applyCheckpoint(paged.decoded());
+        }
+        stats.recordLoad(paged.nanos());
+    }
+    
+    /**
+     * Read just the index of a shard file
+     *
+     * @return null if the codec or file has no index, so the caller decodes the whole shard
+     */
+    private IndexedShardCodec.ShardIndex<K, V> readShardIndex(Path file) {
+        if (!(codec instanceof IndexedShardCodec) || !Files.exists(file)) return null;
+        
+        try {
+            return readIndex(file);
+        } catch (IOException | RuntimeException e) {
+            // The full decode that follows falls back to ".prev" and quarantines the file
+            SensibleStorage.LOGGER.warn("Failed to read the index of memory shard {}", file, e);
+            return null;
+        }
+    }
+    
+    /**
+     * Read an entry dropped from the cache on the IO executor and cache it again on the owner executor
+     * An entry that cannot be read is dropped from the shard, as a lookup would have found nothing either
+     */
+    private void prefetch(ShardKey shard, K key, Executor owner) {
+        if (!prefetching.add(key)) return;
+        
+        IndexedShardCodec.ShardIndex<K, V> current = staleIndexes.contains(shard) ? null : indexes.get(shard);
+        Path file = shard.resolve(root, extension);
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                IndexedShardCodec.ShardIndex<K, V> index = current != null ? current : readIndex(file);
+                return index != null ? index.read(key) : readVerified(file).get(key);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, StorageExecutor.IO).whenCompleteAsync((value, error) -> {
+            prefetching.remove(key);
+            // Evicted or removed meanwhile; anything edited since is already in the cache and wins
+            Set<K> shardMembers = members.get(shard);
+            if (!residentShards.contains(shard) || shardMembers == null || !shardMembers.contains(key)
+                || entries.containsKey(key)) {
+                return;
+            }
+            if (value == null) {
+                SensibleStorage.LOGGER.error("Failed to read {} from memory shard {}, dropping it", key, file, error);
+                shardMembers.remove(key);
+                return;
+            }
+            entries.put(key, value);
+            trimCache();
+        }, owner);
+    }
+    
+    /**
+     * Cache miss: read a single entry through its shard's index
+     */
+    private V readIndexed(ShardKey shard, K key) {
+        long start = System.nanoTime();
+        V value = readThroughIndex(shard, key);
+        if (value == null) return null;
+        
+        entries.put(key, value);
+        stats.recordIndexRead(System.nanoTime() - start);
+        trimCache();
+        return value;
+    }
+    
+    /**
+     * Read one entry of an indexed shard from disk without caching it
+     * A pending write of the shard is awaited first, and an index made stale by a rewrite is read again
+     */
+    private V readThroughIndex(ShardKey shard, K key) {
+        Snapshot<K, V> pending = inFlight.get(shard);
+        if (pending != null) {
+            pending.awaitWritten();
+        }
+        
+        Path file = shard.resolve(root, extension);
+        try {
+            if (staleIndexes.remove(shard)) {
+                IndexedShardCodec.ShardIndex<K, V> index = readIndex(file);
+                if (index == null) {
+                    return readUnindexed(shard, file, key);
+                }
+                indexes.put(shard, index);
+            }
+            return indexes.get(shard).read(key);
+        } catch (IOException | RuntimeException e) {
+            SensibleStorage.LOGGER.error("Failed to read {} from memory shard {}", key, file, e);
+            return null;
+        }
+    }
+    
+    /**
+     * The shard was rewritten without an index (compression was switched on): decode it whole, put
+     * back every entry missing from the cache and stop treating it as indexed, so none is dropped again
+     */
+    private V readUnindexed(ShardKey shard, Path file, K key) throws IOException {
+        Map<K, V> contents = readVerified(file);
+        indexes.remove(shard);
+        for (K member : members.getOrDefault(shard, Set.of())) {
+            V value = contents.get(member);
+            if (value != null) {
+                entries.putIfAbsent(member, value);
+            }
+        }
+        return entries.get(key);
+    }
+    
+    /**
+     * Whether shard files written now carry an index
+     */
+    private boolean writesIndex() {
+        return codec instanceof IndexedShardCodec<K, V> indexed && indexed.writesIndex();
+    }
+    
+    /**
+     * Before an indexed shard is rewritten without an index, read its dropped entries back and stop
+     * treating it as indexed, since afterwards they could no longer be read one at a time
+     * If an entry cannot be read the shard stays indexed, and the snapshot reads it from the current file
+     */
+    private void unindex(ShardKey shard) {
+        if (!indexes.containsKey(shard)) return;
+        
+        for (K key : List.copyOf(members.getOrDefault(shard, Set.of()))) {
+            if (!indexes.containsKey(shard)) return;
+            if (!entries.containsKey(key)) {
+                V value = readThroughIndex(shard, key);
+                if (value == null) return;
+                entries.put(key, value);
+            }
+        }
+        indexes.remove(shard);
+        staleIndexes.remove(shard);
+    }
+    
+    /**
+     * Drop the least recently used entries beyond the cache budget
+     * Only entries of clean indexed shards can be dropped, since only they can be read back exactly,
+     * and pinned entries are kept, since a copy read back later would not be the instance their holder edits
+     */
+    private void trimCache() {
+        int excess = entries.size() - SensibleStorageConfig.get().memoryCacheMaxContainers;
+        if (excess <= 0 || indexes.isEmpty()) return;
+        
+        Iterator<K> eldest = entries.keySet().iterator();
+        while (excess > 0 && eldest.hasNext()) {
+            K key = eldest.next();
+            ShardKey shard = sharding.apply(key);
+            if (indexes.containsKey(shard) && !dirtyShards.contains(shard) && !inFlight.containsKey(shard)
+                && !pins.containsKey(key)) {
+                eldest.remove();
+                stats.recordCacheEviction();
+                excess--;
+            }
+        }
+    }
+    
+    private void putLoaded(Map<K, V> loaded) {
+        for (Map.Entry<K, V> entry : loaded.entrySet()) {
+            ShardKey shard = sharding.apply(entry.getKey());
+            entries.put(entry.getKey(), entry.getValue());
+            members.computeIfAbsent(shard, k -> new HashSet<>()).add(entry.getKey());
+            residentShards.add(shard);
+        }
+    }
+    
+    /**
+     * A decoded shard file, ready to merge into the store on the calling thread
+     *
+     * @param recovered whether it came from the ".prev" generation
+     * @param nanos     time spent reading and decoding it
+     */
+    private record Decoded<K, V>(Map<K, V> entries, boolean recovered, long nanos) {}
+    
+    /**
+     * Read the current generation of a shard, falling back to the previous one if it is damaged or missing
+     * Touches no store state, so shards can be decoded concurrently
+     *
+     * @return the decoded shard, or a shard without entries if neither generation could be read
+     */
+    private Decoded<K, V> decodeCheckpoint(Path file) {
+        long start = System.nanoTime();
+        if (Files.exists(file)) {
+            try {
+                return new Decoded<>(readVerified(file), false, System.nanoTime() - start);
+            } catch (IOException | RuntimeException e) {
+                quarantine(file, e);
+            }
+        }
+        
+        Path previous = sibling(file, PREVIOUS_SUFFIX);
+        if (Files.exists(previous)) {
+            try {
+                Map<K, V> recovered = readVerified(previous);
+                SensibleStorage.LOGGER.warn("Recovered memory shard {} from its previous checkpoint", file);
+                return new Decoded<>(recovered, true, System.nanoTime() - start);
+            } catch (IOException | RuntimeException e) {
+                quarantine(previous, e);
+            }
+        }
+        return new Decoded<>(null, false, System.nanoTime() - start);
+    }
+    
+    /**
+     * Merge a decoded shard into the store
+     * A recovered shard is marked dirty so the next checkpoint rewrites it as the current generation
+     */
+    private void applyCheckpoint(Decoded<K, V> decoded) {
+        stats.recordDecode(decoded.nanos());
+        if (decoded.entries() == null) return;
+        
+        putLoaded(decoded.entries());
+        if (decoded.recovered()) {
+            for (K key : decoded.entries().keySet()) {
+                dirtyShards.add(sharding.apply(key));
+            }
+        }
+        stats.recordShardLoaded(decoded.recovered());
+    }
+    
+    /**
+     * Read the key to offset index of a shard file after checking its trailer
+     *
+     * @return null if the codec or this file has no index
+     */
+    private IndexedShardCodec.ShardIndex<K, V> readIndex(Path file) throws IOException {
+        return codec instanceof IndexedShardCodec<K, V> indexed ? indexed.readIndex(file, verifyChecksum(file)) : null;
+    }
+    
+    /**
+     * Check the CRC trailer before handing the file to the codec
+     * Only files the codec dates from before checkpoints had trailers may lack one, and are left to its own validation
+     */
+    private Map<K, V> readVerified(Path file) throws IOException {
+        verifyChecksum(file);
+        return codec.read(file);
+    }
+    
+    /**
+     * Check the CRC trailer, which every file in a checkpoint-only format must have
+     *
+     * @return length of the codec's output, without the trailer
+     */
+    private long verifyChecksum(Path file) throws IOException {
+        long size;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            size = channel.size();
+            if (size >= TRAILER_BYTES) {
+                ByteBuffer trailer = ByteBuffer.allocate(TRAILER_BYTES);
+                channel.read(trailer, size - TRAILER_BYTES);
+                trailer.flip();
+                if (trailer.remaining() == TRAILER_BYTES && trailer.getInt() == TRAILER_MAGIC) {
+                    if (trailer.getInt() != checksum(channel, size - TRAILER_BYTES)) {
+                        throw new IOException("Checksum mismatch in " + file);
+                    }
+                    return size - TRAILER_BYTES;
+                }
+            }
+        }
+        
+        if (codec.requiresTrailer(file)) {
+            throw new IOException("Missing checksum trailer in " + file);
+        }
+        return size;
+    }
+    
+    /**
+     * Write a shard crash-safely: temp file + trailer + fsync, keep the old file as ".prev", then atomic rename
+     *
+     * @return size in bytes of the new shard file
+     */
+    private long writeCheckpoint(Path file, Map<K, V> contents) throws IOException {
+        Path temp = sibling(file, TEMP_SUFFIX);
+        codec.write(contents, temp);
+        
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_BYTES);
+            trailer.putInt(TRAILER_MAGIC).putInt(checksum(channel, size)).flip();
+            channel.position(size);
+            while (trailer.hasRemaining()) {
+                channel.write(trailer);
+            }
+            channel.force(true);
+        }
+        
+        if (Files.exists(file)) {
+            Files.move(file, sibling(file, PREVIOUS_SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+        }
+        StoreFiles.replace(temp, file);
+        return Files.size(file);
+    }
+    
+    private static int checksum(FileChannel channel, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = 0;
+        while (position < length) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), length - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) break;
+            buffer.flip();
+            crc.update(buffer);
+            position += read;
+        }
+        return (int) crc.getValue();
+    }
+    
+    private static Path sibling(Path file, String suffix) {
+        return file.resolveSibling(file.getFileName() + suffix);
+    }
+    
+    /**
+     * Current shard file of every shard below the root, including shards that only survived as ".prev"
+     */
+    private Set<Path> shardFiles() throws IOException {
+        Set<Path> files = new LinkedHashSet<>(listShardFiles("." + extension));
+        for (Path previous : listShardFiles("." + extension + PREVIOUS_SUFFIX)) {
+            String name = previous.getFileName().toString();
+            files.add(previous.resolveSibling(name.substring(0, name.length() - PREVIOUS_SUFFIX.length())));
+        }
+        return files;
+    }
+    
+    private List<Path> listShardFiles(String suffix) throws IOException {
+        if (!Files.isDirectory(root)) return List.of();
+        
+        try (Stream<Path> walk = Files.walk(root)) {
+            return walk.filter(Files::isRegularFile)
+                .filter(path -> path.getFileName().toString().endsWith(suffix))
+                .sorted()
+                .toList();
+        }
+    }
+    
+    private void quarantine(Path file, Exception cause) {
+        SensibleStorage.LOGGER.error("Failed to read memory shard {}, moving it aside", file, cause);
+        try {
+            Files.move(file, file.resolveSibling(file.getFileName() + ".corrupt"), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ignored) {
+        }
+    }
+    
+    /**
+     * Immutable copy of the dirty shards, written on the IO executor
+     */
+    public static final class Snapshot<K, V> implements MemoryStore.Flush {
+        private final RegionShardedStore<K, V> store;
+        private final Map<ShardKey, Map<K, V>> shards;
+        private final Map<ShardKey, Set<K>> uncached;
+        private final CompletableFuture<Void> written = new CompletableFuture<>();
+        // Shards the last write() failed on
+        private final Set<ShardKey> failed = ConcurrentHashMap.newKeySet();
+        
+        private Snapshot(RegionShardedStore<K, V> store, Map<ShardKey, Map<K, V>> shards, Map<ShardKey, Set<K>> uncached) {
+            this.store = store;
+            this.shards = shards;
+            this.uncached = uncached;
+        }
+        
+        public int shardCount() {
+            return shards.size();
+        }
+        
+        /**
+         * Whether every shard of the last {@link #write()} reached disk
+         */
+        @Override
+        public boolean isComplete() {
+            return failed.isEmpty();
+        }
+        
+        /**
+         * Block until {@link #write()} has finished, bounded by the shutdown flush timeout
+         */
+        private void awaitWritten() {
+            try {
+                written.get(SensibleStorageConfig.get().shutdownFlushTimeoutMs, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                SensibleStorage.LOGGER.warn("Gave up waiting for a pending write of {}", store.root, e);
+            }
+        }
+        
+        /**
+         * Rewrite each dirty shard, deleting shards that no longer hold any container
+         * Shards are encoded in parallel, but this returns only once all of them are done,
+         * so snapshots still reach disk in the order the IO executor runs them
+         *
+         * @return total size in bytes of the shard files written
+         */
+        @Override
+        public long write() {
+            long start = System.nanoTime();
+            List<ShardKey> order = new ArrayList<>(shards.keySet());
+            List<CompletableFuture<Long>> writes = new ArrayList<>(order.size());
+            for (ShardKey shard : order) {
+                writes.add(CompletableFuture.supplyAsync(() -> writeShard(shard, shards.get(shard)), StorageExecutor.CODEC));
+            }
+            
+            long bytes = 0;
+            failed.clear();
+            for (int i = 0; i < writes.size(); i++) {
+                long written = writes.get(i).join();
+                if (written < 0) {
+                    failed.add(order.get(i));
+                } else {
+                    bytes += written;
+                }
+            }
+            
+            for (ShardKey shard : shards.keySet()) {
+                store.inFlight.remove(shard, this);
+            }
+            written.complete(null);
+            store.stats.recordFlush(System.nanoTime() - start);
+            return bytes;
+        }
+        
+        /**
+         * @return size in bytes of the written shard file, 0 if it was deleted, or -1 if it failed
+         */
+        private long writeShard(ShardKey shard, Map<K, V> contents) {
+            Path file = shard.resolve(store.root, store.extension);
+            try {
+                // Entries dropped from the cache are unchanged on disk; read them back before the rewrite.
+                // The index is read afresh, since an earlier snapshot may have rewritten this file
+                Set<K> missing = uncached.get(shard);
+                if (missing != null) {
+                    IndexedShardCodec.ShardIndex<K, V> index = store.readIndex(file);
+                    if (index != null) {
+                        for (K key : missing) {
+                            contents.put(key, index.read(key));
+                        }
+                    } else {
+                        // Rewritten without an index since the snapshot was taken (compression switched on)
+                        Map<K, V> onDisk = store.readVerified(file);
+                        for (K key : missing) {
+                            V value = onDisk.get(key);
+                            if (value == null) throw new IOException("Memory shard " + file + " lost " + key);
+                            contents.put(key, value);
+                        }
+                    }
+                }
+                
+                if (contents.isEmpty()) {
+                    Files.deleteIfExists(file);
+                    Files.deleteIfExists(sibling(file, PREVIOUS_SUFFIX));
+                    return 0;
+                }
+                Files.createDirectories(file.getParent());
+                return store.writeCheckpoint(file, contents);
+            } catch (IOException | RuntimeException e) {
+                SensibleStorage.LOGGER.error("Failed to write memory shard {}", file, e);
+                return -1;
+            }
+        }
+    }
+}
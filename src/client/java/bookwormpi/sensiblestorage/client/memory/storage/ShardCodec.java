@@ -0,0 +1,24 @@
+package bookwormpi.sensiblestorage.client.memory.storage;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * Reads and writes the containers of a single shard file
+ * Implementations must be safe to call from the IO executor
+ */
+public interface ShardCodec<K, V> {
+    Map<K, V> read(Path file) throws IOException;
+    
+    void write(Map<K, V> containers, Path file) throws IOException;
+    
+    /**
+     * Whether the file is in a format that was only ever written as a checkpoint, so it must end
+     * in the store's checksum trailer and a file without one was cut short or overwritten
+     * Formats that cannot tell files from before checkpoints apart leave the trailer optional
+     */
+    default boolean requiresTrailer(Path file) throws IOException {
+        return false;
+    }
+}
@@ -0,0 +1,40 @@
+package bookwormpi.sensiblestorage.client.memory.storage;
+
+import java.nio.file.Path;
+
+/**
+ * Identifies one on-disk shard: a dimension plus a 32x32-chunk region, like vanilla region files
+ * Containers without a known position all share the {@link #UNPOSITIONED} shard
+ */
+public record ShardKey(String dimension, int regionX, int regionZ) {
+    public static final ShardKey UNPOSITIONED = new ShardKey("", 0, 0);
+    
+    /**
+     * Shard holding the given block column (block -> chunk is >> 4, chunk -> region is >> 5)
+     */
+    public static ShardKey of(String dimension, int blockX, int blockZ) {
+        return new ShardKey(dimension, blockX >> 9, blockZ >> 9);
+    }
+    
+    /**
+     * Shard holding the given chunk
+     */
+    public static ShardKey ofChunk(String dimension, int chunkX, int chunkZ) {
+        return new ShardKey(dimension, chunkX >> 5, chunkZ >> 5);
+    }
+    
+    public boolean isPositioned() {
+        return !this.equals(UNPOSITIONED);
+    }
+    
+    /**
+     * File for this shard below the store root, e.g. minecraft/overworld/r.0.-1.json
+     */
+    public Path resolve(Path root, String extension) {
+        if (!isPositioned()) {
+            return root.resolve("unpositioned." + extension);
+        }
+        String dimensionDir = dimension.replace(':', '/').replaceAll("[^a-zA-Z0-9/._-]", "_");
+        return root.resolve(dimensionDir).resolve("r." + regionX + "." + regionZ + "." + extension);
+    }
+}
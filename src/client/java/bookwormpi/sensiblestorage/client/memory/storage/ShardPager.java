@@ -0,0 +1,76 @@
+package bookwormpi.sensiblestorage.client.memory.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Tracks how many loaded client chunks fall into each shard region
+ *
+ * A shard is paged in when the first chunk of its region loads and paged out once
+ * the last one unloads, so memory stores hold roughly the render distance instead
+ * of the whole world history. Driven by the client chunk events, client thread only.
+ */
+public final class ShardPager {
+    private static final Map<ShardKey, Integer> loadedChunks = new HashMap<>();
+    private static final List<Consumer<ShardKey>> pageInListeners = new ArrayList<>();
+    private static final List<Consumer<ShardKey>> pageOutListeners = new ArrayList<>();
+    
+    private ShardPager() {
+    }
+    
+    /**
+     * Register a store to be told when a region gains its first or loses its last loaded chunk
+     */
+    public static void register(Consumer<ShardKey> pageIn, Consumer<ShardKey> pageOut) {
+        pageInListeners.add(pageIn);
+        pageOutListeners.add(pageOut);
+    }
+    
+    public static void chunkLoaded(String dimension, int chunkX, int chunkZ) {
+        ShardKey shard = ShardKey.ofChunk(dimension, chunkX, chunkZ);
+        if (loadedChunks.merge(shard, 1, Integer::sum) == 1) {
+            pageInListeners.forEach(listener -> listener.accept(shard));
+        }
+    }
+    
+    public static void chunkUnloaded(String dimension, int chunkX, int chunkZ) {
+        ShardKey shard = ShardKey.ofChunk(dimension, chunkX, chunkZ);
+        Integer count = loadedChunks.get(shard);
+        if (count == null) return;
+        
+        if (count <= 1) {
+            loadedChunks.remove(shard);
+            pageOutListeners.forEach(listener -> listener.accept(shard));
+        } else {
+            loadedChunks.put(shard, count - 1);
+        }
+    }
+    
+    /**
+     * Whether any loaded chunk falls into this shard; the unpositioned shard is always kept
+     */
+    public static boolean isReferenced(ShardKey shard) {
+        return !shard.isPositioned() || loadedChunks.containsKey(shard);
+    }
+    
+    /**
+     * Regions with at least one loaded chunk, for stores that open after chunks already loaded
+     */
+    public static List<ShardKey> referencedShards() {
+        return List.copyOf(loadedChunks.keySet());
+    }
+    
+    /**
+     * Page out every region, e.g. when leaving a world
+     */
+    public static void clear() {
+        List<ShardKey> shards = new ArrayList<>(loadedChunks.keySet());
+        loadedChunks.clear();
+        for (ShardKey shard : shards) {
+            pageOutListeners.forEach(listener -> listener.accept(shard));
+        }
+    }
+}
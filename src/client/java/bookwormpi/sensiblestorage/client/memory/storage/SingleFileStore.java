@@ -0,0 +1,114 @@
+package bookwormpi.sensiblestorage.client.memory.storage;
+
+import bookwormpi.sensiblestorage.SensibleStorage;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * Memory store kept in a single file, read whole when opened and rewritten whole on flush
+ *
+ * This is the layout the mod used before region shards, kept as the "legacy-json"
+ * backend for comparison and for people who want one human-readable file.
+ */
+public class SingleFileStore<K, V> extends InMemoryStore<K, V> {
+    private final Path file;
+    private final ShardCodec<K, V> codec;
+    
+    /**
+     * @param file     the store file
+     * @param codec    reads and writes the whole file
+     * @param sharding maps a container key to the region it belongs to
+     */
+    public SingleFileStore(Path file, ShardCodec<K, V> codec, Function<K, ShardKey> sharding) {
+        super(sharding, "single file " + file.getFileName());
+        this.file = file;
+        this.codec = codec;
+    }
+    
+    public Path file() {
+        return file;
+    }
+    
+    /**
+     * IO thread: read the file if it exists
+     *
+     * @return false if there was no file to read
+     */
+    public boolean load() throws IOException {
+        if (!Files.exists(file)) return false;
+        
+        long start = System.nanoTime();
+        entries.putAll(codec.read(file));
+        long elapsed = System.nanoTime() - start;
+        stats.recordLoad(elapsed);
+        stats.recordDecode(elapsed);
+        stats.recordShardLoaded(false);
+        return true;
+    }
+    
+    /**
+     * IO thread: take over every entry of another store, e.g. when switching backends
+     */
+    public void importFrom(MemoryStore<K, V> other) {
+        for (K key : other.keys()) {
+            put(key, other.get(key));
+        }
+    }
+    
+    @Override
+    public Flush snapshotDirty(UnaryOperator<V> copier) {
+        dirty = false;
+        Map<K, V> contents = new HashMap<>();
+        for (Map.Entry<K, V> entry : entries.entrySet()) {
+            contents.put(entry.getKey(), copier.apply(entry.getValue()));
+        }
+        return new FileWrite(contents);
+    }
+    
+    /**
+     * Whole-file rewrite through a temp file and an atomic rename
+     */
+    private final class FileWrite implements Flush {
+        private final Map<K, V> contents;
+        private boolean complete = true;
+        
+        private FileWrite(Map<K, V> contents) {
+            this.contents = contents;
+        }
+        
+        @Override
+        public long write() {
+            long start = System.nanoTime();
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try {
+                Files.createDirectories(file.getParent());
+                codec.write(contents, temp);
+                try {
+                    Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+                complete = true;
+                stats.recordFlush(System.nanoTime() - start);
+                return Files.size(file);
+            } catch (IOException | RuntimeException e) {
+                SensibleStorage.LOGGER.error("Failed to write memory store {}", file, e);
+                complete = false;
+                return 0;
+            }
+        }
+        
+        @Override
+        public boolean isComplete() {
+            return complete;
+        }
+    }
+}
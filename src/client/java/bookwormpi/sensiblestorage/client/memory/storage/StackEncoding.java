@@ -0,0 +1,70 @@
+package bookwormpi.sensiblestorage.client.memory.storage;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.mojang.serialization.DynamicOps;
+import com.mojang.serialization.JsonOps;
+import net.minecraft.component.ComponentChanges;
+import net.minecraft.item.Item;
+import net.minecraft.item.ItemStack;
+import net.minecraft.registry.Registries;
+import net.minecraft.registry.RegistryWrapper;
+import net.minecraft.util.Identifier;
+
+/**
+ * Converts template stacks to and from (item id, component changes) pairs for storage
+ * Component changes are kept as compact JSON so enchantments, names etc. survive a reload
+ *
+ * Components such as enchantments refer to the world's dynamic registries, so an encoding is
+ * created from the joined world's registries on the client thread and handed to the IO and
+ * codec threads; it stays usable after the world is gone, for the flush on disconnect.
+ */
+public final class StackEncoding {
+    private final DynamicOps<JsonElement> ops;
+    
+    private StackEncoding(DynamicOps<JsonElement> ops) {
+        this.ops = ops;
+    }
+    
+    /**
+     * Client thread: encoding backed by a world's registries
+     */
+    public static StackEncoding of(RegistryWrapper.WrapperLookup registries) {
+        return new StackEncoding(registries.getOps(JsonOps.INSTANCE));
+    }
+    
+    public static String itemId(ItemStack stack) {
+        return Registries.ITEM.getId(stack.getItem()).toString();
+    }
+    
+    /**
+     * Encode the stack's component changes, or "" when it has none
+     */
+    public String encodeComponents(ItemStack stack) {
+        ComponentChanges changes = stack.getComponentChanges();
+        if (changes.isEmpty()) {
+            return "";
+        }
+        return ComponentChanges.CODEC.encodeStart(ops, changes).result()
+            .map(JsonElement::toString)
+            .orElse("");
+    }
+    
+    /**
+     * Rebuild a stack; unknown items decode to EMPTY and unreadable components are dropped
+     */
+    public ItemStack decode(String itemId, String components, int count) {
+        Identifier id = Identifier.tryParse(itemId);
+        if (id == null || !Registries.ITEM.containsId(id)) {
+            return ItemStack.EMPTY;
+        }
+        
+        Item item = Registries.ITEM.get(id);
+        ItemStack stack = new ItemStack(item, Math.max(1, count));
+        if (!components.isEmpty()) {
+            ComponentChanges.CODEC.parse(ops, JsonParser.parseString(components)).result()
+                .ifPresent(stack::applyChanges);
+        }
+        return stack;
+    }
+}
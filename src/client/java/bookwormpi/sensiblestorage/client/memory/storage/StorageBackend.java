@@ -0,0 +1,43 @@
+package bookwormpi.sensiblestorage.client.memory.storage;
+
+/**
+ * Storage backends selectable with the storageBackend config option
+ */
+public enum StorageBackend {
+    /**
+     * Region shards paged with loaded chunks, in the configured storage format (default)
+     */
+    SHARDED("sharded"),
+    
+    /**
+     * One JSON file holding every container, read whole on join and rewritten whole on save
+     */
+    LEGACY_JSON("legacy-json"),
+    
+    /**
+     * Nothing is written; memories last until the world is left
+     */
+    MEMORY("memory");
+    
+    private final String configName;
+    
+    StorageBackend(String configName) {
+        this.configName = configName;
+    }
+    
+    public String configName() {
+        return configName;
+    }
+    
+    /**
+     * Backend for a config value, falling back to {@link #SHARDED} for unknown names
+     */
+    public static StorageBackend fromConfig(String name) {
+        for (StorageBackend backend : values()) {
+            if (backend.configName.equalsIgnoreCase(name)) {
+                return backend;
+            }
+        }
+        return SHARDED;
+    }
+}
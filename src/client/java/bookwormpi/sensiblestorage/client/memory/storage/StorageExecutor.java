@@ -0,0 +1,34 @@
+package bookwormpi.sensiblestorage.client.memory.storage;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * Background executors for memory persistence
+ * A single IO thread keeps writes to the same files strictly ordered; the IO thread
+ * fans independent shard decodes and encodes out to the codec pool and waits for them
+ */
+public final class StorageExecutor {
+    public static final ExecutorService IO = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "SensibleStorage-IO");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    });
+    
+    public static final ForkJoinPool CODEC = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1),
+        pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("SensibleStorage-Codec-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            // Mod classes come from the game's class loader, not the system one pool threads default to
+            thread.setContextClassLoader(StorageExecutor.class.getClassLoader());
+            return thread;
+        }, null, false);
+    
+    private StorageExecutor() {
+    }
+}
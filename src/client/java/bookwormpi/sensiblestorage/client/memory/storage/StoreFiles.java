@@ -0,0 +1,105 @@
+package bookwormpi.sensiblestorage.client.memory.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Opens store files for the codecs, optionally deflate-compressed (gzip framing)
+ *
+ * Compression streams through fixed 64 KB buffers in both directions, so the whole
+ * payload is never held in memory. Compressed files are recognised by the gzip magic
+ * when read, so toggling compression never strands existing files; each file switches
+ * form the next time it is saved.
+ *
+ * Files replaced whole (shard checkpoints, the item index) go through {@link #force} and
+ * {@link #replace}: the new contents are fsynced under a temp name and renamed over the old
+ * file, and the rename itself is made durable.
+ */
+public final class StoreFiles {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int GZIP_MAGIC = 0x8B1F;
+    
+    private StoreFiles() {
+    }
+    
+    /**
+     * Open a file for reading, inflating it transparently when it is compressed
+     */
+    public static ReadableByteChannel openRead(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            if (!isCompressed(channel)) {
+                return channel;
+            }
+            return Channels.newChannel(new GZIPInputStream(Channels.newInputStream(channel), BUFFER_SIZE));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Create or truncate a file for writing; closing the channel finishes the compressed stream
+     */
+    public static WritableByteChannel openWrite(Path file, boolean compress) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        if (!compress) {
+            return channel;
+        }
+        try {
+            return Channels.newChannel(new GZIPOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Flush a written file's contents to disk before it is renamed into place
+     */
+    public static void force(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+    
+    /**
+     * Atomically rename a fully written temp file over the target, then make the rename durable
+     */
+    public static void replace(Path temp, Path file) throws IOException {
+        try {
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        syncDirectory(file.getParent());
+    }
+    
+    /**
+     * Not every platform can open a directory, so failures are ignored
+     */
+    private static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {
+        }
+    }
+    
+    private static boolean isCompressed(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(2);
+        channel.read(header, 0);
+        return !header.hasRemaining() && ((header.get(0) & 0xFF) | (header.get(1) & 0xFF) << 8) == GZIP_MAGIC;
+    }
+}
@@ -0,0 +1,125 @@
+package bookwormpi.sensiblestorage.client.memory.storage;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load, paging and migration statistics for a store, shown by the stats command
+ *
+ * Counters are bumped from the client thread, the IO executor and the codec pool while the
+ * stats command reads them on the client thread, so each one is an atomic.
+ */
+public class StoreStats {
+    public final String backend;
+    // Wall-clock load time, and the summed per-shard decode time a sequential load would have taken
+    private final AtomicLong loadNanos = new AtomicLong();
+    private final AtomicLong decodeNanos = new AtomicLong();
+    private final AtomicInteger loadedShards = new AtomicInteger();
+    private final AtomicInteger migratedFiles = new AtomicInteger();
+    private final AtomicLong migratedFromBytes = new AtomicLong();
+    private final AtomicLong migratedToBytes = new AtomicLong();
+    private final AtomicInteger recoveredShards = new AtomicInteger();
+    private final AtomicInteger evictedShards = new AtomicInteger();
+    private final AtomicInteger flushes = new AtomicInteger();
+    private final AtomicLong flushNanos = new AtomicLong();
+    private final AtomicInteger cacheEvictions = new AtomicInteger();
+    private final AtomicInteger indexReads = new AtomicInteger();
+    private final AtomicLong indexReadNanos = new AtomicLong();
+    
+    public StoreStats(String backend) {
+        this.backend = backend;
+    }
+    
+    public void recordLoad(long nanos) {
+        loadNanos.addAndGet(nanos);
+    }
+    
+    public void recordDecode(long nanos) {
+        decodeNanos.addAndGet(nanos);
+    }
+    
+    /**
+     * A shard was read, either whole or through its index
+     */
+    public void recordShardLoaded(boolean recovered) {
+        loadedShards.incrementAndGet();
+        if (recovered) {
+            recoveredShards.incrementAndGet();
+        }
+    }
+    
+    public void recordShardEvicted() {
+        evictedShards.incrementAndGet();
+    }
+    
+    /**
+     * A cold container was dropped from the decoded-entry cache
+     */
+    public void recordCacheEviction() {
+        cacheEvictions.incrementAndGet();
+    }
+    
+    public void recordMigration(long fromBytes, long toBytes) {
+        migratedFiles.incrementAndGet();
+        migratedFromBytes.addAndGet(fromBytes);
+        migratedToBytes.addAndGet(toBytes);
+    }
+    
+    public int migratedFiles() {
+        return migratedFiles.get();
+    }
+    
+    /**
+     * Called on the IO executor after each completed flush
+     */
+    public void recordFlush(long nanos) {
+        flushes.incrementAndGet();
+        flushNanos.addAndGet(nanos);
+    }
+    
+    public void recordIndexRead(long nanos) {
+        indexReads.incrementAndGet();
+        indexReadNanos.addAndGet(nanos);
+    }
+    
+    public String describe() {
+        long loadNanos = this.loadNanos.get();
+        long decodeNanos = this.decodeNanos.get();
+        int cacheEvictions = this.cacheEvictions.get();
+        int indexReads = this.indexReads.get();
+        int flushes = this.flushes.get();
+        int migratedFiles = this.migratedFiles.get();
+        long migratedFromBytes = this.migratedFromBytes.get();
+        long migratedToBytes = this.migratedToBytes.get();
+        int recoveredShards = this.recoveredShards.get();
+        
+        StringBuilder builder = new StringBuilder(backend).append(": ");
+        builder.append(String.format("loaded %d shards in %d ms", loadedShards.get(), loadNanos / 1_000_000));
+        if (loadNanos > 0 && decodeNanos > loadNanos) {
+            builder.append(String.format(" (%.1fx faster than sequential)", (double) decodeNanos / loadNanos));
+        }
+        builder.append(String.format(", paged out %d", evictedShards.get()));
+        if (cacheEvictions > 0 || indexReads > 0) {
+            builder.append(String.format(", dropped %d cold containers, read back %d by index (%.2f ms each)",
+                cacheEvictions, indexReads, indexReads > 0 ? indexReadNanos.get() / 1_000_000.0 / indexReads : 0));
+        }
+        if (flushes > 0) {
+            builder.append(String.format(", %d saves averaging %.1f ms", flushes, flushNanos.get() / 1_000_000.0 / flushes));
+        }
+        if (migratedFiles > 0) {
+            double saved = migratedFromBytes > 0 ? 100.0 * (migratedFromBytes - migratedToBytes) / migratedFromBytes : 0;
+            builder.append(String.format(", migrated %d legacy files %s -> %s (%.0f%% smaller)",
+                migratedFiles, formatBytes(migratedFromBytes), formatBytes(migratedToBytes), saved));
+        }
+        if (recoveredShards > 0) {
+            builder.append(String.format(", recovered %d shards from the previous checkpoint", recoveredShards));
+        }
+        return builder.toString();
+    }
+    
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return String.format("%.1f KB", bytes / 1024.0);
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+}
@@ -0,0 +1,34 @@
+package bookwormpi.sensiblestorage.client.memory.storage;
+
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.util.WorldSavePath;
+
+import java.nio.file.Path;
+
+/**
+ * Names the world the client is currently in, so each server or singleplayer save gets its own store
+ * Singleplayer worlds are keyed by save folder ("sp_New World"), servers by address ("mp_play.example.net")
+ */
+public final class WorldNamespace {
+    private WorldNamespace() {
+    }
+    
+    /**
+     * Namespace of the current session, or null when not connected to any world
+     */
+    public static String current() {
+        MinecraftClient client = MinecraftClient.getInstance();
+        if (client.getServer() != null) {
+            Path saveDir = client.getServer().getSavePath(WorldSavePath.ROOT).toAbsolutePath().normalize();
+            return "sp_" + sanitize(saveDir.getFileName().toString());
+        }
+        if (client.getCurrentServerEntry() != null) {
+            return "mp_" + sanitize(client.getCurrentServerEntry().address);
+        }
+        return client.world != null ? "mp_unknown_server" : null;
+    }
+    
+    private static String sanitize(String name) {
+        return name.replaceAll("[^a-zA-Z0-9._-]", "_");
+    }
+}
@@ -0,0 +1,104 @@
+package bookwormpi.sensiblestorage.client.memory.storage;
+
+import bookwormpi.sensiblestorage.SensibleStorage;
+import bookwormpi.sensiblestorage.client.config.SensibleStorageConfig;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Write-behind saver that coalesces bursts of edits into a single flush
+ *
+ * Edits only mark the saver dirty. Once no edit has arrived for the quiet period
+ * (or the burst has lasted longer than the max delay), the snapshot supplier runs
+ * on the client thread and the writer serializes that immutable snapshot on the
+ * background IO executor.
+ */
+public class WriteBehindSaver<S> {
+    private final String name;
+    private final Supplier<S> snapshotter;
+    private final Consumer<S> writer;
+    
+    private long firstDirtyAt = -1;
+    private long lastDirtyAt = -1;
+    private CompletableFuture<Void> lastWrite = CompletableFuture.completedFuture(null);
+    
+    /**
+     * @param name        name used in log messages
+     * @param snapshotter captures an immutable snapshot, always called on the client thread
+     * @param writer      writes a snapshot to disk, always called on the IO executor
+     */
+    public WriteBehindSaver(String name, Supplier<S> snapshotter, Consumer<S> writer) {
+        this.name = name;
+        this.snapshotter = snapshotter;
+        this.writer = writer;
+    }
+    
+    /**
+     * Record an edit; the flush is pushed back until edits go quiet
+     */
+    public void markDirty() {
+        long now = System.currentTimeMillis();
+        if (firstDirtyAt < 0) {
+            firstDirtyAt = now;
+        }
+        lastDirtyAt = now;
+    }
+    
+    public boolean isDirty() {
+        return firstDirtyAt >= 0;
+    }
+    
+    /**
+     * Called every client tick; starts a flush once the quiet period or max delay has elapsed
+     */
+    public void tick() {
+        if (!isDirty()) return;
+        
+        SensibleStorageConfig config = SensibleStorageConfig.get();
+        long now = System.currentTimeMillis();
+        if (now - lastDirtyAt >= config.saveQuietPeriodMs || now - firstDirtyAt >= config.saveMaxDelayMs) {
+            flushAsync();
+        }
+    }
+    
+    /**
+     * Snapshot now and write in the background, even if nothing is dirty
+     */
+    public CompletableFuture<Void> flushAsync() {
+        firstDirtyAt = -1;
+        lastDirtyAt = -1;
+        
+        S snapshot;
+        try {
+            snapshot = snapshotter.get();
+        } catch (Exception e) {
+            SensibleStorage.LOGGER.error("Failed to snapshot {} for saving", name, e);
+            return lastWrite;
+        }
+        
+        lastWrite = CompletableFuture.runAsync(() -> writer.accept(snapshot), StorageExecutor.IO)
+            .exceptionally(e -> {
+                SensibleStorage.LOGGER.error("Failed to save {}", name, e);
+                return null;
+            });
+        return lastWrite;
+    }
+    
+    /**
+     * Flush pending edits and wait at most timeoutMs for every queued write to land
+     */
+    public void flushBlocking(long timeoutMs) {
+        CompletableFuture<Void> write = isDirty() ? flushAsync() : lastWrite;
+        try {
+            write.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            SensibleStorage.LOGGER.warn("Timed out after {} ms waiting for {} to save", timeoutMs, name);
+        } catch (Exception e) {
+            SensibleStorage.LOGGER.error("Failed waiting for {} to save", name, e);
+        }
+    }
+}
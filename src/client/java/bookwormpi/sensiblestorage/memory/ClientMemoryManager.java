@@ -1,8 +1,25 @@
 package bookwormpi.sensiblestorage.memory;
 
 import bookwormpi.sensiblestorage.SensibleStorage;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import bookwormpi.sensiblestorage.client.config.SensibleStorageConfig;
+import bookwormpi.sensiblestorage.client.memory.storage.BinaryInput;
+import bookwormpi.sensiblestorage.client.memory.storage.BinaryOutput;
+import bookwormpi.sensiblestorage.client.memory.storage.InMemoryStore;
+import bookwormpi.sensiblestorage.client.memory.storage.JsonStreams;
+import bookwormpi.sensiblestorage.client.memory.storage.MemoryStore;
+import bookwormpi.sensiblestorage.client.memory.storage.Palette;
+import bookwormpi.sensiblestorage.client.memory.storage.RegionShardedStore;
+import bookwormpi.sensiblestorage.client.memory.storage.ShardCodec;
+import bookwormpi.sensiblestorage.client.memory.storage.ShardKey;
+import bookwormpi.sensiblestorage.client.memory.storage.ShardPager;
+import bookwormpi.sensiblestorage.client.memory.storage.SingleFileStore;
+import bookwormpi.sensiblestorage.client.memory.storage.StorageExecutor;
+import bookwormpi.sensiblestorage.client.memory.storage.StoreFiles;
+import bookwormpi.sensiblestorage.client.memory.storage.WriteBehindSaver;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.item.Item;
 import net.minecraft.registry.Registries;
@@ -12,22 +29,51 @@ import net.minecraft.util.math.BlockPos;
 import net.minecraft.world.World;
 
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Client-side memory manager that stores container memory configurations locally
  */
 public class ClientMemoryManager {
-    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
     private static final String MEMORY_FILE_NAME = "storage_sense_memory.json";
+    private static final String SHARD_DIR_NAME = "storage_sense_memory";
+    private static final ShardCodec<ContainerLocation, Map<Integer, MemorySlot>> JSON_CODEC = new JsonShardCodec();
+    private static final ShardCodec<ContainerLocation, Map<Integer, MemorySlot>> BINARY_CODEC = new BinaryShardCodec();
     
-    // Map of container location to slot memories
-    private final Map<ContainerLocation, Map<Integer, MemorySlot>> containerMemories = new HashMap<>();
+    // Binary shard format: magic "SSCM" followed by a format version
+    private static final int BINARY_MAGIC = 0x5353434D;
+    private static final int BINARY_VERSION = 2;
+    
+    // Container location to slot memories, by default sharded by dimension and region on disk and paged with chunks
+    private MemoryStore<ContainerLocation, Map<Integer, MemorySlot>> containerMemories;
+    
+    // Resident containers by dimension index, then packed position, so lookups allocate nothing
+    // Mirrors the store's entries for every region with a loaded chunk; the values are the store's own maps
+    private final Int2ObjectOpenHashMap<Long2ObjectOpenHashMap<Map<Integer, MemorySlot>>> resident =
+        new Int2ObjectOpenHashMap<>();
+    
+    // Store for the world being joined, opened on the IO executor
+    private CompletableFuture<MemoryStore<ContainerLocation, Map<Integer, MemorySlot>>> pendingStore;
+    
+    // Write-behind persistence: edits dirty their shard, flushes rewrite only dirty shards off-thread
+    // Only edits dirty the saver, and edits need an installed store
+    private final WriteBehindSaver<MemoryStore.Flush> saver =
+        new WriteBehindSaver<>("slot memory", () -> containerMemories.snapshotDirty(Map::copyOf), MemoryStore.Flush::write);
     
     private static ClientMemoryManager INSTANCE;
     
@@ -38,43 +84,62 @@ public class ClientMemoryManager {
         return INSTANCE;
     }
     
-    /**
-     * Represents a unique container location in the world
-     */
-    public record ContainerLocation(String dimensionId, BlockPos pos) {
-        public static ContainerLocation of(World world, BlockPos pos) {
-            return new ContainerLocation(world.getRegistryKey().getValue().toString(), pos);
-        }
+    private ClientMemoryManager() {
+        ShardPager.register(this::pageIn, this::pageOut);
     }
     
     /**
-     * JSON-serializable version of memory data
+     * Represents a unique container location in the world: an interned dimension index plus {@link BlockPos#asLong()}
+     * Ordered by dimension ID rather than index, so files are written in the same order every session
      */
-    private static class SerializableMemoryData {
-        Map<String, Map<Integer, SerializableMemorySlot>> containers = new HashMap<>();
+    public record ContainerLocation(int dimension, long packedPos) implements Comparable<ContainerLocation> {
+        private static final Comparator<ContainerLocation> ORDER = Comparator.comparing(ContainerLocation::dimensionId)
+            .thenComparingLong(ContainerLocation::packedPos);
+        
+        public static ContainerLocation of(World world, BlockPos pos) {
+            return new ContainerLocation(DimensionIndex.of(world), pos.asLong());
+        }
         
-        static class SerializableMemorySlot {
-            Set<String> allowedItems = new HashSet<>();
-            boolean isConfigured = false;
+        public static ContainerLocation of(String dimensionId, BlockPos pos) {
+            return new ContainerLocation(DimensionIndex.of(dimensionId), pos.asLong());
+        }
+        
+        public String dimensionId() {
+            return DimensionIndex.id(dimension);
+        }
+        
+        public BlockPos pos() {
+            return BlockPos.fromLong(packedPos);
+        }
+        
+        public ShardKey shard() {
+            return ShardKey.of(dimensionId(), BlockPos.unpackLongX(packedPos), BlockPos.unpackLongZ(packedPos));
+        }
+        
+        @Override
+        public int compareTo(ContainerLocation other) {
+            return ORDER.compare(this, other);
         }
     }
     
     /**
-     * Set memory configuration for a specific slot in a container
+     * Set memory configuration for a specific slot in a container; ignored until the world's store has been installed
      */
     public void setSlotMemory(World world, BlockPos pos, int slotIndex, MemorySlot memory) {
+        if (containerMemories == null) return;
+        
         ContainerLocation location = ContainerLocation.of(world, pos);
-        containerMemories.computeIfAbsent(location, k -> new HashMap<>())
-                        .put(slotIndex, memory);
-        saveMemoryData();
+        Map<Integer, MemorySlot> containerMem = containerMemories.computeIfAbsent(location, k -> new HashMap<>());
+        containerMem.put(slotIndex, memory);
+        index(location, containerMem);
+        markDirty(location);
     }
     
     /**
      * Get memory configuration for a specific slot
      */
     public MemorySlot getSlotMemory(World world, BlockPos pos, int slotIndex) {
-        ContainerLocation location = ContainerLocation.of(world, pos);
-        Map<Integer, MemorySlot> containerMem = containerMemories.get(location);
+        Map<Integer, MemorySlot> containerMem = lookup(world, pos);
         if (containerMem == null) {
             return MemorySlot.EMPTY;
         }
@@ -85,121 +150,539 @@ public class ClientMemoryManager {
      * Check if a container has any memory configurations
      */
     public boolean hasMemoryConfiguration(World world, BlockPos pos) {
-        ContainerLocation location = ContainerLocation.of(world, pos);
-        Map<Integer, MemorySlot> containerMem = containerMemories.get(location);
-        return containerMem != null && !containerMem.isEmpty() && 
-               containerMem.values().stream().anyMatch(MemorySlot::isConfigured);
+        Map<Integer, MemorySlot> containerMem = lookup(world, pos);
+        if (containerMem == null) return false;
+        
+        for (MemorySlot slot : containerMem.values()) {
+            if (slot.isConfigured()) return true;
+        }
+        return false;
     }
     
     /**
      * Clear all memory for a container (when broken, etc.)
      */
     public void clearContainerMemory(World world, BlockPos pos) {
+        if (containerMemories == null) return;
+        
         ContainerLocation location = ContainerLocation.of(world, pos);
-        containerMemories.remove(location);
-        saveMemoryData();
+        if (containerMemories.remove(location) != null) {
+            unindex(location);
+            saver.markDirty();
+        }
+    }
+    
+    /**
+     * Slot memories of a container in a loaded chunk, read from the primitive index without allocating
+     * The index is empty until the world's store has been installed, so early lookups see no memory
+     */
+    private Map<Integer, MemorySlot> lookup(World world, BlockPos pos) {
+        Long2ObjectOpenHashMap<Map<Integer, MemorySlot>> byPos = resident.get(DimensionIndex.of(world));
+        return byPos != null ? byPos.get(pos.asLong()) : null;
+    }
+    
+    private void index(ContainerLocation location, Map<Integer, MemorySlot> containerMem) {
+        resident.computeIfAbsent(location.dimension(), k -> new Long2ObjectOpenHashMap<>()).put(location.packedPos(), containerMem);
+    }
+    
+    private void unindex(ContainerLocation location) {
+        Long2ObjectOpenHashMap<Map<Integer, MemorySlot>> byPos = resident.get(location.dimension());
+        if (byPos != null) {
+            byPos.remove(location.packedPos());
+        }
+    }
+    
+    /**
+     * Positions with slot memory in one chunk; empty until the world's store has been installed
+     */
+    public List<BlockPos> positionsInChunk(String dimensionId, int chunkX, int chunkZ) {
+        if (containerMemories == null) return List.of();
+        
+        int dimension = DimensionIndex.of(dimensionId);
+        List<BlockPos> positions = new ArrayList<>();
+        for (ContainerLocation location : containerMemories.regionKeys(ShardKey.ofChunk(dimensionId, chunkX, chunkZ))) {
+            long packedPos = location.packedPos();
+            if (location.dimension() == dimension
+                    && BlockPos.unpackLongX(packedPos) >> 4 == chunkX && BlockPos.unpackLongZ(packedPos) >> 4 == chunkZ) {
+                positions.add(location.pos());
+            }
+        }
+        return positions;
+    }
+    
+    /**
+     * Whether the joined world's store has been installed, so lookups will not block on the load
+     */
+    public boolean isReady() {
+        return containerMemories != null;
+    }
+    
+    /**
+     * Mark a container as edited and schedule a write-behind save
+     */
+    private void markDirty(ContainerLocation location) {
+        containerMemories.markDirty(location);
+        saver.markDirty();
     }
     
     /**
-     * Load memory data from file
+     * Drive the write-behind saver, called every client tick
+     */
+    public void tick() {
+        saver.tick();
+    }
+    
+    /**
+     * Open the store of the world being joined in the background
      */
     public void loadMemoryData() {
+        unloadMemoryData();
+        
+        Path legacyFile = getMemoryFilePath();
+        CompletableFuture<MemoryStore<ContainerLocation, Map<Integer, MemorySlot>>> opening =
+            CompletableFuture.supplyAsync(() -> openStore(legacyFile), StorageExecutor.IO);
+        pendingStore = opening;
+        opening.whenCompleteAsync((opened, error) -> {
+            if (pendingStore != opening) return;
+            
+            if (error != null) {
+                SensibleStorage.LOGGER.error("Failed to open memory data", error);
+                pendingStore = null;
+            } else {
+                install(opened);
+            }
+        }, MinecraftClient.getInstance());
+    }
+    
+    /**
+     * Flush and release the current world's store (disconnect)
+     */
+    public void unloadMemoryData() {
+        if (pendingStore != null) {
+            awaitPendingStore();
+        }
+        if (containerMemories == null) return;
+        
+        saveMemoryData();
+        containerMemories = null;
+        resident.clear();
+    }
+    
+    /**
+     * Install a store still opening, since it may have migrated legacy data that should reach disk
+     * Waits at most the shutdown flush timeout; an open still running after that is abandoned and its
+     * late completion ignored. Migration writes its shards on the IO thread, so nothing is lost
+     */
+    private void awaitPendingStore() {
+        CompletableFuture<MemoryStore<ContainerLocation, Map<Integer, MemorySlot>>> opening = pendingStore;
+        pendingStore = null;
         try {
-            Path memoryFile = getMemoryFilePath();
-            if (!Files.exists(memoryFile)) {
-                return;
+            install(opening.get(SensibleStorageConfig.get().shutdownFlushTimeoutMs, TimeUnit.MILLISECONDS));
+        } catch (TimeoutException e) {
+            SensibleStorage.LOGGER.warn("Gave up waiting for memory data to open");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            SensibleStorage.LOGGER.error("Failed to open memory data", e.getCause());
+        }
+    }
+    
+    /**
+     * IO thread: open the configured backend; the legacy-json backend is the legacy file itself
+     */
+    private static MemoryStore<ContainerLocation, Map<Integer, MemorySlot>> openStore(Path legacyFile) {
+        switch (SensibleStorageConfig.get().backend()) {
+            case MEMORY -> {
+                return new InMemoryStore<>(ContainerLocation::shard);
+            }
+            case LEGACY_JSON -> {
+                SingleFileStore<ContainerLocation, Map<Integer, MemorySlot>> single =
+                    new SingleFileStore<>(legacyFile, JSON_CODEC, ContainerLocation::shard);
+                try {
+                    if (!single.load()) {
+                        // Switching from the sharded backend: start from everything in the shards
+                        RegionShardedStore<ContainerLocation, Map<Integer, MemorySlot>> shards = openShards(legacyFile);
+                        shards.loadAll();
+                        single.importFrom(shards);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    SensibleStorage.LOGGER.error("Failed to load memory data", e);
+                }
+                return single;
+            }
+            default -> {
+                return openShards(legacyFile);
             }
+        }
+    }
+    
+    /**
+     * IO thread: open the shard directory next to the legacy file, migrating the old single-file store
+     */
+    private static RegionShardedStore<ContainerLocation, Map<Integer, MemorySlot>> openShards(Path legacyFile) {
+        // Shards in the other format are converted to the configured one
+        boolean json = SensibleStorageConfig.get().useJsonStorage();
+        RegionShardedStore<ContainerLocation, Map<Integer, MemorySlot>> opened = new RegionShardedStore<>(
+            legacyFile.resolveSibling(SHARD_DIR_NAME), json ? "json" : "bin", json ? JSON_CODEC : BINARY_CODEC,
+            ContainerLocation::shard);
+        
+        try {
+            opened.migrateShards(json ? "bin" : "json", json ? BINARY_CODEC : JSON_CODEC, Map::copyOf);
+            opened.migrateFrom(legacyFile, JSON_CODEC, Map::copyOf);
+        } catch (IOException e) {
+            SensibleStorage.LOGGER.error("Failed to load memory data", e);
+        }
+        return opened;
+    }
+    
+    /**
+     * Client thread: make an opened store current; only the shards around loaded chunks stay in memory
+     */
+    private void install(MemoryStore<ContainerLocation, Map<Integer, MemorySlot>> opened) {
+        pendingStore = null;
+        containerMemories = opened;
+        resident.clear();
+        
+        for (ShardKey shard : containerMemories.residentShards()) {
+            if (!ShardPager.isReferenced(shard)) {
+                pageOut(shard);
+            }
+        }
+        for (ShardKey shard : ShardPager.referencedShards()) {
+            pageIn(shard);
+        }
+    }
+    
+    /**
+     * A region gained its first loaded chunk: read its shard in the background and index it once it is resident
+     */
+    private void pageIn(ShardKey shard) {
+        if (containerMemories == null) return;
+        
+        MemoryStore<ContainerLocation, Map<Integer, MemorySlot>> paging = containerMemories;
+        paging.loadShardAsync(shard, MinecraftClient.getInstance()).thenRun(() -> {
+            if (containerMemories != paging) return;
             
-            String json = Files.readString(memoryFile);
-            SerializableMemoryData data = GSON.fromJson(json, SerializableMemoryData.class);
+            // The region's last chunk may have unloaded again while it was being read
+            if (!ShardPager.isReferenced(shard)) {
+                pageOut(shard);
+                return;
+            }
+            // Slot memory shards have no index, so a resident shard has every entry decoded and this reads nothing
+            paging.scanRegion(shard).forEach(this::index);
+        });
+    }
+    
+    /**
+     * A region lost its last loaded chunk: drop its shard, writing unsaved edits in the background
+     * A shard that was never paged in has nothing indexed, and listing its keys would read it from disk
+     */
+    private void pageOut(ShardKey shard) {
+        if (containerMemories == null || !containerMemories.isResident(shard)) return;
+        
+        containerMemories.regionKeys(shard).forEach(this::unindex);
+        MemoryStore.Flush snapshot = containerMemories.evictShard(shard, Map::copyOf);
+        if (snapshot == null) return;
+        
+        // If the write fails the edits would go with the snapshot, so the store takes them back and saves them again
+        MemoryStore<ContainerLocation, Map<Integer, MemorySlot>> evicted = containerMemories;
+        CompletableFuture.runAsync(snapshot::write, StorageExecutor.IO).thenRunAsync(() -> {
+            if (snapshot.isComplete() || containerMemories != evicted) return;
             
-            containerMemories.clear();
-            for (Map.Entry<String, Map<Integer, SerializableMemoryData.SerializableMemorySlot>> containerEntry : data.containers.entrySet()) {
-                String[] parts = containerEntry.getKey().split("@");
-                if (parts.length != 2) continue;
+            evicted.restore(snapshot);
+            if (ShardPager.isReferenced(shard)) {
+                evicted.scanRegion(shard).forEach(this::index);
+            }
+            saver.markDirty();
+        }, MinecraftClient.getInstance());
+    }
+    
+    /**
+     * Save memory data to file now, waiting a bounded time for the write to finish
+     */
+    public void saveMemoryData() {
+        saver.flushBlocking(SensibleStorageConfig.get().shutdownFlushTimeoutMs);
+    }
+    
+    /**
+     * Statistics for the stats command
+     */
+    public String getStats() {
+        if (containerMemories == null) return "no world loaded";
+        
+        return String.format("%d slot configurations loaded from %d shards (%s)",
+            containerMemories.size(), containerMemories.shardCount(), containerMemories.stats().describe());
+    }
+    
+    /**
+     * Compact binary shard format
+     *
+     * Layout: magic, version, an item id palette, a dimension palette, then per container
+     * its dimension index, zigzag-varint position and configured slots, with allowed items
+     * stored as palette indices instead of repeated id strings.
+     *
+     * Version 2 has the same layout; it only marks files written since checkpoints, which
+     * always end in a checksum trailer. Version 1 files may lack it.
+     */
+    private static class BinaryShardCodec implements ShardCodec<ContainerLocation, Map<Integer, MemorySlot>> {
+        @Override
+        public boolean requiresTrailer(Path file) throws IOException {
+            try (ReadableByteChannel channel = StoreFiles.openRead(file)) {
+                BinaryInput in = new BinaryInput(channel);
+                return in.readInt() == BINARY_MAGIC && in.readVarInt() >= 2;
+            }
+        }
+        
+        @Override
+        public Map<ContainerLocation, Map<Integer, MemorySlot>> read(Path file) throws IOException {
+            try (ReadableByteChannel channel = StoreFiles.openRead(file)) {
+                BinaryInput in = new BinaryInput(channel);
+                if (in.readInt() != BINARY_MAGIC) {
+                    throw new IOException("Not a slot memory shard: " + file);
+                }
+                int version = in.readVarInt();
+                if (version < 1 || version > BINARY_VERSION) {
+                    throw new IOException("Unsupported slot memory shard version " + version);
+                }
                 
-                String dimensionId = parts[0];
-                String[] posParts = parts[1].split(",");
-                if (posParts.length != 3) continue;
+                Item[] items = new Item[in.readCount(1 << 20)];
+                for (int i = 0; i < items.length; i++) {
+                    Identifier id = Identifier.tryParse(in.readString());
+                    items[i] = id != null && Registries.ITEM.containsId(id) ? Registries.ITEM.get(id) : null;
+                }
+                int[] dimensions = new int[in.readCount(1 << 16)];
+                for (int i = 0; i < dimensions.length; i++) {
+                    dimensions[i] = DimensionIndex.of(in.readString());
+                }
                 
-                try {
-                    BlockPos pos = new BlockPos(
-                        Integer.parseInt(posParts[0]),
-                        Integer.parseInt(posParts[1]),
-                        Integer.parseInt(posParts[2])
-                    );
-                    ContainerLocation location = new ContainerLocation(dimensionId, pos);
+                int containerCount = in.readCount(Integer.MAX_VALUE);
+                Map<ContainerLocation, Map<Integer, MemorySlot>> containers = new HashMap<>();
+                for (int c = 0; c < containerCount; c++) {
+                    int dimensionIndex = in.readVarInt();
+                    if (dimensionIndex >= dimensions.length) {
+                        throw new IOException("Corrupt dimension index " + dimensionIndex);
+                    }
+                    long packedPos = BlockPos.asLong(in.readSignedVarInt(), in.readSignedVarInt(), in.readSignedVarInt());
                     
+                    int slotCount = in.readCount(1 << 16);
                     Map<Integer, MemorySlot> slotMemories = new HashMap<>();
-                    for (Map.Entry<Integer, SerializableMemoryData.SerializableMemorySlot> slotEntry : containerEntry.getValue().entrySet()) {
-                        SerializableMemoryData.SerializableMemorySlot serialSlot = slotEntry.getValue();
+                    for (int s = 0; s < slotCount; s++) {
+                        int slotIndex = in.readVarInt();
+                        boolean configured = in.readBoolean();
+                        int itemCount = in.readCount(items.length);
                         
                         Set<Item> allowedItems = new HashSet<>();
-                        for (String itemId : serialSlot.allowedItems) {
-                            Item item = Registries.ITEM.get(Identifier.of(itemId));
-                            if (item != null) {
-                                allowedItems.add(item);
+                        for (int i = 0; i < itemCount; i++) {
+                            int paletteIndex = in.readVarInt();
+                            if (paletteIndex >= items.length) {
+                                throw new IOException("Corrupt item index " + paletteIndex);
+                            }
+                            if (items[paletteIndex] != null) {
+                                allowedItems.add(items[paletteIndex]);
                             }
                         }
-                        
-                        MemorySlot memorySlot = new MemorySlot(allowedItems, serialSlot.isConfigured);
-                        slotMemories.put(slotEntry.getKey(), memorySlot);
+                        slotMemories.put(slotIndex, new MemorySlot(allowedItems, configured));
                     }
                     
-                    containerMemories.put(location, slotMemories);
-                } catch (NumberFormatException e) {
-                    SensibleStorage.LOGGER.warn("Failed to parse container position: " + containerEntry.getKey());
+                    containers.put(new ContainerLocation(dimensions[dimensionIndex], packedPos), slotMemories);
+                }
+                return containers;
+            }
+        }
+        
+        @Override
+        public void write(Map<ContainerLocation, Map<Integer, MemorySlot>> unsorted, Path file) throws IOException {
+            // Sorted containers, slots and items, so unchanged memory rewrites to identical bytes
+            Map<ContainerLocation, Map<Integer, MemorySlot>> containers = new TreeMap<>(unsorted);
+            Palette<String> items = new Palette<>();
+            Palette<String> dimensions = new Palette<>();
+            for (Map.Entry<ContainerLocation, Map<Integer, MemorySlot>> entry : containers.entrySet()) {
+                dimensions.indexOf(entry.getKey().dimensionId());
+                for (MemorySlot slot : new TreeMap<>(entry.getValue()).values()) {
+                    for (String itemId : sortedItemIds(slot)) {
+                        items.indexOf(itemId);
+                    }
                 }
             }
             
-            SensibleStorage.LOGGER.info("Loaded memory configurations for {} containers", containerMemories.size());
-        } catch (IOException e) {
-            SensibleStorage.LOGGER.error("Failed to load memory data", e);
+            try (WritableByteChannel channel = StoreFiles.openWrite(file, SensibleStorageConfig.get().compressStorage)) {
+                BinaryOutput out = new BinaryOutput(channel);
+                out.writeInt(BINARY_MAGIC);
+                out.writeVarInt(BINARY_VERSION);
+                
+                out.writeVarInt(items.size());
+                for (String itemId : items.entries()) {
+                    out.writeString(itemId);
+                }
+                out.writeVarInt(dimensions.size());
+                for (String dimension : dimensions.entries()) {
+                    out.writeString(dimension);
+                }
+                
+                out.writeVarInt(containers.size());
+                for (Map.Entry<ContainerLocation, Map<Integer, MemorySlot>> entry : containers.entrySet()) {
+                    ContainerLocation location = entry.getKey();
+                    out.writeVarInt(dimensions.indexOf(location.dimensionId()));
+                    out.writeSignedVarInt(BlockPos.unpackLongX(location.packedPos()));
+                    out.writeSignedVarInt(BlockPos.unpackLongY(location.packedPos()));
+                    out.writeSignedVarInt(BlockPos.unpackLongZ(location.packedPos()));
+                    
+                    Map<Integer, MemorySlot> slots = new TreeMap<>(entry.getValue());
+                    out.writeVarInt(slots.size());
+                    for (Map.Entry<Integer, MemorySlot> slotEntry : slots.entrySet()) {
+                        MemorySlot slot = slotEntry.getValue();
+                        out.writeVarInt(slotEntry.getKey());
+                        out.writeBoolean(slot.isConfigured());
+                        List<String> itemIds = sortedItemIds(slot);
+                        out.writeVarInt(itemIds.size());
+                        for (String itemId : itemIds) {
+                            out.writeVarInt(items.indexOf(itemId));
+                        }
+                    }
+                }
+                out.flush();
+            }
         }
     }
     
     /**
-     * Save memory data to file
+     * JSON shard format, identical to the old single-file layout so it can also read that file
+     * Streamed one container at a time, so peak heap does not grow with the file size
      */
-    public void saveMemoryData() {
-        try {
-            SerializableMemoryData data = new SerializableMemoryData();
-            
-            for (Map.Entry<ContainerLocation, Map<Integer, MemorySlot>> containerEntry : containerMemories.entrySet()) {
-                ContainerLocation location = containerEntry.getKey();
-                String locationKey = location.dimensionId() + "@" + 
-                                   location.pos().getX() + "," + 
-                                   location.pos().getY() + "," + 
-                                   location.pos().getZ();
-                
-                Map<Integer, SerializableMemoryData.SerializableMemorySlot> serialSlots = new HashMap<>();
-                for (Map.Entry<Integer, MemorySlot> slotEntry : containerEntry.getValue().entrySet()) {
-                    MemorySlot slot = slotEntry.getValue();
-                    SerializableMemoryData.SerializableMemorySlot serialSlot = new SerializableMemoryData.SerializableMemorySlot();
-                    serialSlot.isConfigured = slot.isConfigured();
+    private static class JsonShardCodec implements ShardCodec<ContainerLocation, Map<Integer, MemorySlot>> {
+        @Override
+        public Map<ContainerLocation, Map<Integer, MemorySlot>> read(Path file) throws IOException {
+            Map<ContainerLocation, Map<Integer, MemorySlot>> containers = new HashMap<>();
+            try (JsonReader reader = JsonStreams.reader(file)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (!reader.nextName().equals("containers")) {
+                        reader.skipValue();
+                        continue;
+                    }
                     
-                    for (Item item : slot.allowedItems()) {
-                        Identifier id = Registries.ITEM.getId(item);
-                        serialSlot.allowedItems.add(id.toString());
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String locationKey = reader.nextName();
+                        Map<Integer, MemorySlot> slotMemories = readSlotMemories(reader);
+                        ContainerLocation location = parseLocation(locationKey);
+                        if (location != null) {
+                            containers.put(location, slotMemories);
+                        }
                     }
+                    reader.endObject();
+                }
+                reader.endObject();
+            }
+            return containers;
+        }
+        
+        @Override
+        public void write(Map<ContainerLocation, Map<Integer, MemorySlot>> containers, Path file) throws IOException {
+            try (JsonWriter writer = JsonStreams.writer(file, SensibleStorageConfig.get().compressStorage)) {
+                writer.beginObject();
+                writer.name("containers").beginObject();
+                // Sorted like the binary format, so unchanged memory rewrites to identical bytes
+                for (Map.Entry<ContainerLocation, Map<Integer, MemorySlot>> containerEntry : new TreeMap<>(containers).entrySet()) {
+                    ContainerLocation location = containerEntry.getKey();
+                    writer.name(location.dimensionId() + "@" + 
+                               BlockPos.unpackLongX(location.packedPos()) + "," + 
+                               BlockPos.unpackLongY(location.packedPos()) + "," + 
+                               BlockPos.unpackLongZ(location.packedPos()));
                     
-                    serialSlots.put(slotEntry.getKey(), serialSlot);
+                    writer.beginObject();
+                    for (Map.Entry<Integer, MemorySlot> slotEntry : new TreeMap<>(containerEntry.getValue()).entrySet()) {
+                        MemorySlot slot = slotEntry.getValue();
+                        writer.name(String.valueOf(slotEntry.getKey())).beginObject();
+                        writer.name("allowedItems").beginArray();
+                        for (String itemId : sortedItemIds(slot)) {
+                            writer.value(itemId);
+                        }
+                        writer.endArray();
+                        writer.name("isConfigured").value(slot.isConfigured());
+                        writer.endObject();
+                    }
+                    writer.endObject();
+                }
+                writer.endObject();
+                writer.endObject();
+            }
+        }
+        
+        /**
+         * Read one container's slot map ({"slot": {"allowedItems": [...], "isConfigured": bool}})
+         */
+        private static Map<Integer, MemorySlot> readSlotMemories(JsonReader reader) throws IOException {
+            Map<Integer, MemorySlot> slotMemories = new HashMap<>();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                int slotIndex = Integer.parseInt(reader.nextName());
+                Set<Item> allowedItems = new HashSet<>();
+                boolean isConfigured = false;
+                
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.nextName()) {
+                        case "allowedItems" -> {
+                            reader.beginArray();
+                            while (reader.hasNext()) {
+                                Identifier id = Identifier.tryParse(reader.nextString());
+                                if (id != null && Registries.ITEM.containsId(id)) {
+                                    allowedItems.add(Registries.ITEM.get(id));
+                                }
+                            }
+                            reader.endArray();
+                        }
+                        case "isConfigured" -> isConfigured = reader.nextBoolean();
+                        default -> reader.skipValue();
+                    }
                 }
+                reader.endObject();
                 
-                data.containers.put(locationKey, serialSlots);
+                slotMemories.put(slotIndex, new MemorySlot(allowedItems, isConfigured));
             }
+            reader.endObject();
+            return slotMemories;
+        }
+        
+        /**
+         * Parse a "dimension@x,y,z" key, or null if it is malformed
+         */
+        private static ContainerLocation parseLocation(String locationKey) {
+            String[] parts = locationKey.split("@");
+            if (parts.length != 2) return null;
             
-            Path memoryFile = getMemoryFilePath();
-            Files.createDirectories(memoryFile.getParent());
-            Files.writeString(memoryFile, GSON.toJson(data));
+            String[] posParts = parts[1].split(",");
+            if (posParts.length != 3) return null;
             
-        } catch (IOException e) {
-            SensibleStorage.LOGGER.error("Failed to save memory data", e);
+            try {
+                BlockPos pos = new BlockPos(
+                    Integer.parseInt(posParts[0]),
+                    Integer.parseInt(posParts[1]),
+                    Integer.parseInt(posParts[2])
+                );
+                return ContainerLocation.of(parts[0], pos);
+            } catch (NumberFormatException e) {
+                SensibleStorage.LOGGER.warn("Failed to parse container position: " + locationKey);
+                return null;
+            }
+        }
+    }
+    
+    /**
+     * IDs of a slot's allowed items in a stable order; the set itself iterates in identity hash order
+     */
+    private static List<String> sortedItemIds(MemorySlot slot) {
+        List<String> itemIds = new ArrayList<>(slot.allowedItems().size());
+        for (Item item : slot.allowedItems()) {
+            itemIds.add(Registries.ITEM.getId(item).toString());
         }
+        Collections.sort(itemIds);
+        return itemIds;
     }
     
     /**
-     * Get the path to the memory data file
+     * Get the path to the legacy single-file memory data; shards live in a sibling directory
      */
     private Path getMemoryFilePath() {
         MinecraftClient client = MinecraftClient.getInstance();
@@ -0,0 +1,55 @@
+package bookwormpi.sensiblestorage.memory;
+
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import net.minecraft.registry.RegistryKey;
+import net.minecraft.world.World;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Interns dimension IDs to small indices, so container keys and slot memory locations hold an int instead of a string
+ *
+ * Indices only live for the session; shard files keep writing the dimension ID itself.
+ * Codecs intern from the IO and codec threads, so interning is synchronized, while the
+ * per-lookup paths only read a published array or a client-thread identity map.
+ */
+public final class DimensionIndex {
+    private static final Object2IntOpenHashMap<String> indices = new Object2IntOpenHashMap<>();
+    private static volatile String[] ids = new String[0];
+    
+    // Client thread: registry keys are interned, so a world's key maps straight to its index
+    private static final Map<RegistryKey<World>, Integer> byWorldKey = new IdentityHashMap<>();
+    
+    private DimensionIndex() {
+    }
+    
+    /**
+     * Index of a world's dimension, without building its ID string after the first call
+     */
+    public static int of(World world) {
+        Integer index = byWorldKey.get(world.getRegistryKey());
+        if (index == null) {
+            index = of(world.getRegistryKey().getValue().toString());
+            byWorldKey.put(world.getRegistryKey(), index);
+        }
+        return index;
+    }
+    
+    public static synchronized int of(String dimensionId) {
+        int index = indices.getOrDefault(dimensionId, -1);
+        if (index < 0) {
+            index = ids.length;
+            indices.put(dimensionId, index);
+            String[] grown = Arrays.copyOf(ids, index + 1);
+            grown[index] = dimensionId;
+            ids = grown;
+        }
+        return index;
+    }
+    
+    public static String id(int index) {
+        return ids[index];
+    }
+}
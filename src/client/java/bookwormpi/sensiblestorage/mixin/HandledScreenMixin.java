@@ -1,9 +1,14 @@
 package bookwormpi.sensiblestorage.mixin;
 
+import bookwormpi.sensiblestorage.client.config.SensibleStorageConfig;
 import bookwormpi.sensiblestorage.client.container.ContainerTracker;
+import bookwormpi.sensiblestorage.client.gui.GhostRenderPlan;
 import bookwormpi.sensiblestorage.client.gui.MemoryConfigScreen;
 import bookwormpi.sensiblestorage.client.gui.widget.SBStyleMemoryButton;
+import bookwormpi.sensiblestorage.client.memory.ContainerKey;
 import bookwormpi.sensiblestorage.client.memory.EnhancedSBStyleMemoryManager;
+import bookwormpi.sensiblestorage.client.memory.MemoryContext;
+import bookwormpi.sensiblestorage.client.memory.TemplateRouting;
 import net.minecraft.block.entity.BlockEntity;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.gui.DrawContext;
@@ -33,12 +38,13 @@ public abstract class HandledScreenMixin {
     @Shadow protected int backgroundWidth;
     @Shadow protected int backgroundHeight;
     
-    private String sensiblestorage$containerId = null;
+    private MemoryContext sensiblestorage$memoryContext = null;
     private boolean sensiblestorage$isContainerScreen = false;
     private BlockPos sensiblestorage$containerPos = null;
     private long sensiblestorage$lastClickTime = 0;
     private long sensiblestorage$lastButtonClickTime = 0;
     private SBStyleMemoryButton sensiblestorage$memoryButton = null;
+    private GhostRenderPlan sensiblestorage$ghostPlan = null;
     
     @Inject(method = "init()V", at = @At("TAIL"))
     private void sensiblestorage$onContainerScreenInit(CallbackInfo ci) {
@@ -50,25 +56,30 @@ public abstract class HandledScreenMixin {
             sensiblestorage$isContainerScreen = isContainerScreen(screen);
             
             if (sensiblestorage$isContainerScreen) {
-                // Initialize enhanced memory manager
+                // Initialize enhanced memory manager; templates load in the background on world join,
+                // and until they are ready this screen just shows no ghosts instead of waiting
                 EnhancedSBStyleMemoryManager.init();
                 
                 // Find container position for persistent memory
                 sensiblestorage$containerPos = findNearestContainer(client);
                 
-                // Create container ID (persistent if position found, session-based otherwise)
-                sensiblestorage$containerId = EnhancedSBStyleMemoryManager.createContainerId(
-                    screen.getClass().getSimpleName(), handler.syncId, sensiblestorage$containerPos);
-                
-                // Initialize memory templates
-                int containerSlots = Math.max(0, handler.slots.size() - 36);
-                EnhancedSBStyleMemoryManager.getMemoryTemplates(sensiblestorage$containerId, containerSlots);
+                // Resolve the container's memory once and attach it to the handler for slot checks;
+                // init runs again on resize, which keeps the context already attached
+                sensiblestorage$memoryContext = MemoryContext.of(handler);
+                if (sensiblestorage$memoryContext == null) {
+                    // Create container ID (persistent if position found, session-based otherwise)
+                    ContainerKey containerId = EnhancedSBStyleMemoryManager.createContainerId(
+                        screen.getClass().getSimpleName(), handler.syncId, sensiblestorage$containerPos);
+                    sensiblestorage$memoryContext = new MemoryContext(containerId, Math.max(0, handler.slots.size() - 36));
+                    sensiblestorage$memoryContext.pin();
+                    MemoryContext.attach(handler, sensiblestorage$memoryContext);
+                }
+                sensiblestorage$ghostPlan = new GhostRenderPlan(sensiblestorage$memoryContext);
                 
                 // Create SB-style memory button
                 int memoryButtonX = x + backgroundWidth + 4;
                 int memoryButtonY = y + 20;
-                sensiblestorage$memoryButton = new SBStyleMemoryButton(
-                    memoryButtonX, memoryButtonY, client.world, sensiblestorage$containerPos, screen);
+                sensiblestorage$memoryButton = new SBStyleMemoryButton(memoryButtonX, memoryButtonY, screen);
             }
             
             // Original container tracking
@@ -87,8 +98,12 @@ public abstract class HandledScreenMixin {
         ContainerTracker.unregisterContainer(screen.getScreenHandler());
         
         // Enhanced SB-style cleanup: remove or persist memory when screen closes
-        if (sensiblestorage$containerId != null) {
-            EnhancedSBStyleMemoryManager.removeContainer(sensiblestorage$containerId);
+        if (sensiblestorage$memoryContext != null) {
+            EnhancedSBStyleMemoryManager.removeContainer(sensiblestorage$memoryContext.key());
+            sensiblestorage$memoryContext.release();
+            MemoryContext.attach(handler, null);
+            sensiblestorage$memoryContext = null;
+            sensiblestorage$ghostPlan = null;
         }
     }
     
@@ -167,12 +182,22 @@ public abstract class HandledScreenMixin {
                blockEntity instanceof net.minecraft.block.entity.DropperBlockEntity;
     }
     
+    /**
+     * Bring the ghost render plan up to date once per frame, before the slots are drawn
+     */
+    @Inject(method = "render(Lnet/minecraft/client/gui/DrawContext;IIF)V", at = @At("HEAD"))
+    private void sensiblestorage$refreshGhostPlan(DrawContext context, int mouseX, int mouseY, float delta, CallbackInfo ci) {
+        if (sensiblestorage$ghostPlan != null) {
+            sensiblestorage$ghostPlan.refresh(handler);
+        }
+    }
+    
     /**
      * Render SB-style memory button and other controls
      */
     @Inject(method = "render(Lnet/minecraft/client/gui/DrawContext;IIF)V", at = @At("TAIL"))
     private void sensiblestorage$renderMemoryButtons(DrawContext context, int mouseX, int mouseY, float delta, CallbackInfo ci) {
-        if (!sensiblestorage$isContainerScreen || sensiblestorage$containerId == null) return;
+        if (!sensiblestorage$isContainerScreen || sensiblestorage$memoryContext == null) return;
         
         // Render SB-style memory button
         if (sensiblestorage$memoryButton != null) {
@@ -195,7 +220,7 @@ public abstract class HandledScreenMixin {
      */
     @Inject(method = "mouseClicked(DDI)Z", at = @At("HEAD"), cancellable = true)
     private void sensiblestorage$handleMemoryButtonClicks(double mouseX, double mouseY, int button, CallbackInfoReturnable<Boolean> cir) {
-        if (!sensiblestorage$isContainerScreen || sensiblestorage$containerId == null) return;
+        if (!sensiblestorage$isContainerScreen || sensiblestorage$memoryContext == null) return;
         
         // Debounce button clicks to prevent rapid toggling when holding down mouse
         long currentTime = System.currentTimeMillis();
@@ -227,7 +252,7 @@ public abstract class HandledScreenMixin {
             sensiblestorage$lastButtonClickTime = currentTime;
             
             // SB-style memory clear
-            EnhancedSBStyleMemoryManager.clearMemory(sensiblestorage$containerId);
+            sensiblestorage$memoryContext.clear();
             cir.setReturnValue(true);
             return;
         }
@@ -241,34 +266,31 @@ public abstract class HandledScreenMixin {
      */
     @Inject(method = "drawSlot(Lnet/minecraft/client/gui/DrawContext;Lnet/minecraft/screen/slot/Slot;)V", at = @At("TAIL"))
     private void sensiblestorage$renderGhostItems(DrawContext context, Slot slot, CallbackInfo ci) {
-        if (!sensiblestorage$isContainerScreen || sensiblestorage$containerId == null) return;
-        
-        // Only render for container slots (not player inventory)
-        int slotIndex = handler.slots.indexOf(slot);
-        int containerSlots = Math.max(0, handler.slots.size() - 36);
-        if (slotIndex < 0 || slotIndex >= containerSlots) return;
+        if (!sensiblestorage$isContainerScreen || sensiblestorage$ghostPlan == null) return;
         
-        boolean memorizeMode = EnhancedSBStyleMemoryManager.isMemorizeMode(sensiblestorage$containerId);
-        
-        // Render ghost items like SophisticatedCore
-        if (slot.getStack().isEmpty()) {
-            ItemStack template = EnhancedSBStyleMemoryManager.getTemplate(sensiblestorage$containerId, slotIndex, containerSlots);
-            if (!template.isEmpty()) {
-                // Render the template item
-                context.drawItem(template, slot.x, slot.y);
-                
-                // Add a semi-transparent overlay to create the ghost effect
-                sensiblestorage$drawStackOverlay(context, slot.x, slot.y);
+        if (SensibleStorageConfig.get().batchGhostLayer) {
+            // Container slots are drawn first, so after the last one the whole layer goes down in one pass
+            if (sensiblestorage$ghostPlan.isLastDrawnSlot(slot.id)) {
+                sensiblestorage$ghostPlan.drawLayer(context, handler);
             }
+            return;
         }
         
-        // In memorize mode, highlight empty slots that can receive templates
-        if (memorizeMode && slot.getStack().isEmpty()) {
-            ItemStack template = EnhancedSBStyleMemoryManager.getTemplate(sensiblestorage$containerId, slotIndex, containerSlots);
-            if (template.isEmpty()) {
-                // Highlight empty slots that can receive memory templates
-                context.fill(slot.x, slot.y, slot.x + 16, slot.y + 16, 0x4000FF00); // Green highlight
-            }
+        // The plan only covers container slots (not player inventory); a slot's id is its index in the handler
+        ItemStack template = sensiblestorage$ghostPlan.ghost(slot.id);
+        if (template == null && !sensiblestorage$ghostPlan.highlights(slot.id)) return;
+        if (!slot.getStack().isEmpty()) return;
+        
+        // Render ghost items like SophisticatedCore
+        if (template != null) {
+            // Render the template item
+            context.drawItem(template, slot.x, slot.y);
+            
+            // Add a semi-transparent overlay to create the ghost effect
+            sensiblestorage$drawStackOverlay(context, slot.x, slot.y);
+        } else {
+            // In memorize mode, highlight empty slots that can receive memory templates
+            context.fill(slot.x, slot.y, slot.x + 16, slot.y + 16, GhostRenderPlan.MEMORIZE_HIGHLIGHT);
         }
     }
     
@@ -279,7 +301,7 @@ public abstract class HandledScreenMixin {
     private void sensiblestorage$drawStackOverlay(DrawContext context, int x, int y) {
         // Create a semi-transparent white overlay to give the ghost effect
         // This matches how SophisticatedCore renders ghost items
-        context.fill(x, y, x + 16, y + 16, 0x80FFFFFF); // 50% transparent white
+        context.fill(x, y, x + 16, y + 16, GhostRenderPlan.GHOST_OVERLAY);
     }
     
     /**
@@ -299,14 +321,22 @@ public abstract class HandledScreenMixin {
      */
     @Inject(method = "onMouseClick(Lnet/minecraft/screen/slot/Slot;IILnet/minecraft/screen/slot/SlotActionType;)V", at = @At("HEAD"), cancellable = true)
     private void sensiblestorage$handleSlotClick(net.minecraft.screen.slot.Slot slot, int slotId, int button, net.minecraft.screen.slot.SlotActionType actionType, CallbackInfo ci) {
-        if (!sensiblestorage$isContainerScreen || sensiblestorage$containerId == null) return;
+        if (!sensiblestorage$isContainerScreen || sensiblestorage$memoryContext == null) return;
         
-        // Only handle container slots, not player inventory
-        int slotIndex = handler.slots.indexOf(slot);
-        int containerSlots = Math.max(0, handler.slots.size() - 36);
-        if (slotIndex < 0 || slotIndex >= containerSlots) return;
+        // Clicks outside the window have no slot
+        int slotIndex = slot != null ? slot.id : -1;
+        int containerSlots = sensiblestorage$memoryContext.containerSlots();
+        if (slotIndex < 0) return;
+        
+        // Player inventory slots are only handled when shift-clicking into the container
+        if (slotIndex >= containerSlots) {
+            if (actionType == net.minecraft.screen.slot.SlotActionType.QUICK_MOVE) {
+                sensiblestorage$routeQuickMove(slot, ci);
+            }
+            return;
+        }
         
-        boolean isMemorizeMode = EnhancedSBStyleMemoryManager.isMemorizeMode(sensiblestorage$containerId);
+        boolean isMemorizeMode = sensiblestorage$memoryContext.isMemorizeMode();
         
         if (isMemorizeMode) {
             // Handle memorize mode - setting memory templates
@@ -364,9 +394,9 @@ public abstract class HandledScreenMixin {
         
         // Set the memory template
         if (button == 0) { // Left click sets template
-            EnhancedSBStyleMemoryManager.setTemplate(sensiblestorage$containerId, slotIndex, templateItem, containerSlots);
+            sensiblestorage$memoryContext.setTemplate(slotIndex, templateItem);
         } else if (button == 1) { // Right click clears template
-            EnhancedSBStyleMemoryManager.setTemplate(sensiblestorage$containerId, slotIndex, ItemStack.EMPTY, containerSlots);
+            sensiblestorage$memoryContext.setTemplate(slotIndex, ItemStack.EMPTY);
         }
 
         // Cancel the normal slot action to prevent item movement
@@ -378,7 +408,7 @@ public abstract class HandledScreenMixin {
      */
     private void sensiblestorage$handleSlotFiltering(net.minecraft.screen.slot.Slot slot, int slotIndex, int button, net.minecraft.screen.slot.SlotActionType actionType, int containerSlots, CallbackInfo ci) {
         // Get the memory template for this slot
-        ItemStack template = EnhancedSBStyleMemoryManager.getTemplate(sensiblestorage$containerId, slotIndex, containerSlots);
+        ItemStack template = sensiblestorage$memoryContext.template(slotIndex);
         if (template.isEmpty()) return; // No template set, allow any item
         
         MinecraftClient client = MinecraftClient.getInstance();
@@ -398,8 +428,8 @@ public abstract class HandledScreenMixin {
                 break;
                 
             case QUICK_MOVE:
-                // Shift-clicking - need to handle this properly
-                sensiblestorage$handleShiftClickFiltering(slot, slotIndex, containerSlots, ci);
+                // Shift-clicking out of the container is always allowed (taking items out);
+                // shift-clicks into it are routed by sensiblestorage$routeQuickMove
                 return;
                 
             case SWAP:
@@ -437,46 +467,118 @@ public abstract class HandledScreenMixin {
     }
     
     /**
-     * Handle shift-click filtering specifically
-     * This is more complex because we need to determine which slots the item will go to
+     * Route a shift-click from the player inventory into the container (the routeShiftClicks option)
+     * The vanilla shift-click runs unchanged unless it would put part of the stack into a slot whose
+     * template the item does not match. Only then does the stack go into the slots reserved for its
+     * template first and then into slots without a template, placed with ordinary slot clicks so the
+     * server, which knows nothing of templates, ends up agreeing
      */
-    private void sensiblestorage$handleShiftClickFiltering(Slot slot, int slotIndex, int containerSlots, CallbackInfo ci) {
+    private void sensiblestorage$routeQuickMove(Slot source, CallbackInfo ci) {
+        if (!SensibleStorageConfig.get().routeShiftClicks) return;
+        
         MinecraftClient client = MinecraftClient.getInstance();
-        if (client.player == null) return;
+        if (client.player == null || client.interactionManager == null) return;
         
-        ItemStack stackToMove = slot.getStack();
-        if (stackToMove.isEmpty()) return;
+        TemplateRouting routing = sensiblestorage$memoryContext.routing();
+        ItemStack stackToMove = source.getStack();
+        if (!routing.hasTemplates() || stackToMove.isEmpty()) return;
         
-        // Determine if we're moving FROM container TO inventory or FROM inventory TO container
-        boolean isContainerSlot = slotIndex >= 0 && slotIndex < containerSlots;
+        // Routing goes through the cursor, so while holding something the vanilla shift-click runs instead
+        if (!handler.getCursorStack().isEmpty()) return;
         
-        if (isContainerSlot) {
-            // Moving FROM container TO inventory - this is always allowed (taking items out)
-            return;
-        } else {
-            // Moving FROM inventory TO container - need to check where it will go
-            // We need to simulate where the item would go and check if those slots allow it
-            
-            // Find potential destination slots in the container
-            for (int destSlotIndex = 0; destSlotIndex < containerSlots; destSlotIndex++) {
-                Slot destSlot = handler.getSlot(destSlotIndex);
-                ItemStack destStack = destSlot.getStack();
+        if (!sensiblestorage$quickMoveHitsOtherTemplate(stackToMove)) return;
+        ci.cancel();
+        
+        int[] reserved = routing.slotsFor(stackToMove);
+        int[] untemplated = routing.untemplatedSlots();
+        if (!sensiblestorage$hasRoom(reserved, stackToMove) && !sensiblestorage$hasRoom(untemplated, stackToMove)) return;
+        
+        sensiblestorage$clickSlot(client, source.id);
+        sensiblestorage$placeCursorStack(client, reserved);
+        sensiblestorage$placeCursorStack(client, untemplated);
+        
+        // Whatever did not fit goes back where it came from
+        if (!handler.getCursorStack().isEmpty()) {
+            sensiblestorage$clickSlot(client, source.id);
+        }
+    }
+    
+    /**
+     * Whether the vanilla shift-click of the stack into the container would put any of it into a slot
+     * whose template it does not match
+     * Follows ScreenHandler.insertItem: topping up equal stacks in slot order, then the first empty slot that accepts it
+     */
+    private boolean sensiblestorage$quickMoveHitsOtherTemplate(ItemStack stack) {
+        int containerSlots = sensiblestorage$memoryContext.containerSlots();
+        int remaining = stack.getCount();
+        
+        if (stack.isStackable()) {
+            for (int slotId = 0; slotId < containerSlots && remaining > 0; slotId++) {
+                Slot slot = handler.getSlot(slotId);
+                ItemStack inSlot = slot.getStack();
+                if (inSlot.isEmpty() || !ItemStack.areItemsAndComponentsEqual(inSlot, stack)) continue;
                 
-                // Check if this slot could accept some of the items
-                if (destStack.isEmpty() || ItemStack.areItemsAndComponentsEqual(destStack, stackToMove)) {
-                    // This slot is a potential destination
-                    ItemStack template = EnhancedSBStyleMemoryManager.getTemplate(sensiblestorage$containerId, destSlotIndex, containerSlots);
-                    
-                    if (!template.isEmpty() && !EnhancedSBStyleMemoryManager.itemMatchesTemplate(template, stackToMove)) {
-                        // Template exists and item doesn't match - block the shift-click
-                        ci.cancel();
-                        return;
-                    }
+                int room = slot.getMaxItemCount(inSlot) - inSlot.getCount();
+                if (room <= 0) continue;
+                if (sensiblestorage$rejects(slotId, stack)) return true;
+                remaining -= room;
+            }
+        }
+        
+        if (remaining > 0) {
+            for (int slotId = 0; slotId < containerSlots; slotId++) {
+                Slot slot = handler.getSlot(slotId);
+                if (slot.getStack().isEmpty() && slot.canInsert(stack)) {
+                    return sensiblestorage$rejects(slotId, stack);
+                }
+            }
+        }
+        return false;
+    }
+    
+    private boolean sensiblestorage$rejects(int slotId, ItemStack stack) {
+        ItemStack template = sensiblestorage$memoryContext.template(slotId);
+        return !template.isEmpty() && !EnhancedSBStyleMemoryManager.itemMatchesTemplate(template, stack);
+    }
+    
+    /**
+     * Put the cursor stack into the given slots like a shift-click would: topping up matching stacks first, then empty slots
+     */
+    private void sensiblestorage$placeCursorStack(MinecraftClient client, int[] slotIds) {
+        for (int pass = 0; pass < 2; pass++) {
+            for (int slotId : slotIds) {
+                ItemStack cursor = handler.getCursorStack();
+                if (cursor.isEmpty()) return;
+                
+                Slot slot = handler.getSlot(slotId);
+                ItemStack inSlot = slot.getStack();
+                boolean fits = pass == 0
+                    ? !inSlot.isEmpty() && ItemStack.areItemsAndComponentsEqual(inSlot, cursor) && inSlot.getCount() < slot.getMaxItemCount(inSlot)
+                    : inSlot.isEmpty();
+                if (fits) {
+                    sensiblestorage$clickSlot(client, slotId);
                 }
             }
-            
-            // If we get here, either no templates conflict or no valid destination slots found
-            // Allow the operation to proceed
         }
     }
+    
+    /**
+     * Whether any of the given slots could take part of the stack, so routing it moves something
+     */
+    private boolean sensiblestorage$hasRoom(int[] slotIds, ItemStack stack) {
+        for (int slotId : slotIds) {
+            Slot slot = handler.getSlot(slotId);
+            ItemStack inSlot = slot.getStack();
+            if (inSlot.isEmpty()
+                ? slot.canInsert(stack)
+                : ItemStack.areItemsAndComponentsEqual(inSlot, stack) && inSlot.getCount() < slot.getMaxItemCount(inSlot)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private void sensiblestorage$clickSlot(MinecraftClient client, int slotId) {
+        client.interactionManager.clickSlot(handler.syncId, slotId, 0, net.minecraft.screen.slot.SlotActionType.PICKUP, client.player);
+    }
 }
\ No newline at end of file
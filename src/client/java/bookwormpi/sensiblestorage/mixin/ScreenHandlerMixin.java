@@ -0,0 +1,23 @@
+package bookwormpi.sensiblestorage.mixin;
+
+import bookwormpi.sensiblestorage.client.memory.MemoryContext;
+import net.minecraft.screen.ScreenHandler;
+import org.spongepowered.asm.mixin.Mixin;
+
+/**
+ * Gives every screen handler a slot for the memory context of its container
+ */
+@Mixin(ScreenHandler.class)
+public class ScreenHandlerMixin implements MemoryContext.Holder {
+    private MemoryContext sensiblestorage$memoryContext;
+    
+    @Override
+    public MemoryContext sensiblestorage$getMemoryContext() {
+        return sensiblestorage$memoryContext;
+    }
+    
+    @Override
+    public void sensiblestorage$setMemoryContext(MemoryContext context) {
+        sensiblestorage$memoryContext = context;
+    }
+}
@@ -1,7 +1,6 @@
 package bookwormpi.sensiblestorage.mixin;
 
-import bookwormpi.sensiblestorage.client.container.ContainerTracker;
-import bookwormpi.sensiblestorage.client.memory.EnhancedSBStyleMemoryManager;
+import bookwormpi.sensiblestorage.client.memory.MemoryContext;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.gui.screen.ingame.HandledScreen;
 import net.minecraft.entity.player.PlayerEntity;
@@ -69,18 +68,15 @@ public class SlotMixin {
             return;
         }
         
-        String containerId = getContainerId();
-        if (containerId != null) {
-            // Get container slot count - only filter container slots, not player inventory
-            int containerSlots = getContainerSlotCount();
-            if (containerSlots > 0 && index < containerSlots) {
-                ItemStack template = EnhancedSBStyleMemoryManager.getTemplate(containerId, index, containerSlots);
-                
-                // Only block if we have a specific template and the item doesn't match
-                if (!template.isEmpty() && !itemMatchesTemplate(stack, template)) {
-                    cir.setReturnValue(false);
-                    return;
-                }
+        MemoryContext context = getMemoryContext();
+        if (context != null) {
+            // Only container slots have templates, never the player inventory
+            ItemStack template = context.template(index);
+            
+            // Only block if we have a specific template and the item doesn't match
+            if (!template.isEmpty() && !itemMatchesTemplate(stack, template)) {
+                cir.setReturnValue(false);
+                return;
             }
         }
         // If we get here, let vanilla logic handle it - NEVER block by default
@@ -99,19 +95,14 @@ public class SlotMixin {
         
         // Only block non-empty stacks when memory enforcement is active
         if (!stack.isEmpty() && shouldEnforceMemory()) {
-            String containerId = getContainerId();
-            if (containerId != null) {
-                int containerSlots = getContainerSlotCount();
-                // Be extra conservative - only block if we're certain this is a container slot
+            MemoryContext context = getMemoryContext();
+            if (context != null) {
+                // Be extra conservative - only block if this is a container slot
                 // and we have a specific template that doesn't match
-                if (containerSlots > 0 && index < containerSlots) {
-                    ItemStack template = EnhancedSBStyleMemoryManager.getTemplate(containerId, index, containerSlots);
-                    
-                    // Only cancel if we have a specific template and the item doesn't match
-                    if (!template.isEmpty() && !itemMatchesTemplate(stack, template)) {
-                        ci.cancel();
-                        return;
-                    }
+                ItemStack template = context.template(index);
+                if (!template.isEmpty() && !itemMatchesTemplate(stack, template)) {
+                    ci.cancel();
+                    return;
                 }
             }
         }
@@ -131,19 +122,14 @@ public class SlotMixin {
         
         // Only block non-empty stacks when memory enforcement is active
         if (!stack.isEmpty() && shouldEnforceMemory()) {
-            String containerId = getContainerId();
-            if (containerId != null) {
-                int containerSlots = getContainerSlotCount();
-                // Be extra conservative - only block if we're certain this is a container slot
+            MemoryContext context = getMemoryContext();
+            if (context != null) {
+                // Be extra conservative - only block if this is a container slot
                 // and we have a specific template that doesn't match
-                if (containerSlots > 0 && index < containerSlots) {
-                    ItemStack template = EnhancedSBStyleMemoryManager.getTemplate(containerId, index, containerSlots);
-                    
-                    // Only cancel if we have a specific template and the item doesn't match
-                    if (!template.isEmpty() && !itemMatchesTemplate(stack, template)) {
-                        ci.cancel();
-                        return;
-                    }
+                ItemStack template = context.template(index);
+                if (!template.isEmpty() && !itemMatchesTemplate(stack, template)) {
+                    ci.cancel();
+                    return;
                 }
             }
         }
@@ -159,38 +145,16 @@ public class SlotMixin {
     }
     
     /**
-     * Get the container ID for the current screen handler
+     * Memory context of the open container screen, attached to its handler when the screen opened
      */
-    private String getContainerId() {
+    private MemoryContext getMemoryContext() {
         MinecraftClient client = MinecraftClient.getInstance();
         if (client.currentScreen instanceof HandledScreen<?> handledScreen) {
-            // Try to get container ID from the screen handler
-            // This approach mirrors what HandledScreenMixin does
-            ContainerTracker.ContainerInfo info = ContainerTracker.getContainerInfo(handledScreen.getScreenHandler());
-            if (info != null) {
-                // Create a consistent container ID using the same method as HandledScreenMixin
-                return EnhancedSBStyleMemoryManager.createContainerId(
-                    handledScreen.getClass().getSimpleName(), 
-                    handledScreen.getScreenHandler().syncId, 
-                    info.pos()
-                );
-            }
+            return MemoryContext.of(handledScreen.getScreenHandler());
         }
         return null;
     }
     
-    /**
-     * Get the number of container slots (excluding player inventory)
-     */
-    private int getContainerSlotCount() {
-        MinecraftClient client = MinecraftClient.getInstance();
-        if (client.currentScreen instanceof HandledScreen<?> handledScreen) {
-            // Player inventory is always 36 slots, so container slots are the remainder
-            return Math.max(0, handledScreen.getScreenHandler().slots.size() - 36);
-        }
-        return 0;
-    }
-    
     /**
      * Check if an item matches a memory template
      */